@@ -0,0 +1,107 @@
+package net.exacode.logback.classic;
+
+import java.util.Map;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+
+/**
+ * Event with caller data chosen by a {@link CallerDataPolicy} instead of the
+ * caller data of the original event. Null caller data hides the caller data
+ * the original event already has.
+ * 
+ * @author mendlik
+ * 
+ */
+class CallerDataLoggingEvent implements ILoggingEvent {
+
+	private final ILoggingEvent original;
+	private final StackTraceElement[] callerData;
+
+	CallerDataLoggingEvent(ILoggingEvent original,
+			StackTraceElement[] callerData) {
+		this.original = original;
+		this.callerData = callerData;
+	}
+
+	@Override
+	public String getThreadName() {
+		return original.getThreadName();
+	}
+
+	@Override
+	public Level getLevel() {
+		return original.getLevel();
+	}
+
+	@Override
+	public String getMessage() {
+		return original.getMessage();
+	}
+
+	@Override
+	public Object[] getArgumentArray() {
+		return original.getArgumentArray();
+	}
+
+	@Override
+	public String getFormattedMessage() {
+		return original.getFormattedMessage();
+	}
+
+	@Override
+	public String getLoggerName() {
+		return original.getLoggerName();
+	}
+
+	@Override
+	public LoggerContextVO getLoggerContextVO() {
+		return original.getLoggerContextVO();
+	}
+
+	@Override
+	public IThrowableProxy getThrowableProxy() {
+		return original.getThrowableProxy();
+	}
+
+	@Override
+	public StackTraceElement[] getCallerData() {
+		return callerData;
+	}
+
+	@Override
+	public boolean hasCallerData() {
+		return callerData != null;
+	}
+
+	@Override
+	public Marker getMarker() {
+		return original.getMarker();
+	}
+
+	@Override
+	public Map<String, String> getMDCPropertyMap() {
+		return original.getMDCPropertyMap();
+	}
+
+	@Override
+	@Deprecated
+	public Map<String, String> getMdc() {
+		return original.getMdc();
+	}
+
+	@Override
+	public long getTimeStamp() {
+		return original.getTimeStamp();
+	}
+
+	@Override
+	public void prepareForDeferredProcessing() {
+		original.prepareForDeferredProcessing();
+	}
+
+}
@@ -0,0 +1,129 @@
+package net.exacode.logback.classic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Decides which events get their caller data captured. Capturing walks the
+ * stack of the logging thread, so it is the most expensive part of appending
+ * an event.
+ * <p>
+ * Caller data is captured for events at or above {@code threshold}, of loggers
+ * whose names start with one of the {@code loggerPrefix} values (all loggers
+ * when none is set) and, of those, for a random {@code sampleRate} fraction.
+ * Only the top {@code maxDepth} frames are kept with the event.
+ * <p>
+ * The default policy captures all frames of every event.
+ * 
+ * <pre>
+ * &lt;callerDataPolicy&gt;
+ * 	&lt;threshold&gt;WARN&lt;/threshold&gt;
+ * 	&lt;loggerPrefix&gt;net.exacode&lt;/loggerPrefix&gt;
+ * 	&lt;sampleRate&gt;0.1&lt;/sampleRate&gt;
+ * 	&lt;maxDepth&gt;3&lt;/maxDepth&gt;
+ * &lt;/callerDataPolicy&gt;
+ * </pre>
+ * 
+ * @author mendlik
+ * 
+ */
+public class CallerDataPolicy {
+
+	private Level threshold = Level.ALL;
+	private final List<String> loggerPrefixes = new ArrayList<String>();
+	private double sampleRate = 1.0;
+	private int maxDepth;
+
+	/**
+	 * Must be called on the logging thread, events are sampled randomly.
+	 *
+	 * @return true if caller data of the event should be captured
+	 */
+	public boolean isCaptured(ILoggingEvent event) {
+		if (!event.getLevel().isGreaterOrEqual(threshold)) {
+			return false;
+		}
+		if (!loggerPrefixes.isEmpty() && !hasLoggerPrefix(event)) {
+			return false;
+		}
+		return sampleRate >= 1.0 || sampleRate > 0.0
+				&& ThreadLocalRandom.current().nextDouble() < sampleRate;
+	}
+
+	private boolean hasLoggerPrefix(ILoggingEvent event) {
+		String loggerName = event.getLoggerName();
+		if (loggerName == null) {
+			return false;
+		}
+		for (String prefix : loggerPrefixes) {
+			if (loggerName.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Captures caller data of the event on the logging thread.
+	 *
+	 * @return the event itself or, when frames are cut to {@code maxDepth},
+	 *         an event holding only the top frames
+	 */
+	public ILoggingEvent capture(ILoggingEvent event) {
+		StackTraceElement[] callerData = event.getCallerData();
+		if (maxDepth > 0 && callerData != null && callerData.length > maxDepth) {
+			return new CallerDataLoggingEvent(event, Arrays.copyOf(callerData,
+					maxDepth));
+		}
+		return event;
+	}
+
+	/**
+	 * Captures caller data of selected events. Other events are wrapped with
+	 * null caller data, so it is never computed later, e.g. on another thread,
+	 * and caller data already taken by another appender is hidden.
+	 */
+	public ILoggingEvent apply(ILoggingEvent event) {
+		return isCaptured(event) ? capture(event) : new CallerDataLoggingEvent(
+				event, null);
+	}
+
+	/**
+	 * @param threshold
+	 *            - least severe level of captured events, default: ALL
+	 */
+	public void setThreshold(Level threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Limits capturing to loggers whose names start with the prefix. May be
+	 * called for more prefixes.
+	 */
+	public void addLoggerPrefix(String loggerPrefix) {
+		loggerPrefixes.add(loggerPrefix);
+	}
+
+	/**
+	 * @param sampleRate
+	 *            - fraction of otherwise captured events, from 0.0 to 1.0,
+	 *            default: 1.0
+	 */
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * @param maxDepth
+	 *            - number of top frames kept, 0 for all, default: 0
+	 */
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+}
@@ -0,0 +1,291 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.CallerData;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+/**
+ * Bounded in-memory queue of {@link ILoggingEvent}s drained by writer threads
+ * into batches.
+ * <p>
+ * A batch is handed over to the {@link BatchHandler} when it reaches
+ * {@code batchSize} events or when {@code maxBatchDelayMs} elapsed since its
+ * first event was taken from the queue, whichever comes first. With more than
+ * one writer thread batches may be written out of order.
+ * <p>
+ * Behavior of a full queue is defined by {@link OverflowPolicy}. Dropped events
+ * are counted per level and, once no event was dropped for
+ * {@value #STORM_QUIET_PERIOD_MS}ms, a single summary event is written.
+ * 
+ * @author mendlik
+ * 
+ */
+class AsyncBatchWriter extends ContextAwareBase {
+
+	/**
+	 * Upper bound of a single wait on the queue, so idle writers notice
+	 * {@link #stop(long)} quickly.
+	 */
+	private static final long MAX_POLL_MS = 100;
+
+	/**
+	 * Time without drops after which the summary of dropped events is written.
+	 */
+	static final long STORM_QUIET_PERIOD_MS = 1000;
+
+	/**
+	 * Receives batches drained from the queue.
+	 */
+	interface BatchHandler {
+		void handle(List<ILoggingEvent> batch);
+	}
+
+	private final BlockingQueue<ILoggingEvent> queue;
+	private final BatchHandler handler;
+	private final int batchSize;
+	private final long maxBatchDelayMs;
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private final DropCounters dropCounters = new DropCounters();
+	private final int queueSize;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private long blockTimeoutMs;
+	private Level dropThreshold = Level.WARN;
+
+	private volatile boolean running;
+
+	public AsyncBatchWriter(BatchHandler handler, int queueSize, int batchSize,
+			long maxBatchDelayMs) {
+		this.queue = new ArrayBlockingQueue<ILoggingEvent>(queueSize);
+		this.queueSize = queueSize;
+		this.handler = handler;
+		this.batchSize = batchSize;
+		this.maxBatchDelayMs = maxBatchDelayMs;
+	}
+
+	/**
+	 * Starts the writer threads. Does nothing when they are already running.
+	 */
+	public void start(int threads, String name) {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < threads; ++i) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drainLoop();
+				}
+			}, name + "-writer-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	public void enqueue(ILoggingEvent event) throws InterruptedException {
+		switch (overflowPolicy) {
+		case DROP_NEWEST:
+			if (!queue.offer(event)) {
+				drop(event);
+			}
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(event)) {
+				ILoggingEvent oldest = queue.poll();
+				if (oldest != null) {
+					drop(oldest);
+				}
+			}
+			break;
+		case DROP_BELOW_THRESHOLD:
+			if (!event.getLevel().isGreaterOrEqual(dropThreshold)
+					&& queue.remainingCapacity() < queueSize / 5) {
+				drop(event);
+			} else {
+				put(event);
+			}
+			break;
+		default:
+			put(event);
+		}
+	}
+
+	/**
+	 * Waits for free space at most {@code blockTimeoutMs}, the event is dropped
+	 * afterwards.
+	 */
+	private void put(ILoggingEvent event) throws InterruptedException {
+		if (blockTimeoutMs <= 0) {
+			queue.put(event);
+		} else if (!queue.offer(event, blockTimeoutMs, TimeUnit.MILLISECONDS)) {
+			drop(event);
+		}
+	}
+
+	/**
+	 * Queues the event without blocking regardless of the overflow policy. The
+	 * event is dropped when the queue is full, as with
+	 * {@link OverflowPolicy#DROP_NEWEST}.
+	 */
+	public void offer(ILoggingEvent event) {
+		if (!queue.offer(event)) {
+			drop(event, OverflowPolicy.DROP_NEWEST);
+		}
+	}
+
+	private void drop(ILoggingEvent event) {
+		drop(event, overflowPolicy);
+	}
+
+	private void drop(ILoggingEvent event, OverflowPolicy policy) {
+		if (dropCounters.record(event.getLevel())) {
+			addWarn("Queue of " + queueSize
+					+ " events is full, dropping events according to "
+					+ policy + " policy");
+		}
+	}
+
+	/**
+	 * Stops accepting new batches after the queue is drained. Waits at most
+	 * {@code timeoutMs} for the writer threads to flush remaining events.
+	 * 
+	 * @param timeoutMs
+	 *            - maximal time spent on draining the queue
+	 * @return true if all queued events were written before the deadline
+	 */
+	public boolean stop(long timeoutMs) {
+		running = false;
+		final long deadline = System.currentTimeMillis() + timeoutMs;
+		for (Thread worker : workers) {
+			long remaining = deadline - System.currentTimeMillis();
+			try {
+				if (remaining > 0) {
+					worker.join(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		boolean drained = true;
+		for (Thread worker : workers) {
+			if (worker.isAlive()) {
+				drained = false;
+				worker.interrupt();
+			}
+		}
+		workers.clear();
+		if (!queue.isEmpty()) {
+			addWarn("Shutdown deadline of " + timeoutMs + "ms exceeded, "
+					+ queue.size() + " queued events were not written");
+			drained = false;
+		}
+		return drained;
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+	public DropCounters getDropCounters() {
+		return dropCounters;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public void setBlockTimeoutMs(long blockTimeoutMs) {
+		this.blockTimeoutMs = blockTimeoutMs;
+	}
+
+	public void setDropThreshold(Level dropThreshold) {
+		this.dropThreshold = dropThreshold;
+	}
+
+	private void drainLoop() {
+		final List<ILoggingEvent> batch = new ArrayList<ILoggingEvent>(
+				batchSize);
+		try {
+			while (running || !queue.isEmpty()) {
+				fillBatch(batch);
+				if (!batch.isEmpty()) {
+					writeBatch(batch);
+				}
+				if (isStormOver()) {
+					writeDropSummary();
+				}
+			}
+		} catch (InterruptedException e) {
+			// stop() deadline exceeded
+		}
+	}
+
+	private void fillBatch(List<ILoggingEvent> batch)
+			throws InterruptedException {
+		ILoggingEvent first = queue.poll(
+				Math.min(maxBatchDelayMs, MAX_POLL_MS), TimeUnit.MILLISECONDS);
+		if (first == null) {
+			return;
+		}
+		batch.add(first);
+		final long deadline = System.currentTimeMillis() + maxBatchDelayMs;
+		while (batch.size() < batchSize) {
+			queue.drainTo(batch, batchSize - batch.size());
+			long remaining = deadline - System.currentTimeMillis();
+			if (batch.size() >= batchSize || remaining <= 0 || !running) {
+				return;
+			}
+			ILoggingEvent next = queue.poll(Math.min(remaining, MAX_POLL_MS),
+					TimeUnit.MILLISECONDS);
+			if (next != null) {
+				batch.add(next);
+			}
+		}
+	}
+
+	private boolean isStormOver() {
+		return dropCounters.total() > 0
+				&& System.currentTimeMillis() - dropCounters.getLastDropMs() >= STORM_QUIET_PERIOD_MS;
+	}
+
+	private void writeDropSummary() {
+		String summary = dropCounters.drainSummary();
+		if (summary == null) {
+			return;
+		}
+		addWarn(summary);
+		LoggingEvent event = new LoggingEvent();
+		event.setTimeStamp(System.currentTimeMillis());
+		event.setLevel(Level.WARN);
+		event.setLoggerName(MongoDbAppender.class.getName());
+		event.setThreadName(Thread.currentThread().getName());
+		event.setMessage(summary);
+		event.setCallerData(CallerData.EMPTY_CALLER_DATA_ARRAY);
+		writeBatch(new ArrayList<ILoggingEvent>(Collections
+				.singletonList(event)));
+	}
+
+	private void writeBatch(List<ILoggingEvent> batch) {
+		try {
+			handler.handle(batch);
+		} catch (RuntimeException e) {
+			addError("Could not write batch of " + batch.size()
+					+ " events to MongoDB", e);
+		} finally {
+			batch.clear();
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.exacode.logback.classic.mongodb.converter.CollapsedLoggingEvent;
+import net.exacode.logback.classic.mongodb.converter.StackTraceStore;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+/**
+ * Collapses bursts of repeated events into a single event.
+ * <p>
+ * Events with the same logger, level, message pattern and throwable
+ * fingerprint that are appended within {@code windowMs} from the first one
+ * form a burst. The first event is held back until the window closes, then it
+ * is handed over to the {@link Sink} alone or, when repeated, as a
+ * {@link CollapsedLoggingEvent} with the number of events and time stamps of
+ * the first and the last one. Held events are therefore written up to
+ * {@code windowMs} later.
+ * <p>
+ * Open bursts are kept in a {@link ConcurrentHashMap} of at most
+ * {@code maxBursts} entries, events that do not fit are passed through. Adding
+ * an event to an open burst only increments atomic counters.
+ * 
+ * @author mendlik
+ * 
+ */
+class BurstCollapser extends ContextAwareBase {
+
+	/**
+	 * Receives events of closed bursts.
+	 */
+	interface Sink {
+		void emit(ILoggingEvent event);
+	}
+
+	/**
+	 * Identity of repeated events.
+	 */
+	private static final class Key {
+		private final String logger;
+		private final String level;
+		private final String message;
+		private final String fingerprint;
+		private final int hash;
+
+		Key(ILoggingEvent event) {
+			this.logger = event.getLoggerName();
+			this.level = event.getLevel().levelStr;
+			this.message = event.getMessage();
+			IThrowableProxy throwable = event.getThrowableProxy();
+			this.fingerprint = throwable != null ? StackTraceStore
+					.fingerprint(throwable) : null;
+			int h = level.hashCode();
+			h = 31 * h + (logger != null ? logger.hashCode() : 0);
+			h = 31 * h + (message != null ? message.hashCode() : 0);
+			h = 31 * h + (fingerprint != null ? fingerprint.hashCode() : 0);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) object;
+			return level.equals(other.level) && equal(logger, other.logger)
+					&& equal(message, other.message)
+					&& equal(fingerprint, other.fingerprint);
+		}
+
+		private static boolean equal(String first, String second) {
+			return first == null ? second == null : first.equals(second);
+		}
+	}
+
+	/**
+	 * Events of an open burst. A negative count marks a closed burst.
+	 */
+	private static final class Burst {
+		private final ILoggingEvent first;
+		private final long openedMs;
+		private final AtomicLong count = new AtomicLong(1);
+		private final AtomicLong lastTimeStamp;
+
+		Burst(ILoggingEvent first, long openedMs) {
+			this.first = first;
+			this.openedMs = openedMs;
+			this.lastTimeStamp = new AtomicLong(first.getTimeStamp());
+		}
+
+		/**
+		 * @return false when the burst is already closed
+		 */
+		boolean add(ILoggingEvent event) {
+			long timeStamp = event.getTimeStamp();
+			long last = lastTimeStamp.get();
+			while (timeStamp > last
+					&& !lastTimeStamp.compareAndSet(last, timeStamp)) {
+				last = lastTimeStamp.get();
+			}
+			long current = count.get();
+			while (current > 0) {
+				if (count.compareAndSet(current, current + 1)) {
+					return true;
+				}
+				current = count.get();
+			}
+			return false;
+		}
+
+		ILoggingEvent close() {
+			long total = count.getAndSet(-1);
+			return total > 1 ? new CollapsedLoggingEvent(first, total,
+					lastTimeStamp.get()) : first;
+		}
+	}
+
+	private final ConcurrentMap<Key, Burst> bursts = new ConcurrentHashMap<Key, Burst>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final Sink sink;
+	private final long windowMs;
+	private final int maxBursts;
+
+	public BurstCollapser(Sink sink, long windowMs, int maxBursts) {
+		this.sink = sink;
+		this.windowMs = windowMs;
+		this.maxBursts = maxBursts;
+	}
+
+	/**
+	 * Adds the event to its burst. The event has to be prepared for deferred
+	 * processing.
+	 * 
+	 * @return false if the event could not be held and has to be written
+	 *         directly
+	 */
+	public boolean collapse(ILoggingEvent event) {
+		Key key = new Key(event);
+		while (true) {
+			Burst burst = bursts.get(key);
+			if (burst != null) {
+				if (burst.add(event)) {
+					return true;
+				}
+				// closed by flush, replace it
+				bursts.remove(key, burst);
+				continue;
+			}
+			if (size.incrementAndGet() > maxBursts) {
+				size.decrementAndGet();
+				return false;
+			}
+			if (bursts.putIfAbsent(key,
+					new Burst(event, System.currentTimeMillis())) == null) {
+				return true;
+			}
+			size.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Emits bursts whose window has elapsed.
+	 */
+	public void flush() {
+		flush(System.currentTimeMillis() - windowMs);
+	}
+
+	/**
+	 * Emits all open bursts.
+	 */
+	public void flushAll() {
+		flush(Long.MAX_VALUE);
+	}
+
+	private void flush(long openedBefore) {
+		Iterator<Map.Entry<Key, Burst>> entries = bursts.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Key, Burst> entry = entries.next();
+			Burst burst = entry.getValue();
+			if (burst.openedMs > openedBefore) {
+				continue;
+			}
+			if (!bursts.remove(entry.getKey(), burst)) {
+				continue;
+			}
+			size.decrementAndGet();
+			try {
+				sink.emit(burst.close());
+			} catch (RuntimeException e) {
+				addError("Could not write collapsed events", e);
+			}
+		}
+	}
+
+	/**
+	 * @return number of open bursts
+	 */
+	int size() {
+		return size.get();
+	}
+
+}
@@ -0,0 +1,95 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+/**
+ * Circuit breaker guarding writes to MongoDB.
+ * <p>
+ * Circuit opens after {@code failureThreshold} consecutive failed writes. A
+ * write slower than {@code slowWriteThresholdMs} counts as failed. While the
+ * circuit is open writes fail fast. After {@code probeIntervalMs} a single
+ * probe is allowed ({@link #tryProbe()}); its success closes the circuit and
+ * its failure opens it again. State changes are reported to the status
+ * manager.
+ * 
+ * @author mendlik
+ * 
+ */
+class CircuitBreaker extends ContextAwareBase {
+
+	enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long slowWriteThresholdMs;
+	private final long probeIntervalMs;
+
+	private final AtomicReference<State> state = new AtomicReference<State>(
+			State.CLOSED);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile long openedAtMs;
+
+	public CircuitBreaker(int failureThreshold, long slowWriteThresholdMs,
+			long probeIntervalMs) {
+		this.failureThreshold = failureThreshold;
+		this.slowWriteThresholdMs = slowWriteThresholdMs;
+		this.probeIntervalMs = probeIntervalMs;
+	}
+
+	/**
+	 * @return true if a write may be attempted, false if it should fail fast
+	 */
+	public boolean allowRequest() {
+		return state.get() == State.CLOSED;
+	}
+
+	/**
+	 * Switches an open circuit to half-open when the probe interval elapsed.
+	 * 
+	 * @return true if the caller should send the single probe request
+	 */
+	public boolean tryProbe() {
+		return state.get() == State.OPEN
+				&& System.currentTimeMillis() - openedAtMs >= probeIntervalMs
+				&& state.compareAndSet(State.OPEN, State.HALF_OPEN);
+	}
+
+	public void onSuccess(long durationMs) {
+		if (slowWriteThresholdMs > 0 && durationMs > slowWriteThresholdMs) {
+			onFailure("write took " + durationMs + "ms", null);
+			return;
+		}
+		consecutiveFailures.set(0);
+		if (state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+			addInfo("Circuit closed, MongoDB accepts writes again");
+		}
+	}
+
+	public void onFailure(Throwable cause) {
+		onFailure(cause.getMessage(), cause);
+	}
+
+	private void onFailure(String reason, Throwable cause) {
+		int failures = consecutiveFailures.incrementAndGet();
+		if (state.compareAndSet(State.HALF_OPEN, State.OPEN)) {
+			openedAtMs = System.currentTimeMillis();
+			addWarn("Probe failed (" + reason + "), circuit stays open for "
+					+ probeIntervalMs + "ms", cause);
+		} else if (failures >= failureThreshold
+				&& state.compareAndSet(State.CLOSED, State.OPEN)) {
+			openedAtMs = System.currentTimeMillis();
+			addWarn("Circuit opened after " + failures
+					+ " consecutive failed writes (" + reason
+					+ "), next probe in " + probeIntervalMs + "ms", cause);
+		}
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+}
@@ -0,0 +1,227 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+
+/**
+ * Maps events to time-bucketed log collections, e.g. {@code logs_2026_10_17}.
+ * <p>
+ * The bucket of the most recent event is cached, so choosing a collection on
+ * the write path is a range check. Buckets are created by MongoDB on the first
+ * insert.
+ * <p>
+ * Names of existing buckets are cached, so queries do not list collections of
+ * the database each time. The cache learns buckets written through this
+ * partitioner and is reloaded when a query reaches the current period and its
+ * bucket is not known yet, at most once per
+ * {@value #MISS_REFRESH_INTERVAL_MS}ms, e.g. when another process writes logs.
+ * 
+ * @author mendlik
+ * 
+ */
+public class CollectionPartitioner {
+
+	/**
+	 * Notified on the write path when events start going to a new bucket.
+	 * Implementations must not block.
+	 */
+	public interface RolloverListener {
+		void rolledOver(DBCollection collection);
+	}
+
+	private static class Bucket {
+		private final long start;
+		private final long end;
+		private final DBCollection collection;
+
+		Bucket(long start, long end, DBCollection collection) {
+			this.start = start;
+			this.end = end;
+			this.collection = collection;
+		}
+
+		boolean contains(long timestamp) {
+			return timestamp >= start && timestamp < end;
+		}
+	}
+
+	static final long MISS_REFRESH_INTERVAL_MS = 1000;
+
+	private final DB db;
+	private final String baseName;
+	private final PartitionPeriod period;
+
+	private volatile Bucket current;
+
+	private volatile TreeMap<Long, String> buckets;
+	private volatile long refreshedMs;
+
+	private RolloverListener rolloverListener;
+
+	public CollectionPartitioner(DB db, String baseName, PartitionPeriod period) {
+		this.db = db;
+		this.baseName = baseName;
+		this.period = period;
+	}
+
+	/**
+	 * @return collection for events logged at the given time
+	 */
+	public DBCollection collectionFor(long timestamp) {
+		Bucket bucket = current;
+		if (bucket != null && bucket.contains(timestamp)) {
+			return bucket.collection;
+		}
+		long start = period.start(timestamp);
+		String name = period.collectionName(baseName, start);
+		bucket = new Bucket(start, period.next(start), db.getCollection(name));
+		remember(start, name);
+		if (advance(bucket) && rolloverListener != null) {
+			rolloverListener.rolledOver(bucket.collection);
+		}
+		return bucket.collection;
+	}
+
+	/**
+	 * @return collection of the most recent bucket written to, null before the
+	 *         first event
+	 */
+	public DBCollection currentCollection() {
+		Bucket bucket = current;
+		return bucket == null ? null : bucket.collection;
+	}
+
+	/**
+	 * @return existing bucket collections in chronological order
+	 */
+	public List<DBCollection> collections() {
+		return collections(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return existing bucket collections covering the time range
+	 *         {@code [from, to)} in chronological order
+	 */
+	public List<DBCollection> collections(long from, long to) {
+		TreeMap<Long, String> buckets = cachedBuckets(to);
+		List<DBCollection> collections = new ArrayList<DBCollection>();
+		for (Long start : buckets.keySet()) {
+			if (start < to && period.next(start) > from) {
+				collections.add(db.getCollection(buckets.get(start)));
+			}
+		}
+		return collections;
+	}
+
+	/**
+	 * Drops buckets that end before the cutoff.
+	 * 
+	 * @return names of dropped collections
+	 */
+	public List<String> dropOlderThan(long cutoff) {
+		List<String> dropped = new ArrayList<String>();
+		TreeMap<Long, String> buckets = reload();
+		for (Long start : buckets.headMap(cutoff).keySet()) {
+			if (period.next(start) <= cutoff) {
+				String name = buckets.get(start);
+				db.getCollection(name).drop();
+				dropped.add(name);
+			}
+		}
+		if (!dropped.isEmpty()) {
+			reload();
+		}
+		return dropped;
+	}
+
+	/**
+	 * Reloads names of existing buckets, e.g. after they were dropped by
+	 * another component.
+	 */
+	public void refresh() {
+		reload();
+	}
+
+	/**
+	 * @return true if the bucket became the current one
+	 */
+	private synchronized boolean advance(Bucket bucket) {
+		if (current != null && bucket.start <= current.start) {
+			return false;
+		}
+		current = bucket;
+		return true;
+	}
+
+	public void setRolloverListener(RolloverListener rolloverListener) {
+		this.rolloverListener = rolloverListener;
+	}
+
+	public DB getDB() {
+		return db;
+	}
+
+	public String getBaseName() {
+		return baseName;
+	}
+
+	public PartitionPeriod getPeriod() {
+		return period;
+	}
+
+	/**
+	 * @return cached buckets, reloaded when the range ends after the start of
+	 *         the current period whose bucket is not known
+	 */
+	private TreeMap<Long, String> cachedBuckets(long to) {
+		TreeMap<Long, String> cached = buckets;
+		if (cached == null) {
+			return reload();
+		}
+		long now = System.currentTimeMillis();
+		long currentStart = period.start(now);
+		if (to > currentStart && !cached.containsKey(currentStart)
+				&& now - refreshedMs >= MISS_REFRESH_INTERVAL_MS) {
+			return reload();
+		}
+		return cached;
+	}
+
+	private TreeMap<Long, String> reload() {
+		TreeMap<Long, String> loaded = buckets();
+		synchronized (this) {
+			buckets = loaded;
+			refreshedMs = System.currentTimeMillis();
+		}
+		return loaded;
+	}
+
+	/**
+	 * Adds a bucket written through this partitioner to the cache. The cached
+	 * map is replaced, so readers iterate over a stable copy.
+	 */
+	private synchronized void remember(long start, String name) {
+		TreeMap<Long, String> cached = buckets;
+		if (cached != null && !cached.containsKey(start)) {
+			TreeMap<Long, String> updated = new TreeMap<Long, String>(cached);
+			updated.put(start, name);
+			buckets = updated;
+		}
+	}
+
+	private TreeMap<Long, String> buckets() {
+		TreeMap<Long, String> buckets = new TreeMap<Long, String>();
+		for (String name : db.getCollectionNames()) {
+			long start = period.parseStart(baseName, name);
+			if (start >= 0) {
+				buckets.put(start, name);
+			}
+		}
+		return buckets;
+	}
+
+}
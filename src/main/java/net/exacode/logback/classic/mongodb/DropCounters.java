@@ -0,0 +1,91 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * Per-level counters of dropped events.
+ * 
+ * @author mendlik
+ * 
+ */
+class DropCounters {
+
+	private static final Level[] LEVELS = { Level.TRACE, Level.DEBUG,
+			Level.INFO, Level.WARN, Level.ERROR };
+
+	private final AtomicLongArray counters = new AtomicLongArray(
+			LEVELS.length);
+	private final AtomicLong lastDropMs = new AtomicLong();
+	private final AtomicBoolean dropping = new AtomicBoolean();
+
+	/**
+	 * @return true if this is the first drop since the last
+	 *         {@link #drainSummary()}
+	 */
+	public boolean record(Level level) {
+		lastDropMs.set(System.currentTimeMillis());
+		counters.incrementAndGet(index(level));
+		return dropping.compareAndSet(false, true);
+	}
+
+	public long get(Level level) {
+		return counters.get(index(level));
+	}
+
+	public long total() {
+		long total = 0;
+		for (int i = 0; i < LEVELS.length; ++i) {
+			total += counters.get(i);
+		}
+		return total;
+	}
+
+	public long getLastDropMs() {
+		return lastDropMs.get();
+	}
+
+	/**
+	 * Resets all counters.
+	 * 
+	 * @return summary of dropped events, e.g.
+	 *         {@code "12 events dropped (DEBUG=10, INFO=2)"}, or null if
+	 *         nothing was dropped
+	 */
+	public String drainSummary() {
+		dropping.set(false);
+		long total = 0;
+		StringBuilder details = new StringBuilder();
+		for (int i = 0; i < LEVELS.length; ++i) {
+			long dropped = counters.getAndSet(i, 0);
+			if (dropped > 0) {
+				total += dropped;
+				details.append(details.length() == 0 ? "" : ", ")
+						.append(LEVELS[i]).append('=').append(dropped);
+			}
+		}
+		if (total == 0) {
+			return null;
+		}
+		return total + " events dropped (" + details + ")";
+	}
+
+	private int index(Level level) {
+		switch (level.toInt()) {
+		case Level.TRACE_INT:
+			return 0;
+		case Level.DEBUG_INT:
+			return 1;
+		case Level.INFO_INT:
+			return 2;
+		case Level.WARN_INT:
+			return 3;
+		default:
+			return 4;
+		}
+	}
+
+}
@@ -0,0 +1,147 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Builds indexes on log collections in the background.
+ * <p>
+ * Indexes are built one at a time by a single thread with the
+ * {@code background} option, so writes to the collection are not blocked.
+ * While an index is being built its progress, as reported by {@code currentOp},
+ * is published as a status message every {@value #PROGRESS_INTERVAL_MS}ms from
+ * a separate thread. The index size is reported once the build completes.
+ * 
+ * @author mendlik
+ * 
+ */
+class IndexBuilder extends ContextAwareBase {
+
+	static final long PROGRESS_INTERVAL_MS = 5000;
+
+	private final List<IndexDefinition> indexes;
+
+	private final boolean compact;
+
+	private ExecutorService executor;
+
+	private ScheduledExecutorService progressReporter;
+
+	/**
+	 * @param compact
+	 *            - events are stored in the compact layout, field names of
+	 *            definitions are mapped to its keys
+	 */
+	public IndexBuilder(List<IndexDefinition> indexes, boolean compact) {
+		this.indexes = indexes;
+		this.compact = compact;
+	}
+
+	public void start(String name) {
+		executor = Executors.newSingleThreadExecutor(daemonThreadFactory(name
+				+ "-index-builder"));
+		// the build blocks, so progress is polled by another thread
+		progressReporter = Executors
+				.newSingleThreadScheduledExecutor(daemonThreadFactory(name
+						+ "-index-progress"));
+	}
+
+	/**
+	 * Schedules building of all indexes on the collection. Returns immediately.
+	 */
+	public void build(final DBCollection collection) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (IndexDefinition index : indexes) {
+						build(collection, index);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// builder is stopped
+		}
+	}
+
+	public void stop() {
+		executor.shutdownNow();
+		progressReporter.shutdownNow();
+	}
+
+	private ThreadFactory daemonThreadFactory(final String threadName) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, threadName);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private void build(final DBCollection collection, IndexDefinition index) {
+		final String ns = collection.getFullName();
+		ScheduledFuture<?> progress = progressReporter.scheduleWithFixedDelay(
+				new Runnable() {
+					@Override
+					public void run() {
+						reportProgress(collection, ns);
+					}
+				}, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS,
+				TimeUnit.MILLISECONDS);
+		final long startMs = System.currentTimeMillis();
+		try {
+			collection.createIndex(index.toKeys(compact),
+					index.toOptions(compact));
+			addInfo("Index " + index + " on " + ns + " built in "
+					+ (System.currentTimeMillis() - startMs) + "ms, "
+					+ indexSizes(collection));
+		} catch (IllegalArgumentException e) {
+			addError("Invalid definition of index " + index + ": "
+					+ e.getMessage());
+		} catch (MongoException e) {
+			addError("Could not build index " + index + " on " + ns, e);
+		} finally {
+			progress.cancel(false);
+		}
+	}
+
+	private void reportProgress(DBCollection collection, String ns) {
+		try {
+			DBObject currentOp = collection.getDB()
+					.getCollection("$cmd.sys.inprog").findOne();
+			if (currentOp == null
+					|| !(currentOp.get("inprog") instanceof List<?>)) {
+				return;
+			}
+			for (Object op : (List<?>) currentOp.get("inprog")) {
+				DBObject operation = (DBObject) op;
+				Object msg = operation.get("msg");
+				if (ns.equals(operation.get("ns")) && msg != null) {
+					addInfo("Building index on " + ns + ": " + msg);
+				}
+			}
+		} catch (MongoException e) {
+			// progress is informative only
+		}
+	}
+
+	private String indexSizes(DBCollection collection) {
+		Object sizes = collection.getStats().get("indexSizes");
+		return "index sizes: " + (sizes == null ? "unknown" : sizes);
+	}
+
+}
@@ -0,0 +1,179 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.List;
+
+import net.exacode.logback.classic.mongodb.converter.LoggingEventConverter;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Declarative definition of an index on the log collection, e.g.:
+ * 
+ * <pre>
+ * &lt;index&gt;
+ *   &lt;keys&gt;{ "level" : 1, "timeStamp" : -1 }&lt;/keys&gt;
+ *   &lt;partialFilter&gt;{ "level" : "ERROR" }&lt;/partialFilter&gt;
+ * &lt;/index&gt;
+ * </pre>
+ * 
+ * Keys and partial filter are JSON documents. MDC values are indexed with
+ * {@code mdc.<key>} keys. Fields are declared with names of the standard
+ * layout; they are mapped to the short keys of the compact layout when the
+ * appender uses it.
+ * 
+ * @author mendlik
+ * 
+ */
+public class IndexDefinition {
+
+	private String keys;
+	private String name;
+	private String partialFilter;
+	private boolean sparse;
+
+	/**
+	 * @return index keys parsed from JSON
+	 * @throws IllegalArgumentException
+	 *             when keys are missing or are not a JSON document
+	 */
+	public DBObject toKeys() {
+		return toKeys(false);
+	}
+
+	/**
+	 * @param compact
+	 *            - map field names to keys of the compact layout
+	 * @return index keys parsed from JSON
+	 * @throws IllegalArgumentException
+	 *             when keys are missing or are not a JSON document
+	 */
+	public DBObject toKeys(boolean compact) {
+		if (keys == null) {
+			throw new IllegalArgumentException("Index keys are not defined");
+		}
+		DBObject parsed = parse(keys);
+		return compact ? compact(parsed) : parsed;
+	}
+
+	/**
+	 * @return options of a background index build
+	 */
+	public DBObject toOptions() {
+		return toOptions(false);
+	}
+
+	/**
+	 * @param compact
+	 *            - map field names of the partial filter to keys of the
+	 *            compact layout
+	 * @return options of a background index build
+	 */
+	public DBObject toOptions(boolean compact) {
+		BasicDBObject options = new BasicDBObject("background", true);
+		if (name != null) {
+			options.append("name", name);
+		}
+		if (partialFilter != null) {
+			DBObject filter = parse(partialFilter);
+			options.append("partialFilterExpression",
+					compact ? compact(filter) : filter);
+		}
+		if (sparse) {
+			options.append("sparse", true);
+		}
+		return options;
+	}
+
+	/**
+	 * Renames fields, including the first part of dotted paths, and leaves
+	 * operators and unknown fields as they are. Only operands of operators,
+	 * e.g. of {@code $or}, may contain further fields.
+	 */
+	private static DBObject compact(DBObject document) {
+		BasicDBObject compacted = new BasicDBObject();
+		for (String key : document.keySet()) {
+			Object value = document.get(key);
+			compacted.put(compactKey(key),
+					key.startsWith("$") ? compactValue(value) : value);
+		}
+		return compacted;
+	}
+
+	private static Object compactValue(Object value) {
+		if (value instanceof BasicDBList) {
+			BasicDBList compacted = new BasicDBList();
+			for (Object element : (BasicDBList) value) {
+				compacted.add(compactValue(element));
+			}
+			return compacted;
+		}
+		return value instanceof DBObject ? compact((DBObject) value) : value;
+	}
+
+	private static String compactKey(String key) {
+		if (key.startsWith("$")) {
+			return key;
+		}
+		int dot = key.indexOf('.');
+		String field = dot < 0 ? key : key.substring(0, dot);
+		String compactField = LoggingEventConverter.compactFieldName(field);
+		if (compactField == null) {
+			return key;
+		}
+		return dot < 0 ? compactField : compactField + key.substring(dot);
+	}
+
+	private DBObject parse(String json) {
+		Object parsed;
+		try {
+			parsed = JSON.parse(json);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid JSON: " + json, e);
+		}
+		if (!(parsed instanceof DBObject) || parsed instanceof List<?>) {
+			throw new IllegalArgumentException("Not a JSON document: " + json);
+		}
+		return (DBObject) parsed;
+	}
+
+	public String getKeys() {
+		return keys;
+	}
+
+	public void setKeys(String keys) {
+		this.keys = keys;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getPartialFilter() {
+		return partialFilter;
+	}
+
+	public void setPartialFilter(String partialFilter) {
+		this.partialFilter = partialFilter;
+	}
+
+	public boolean isSparse() {
+		return sparse;
+	}
+
+	public void setSparse(boolean sparse) {
+		this.sparse = sparse;
+	}
+
+	@Override
+	public String toString() {
+		return name != null ? name : keys;
+	}
+
+}
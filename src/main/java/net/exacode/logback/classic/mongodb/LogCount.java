@@ -0,0 +1,36 @@
+package net.exacode.logback.classic.mongodb;
+
+/**
+ * Number of events sharing a value of a grouped field, see
+ * {@link MongoDbLogDao#countByLevel(LogQuery)}.
+ * 
+ * @author mendlik
+ * 
+ */
+public class LogCount {
+
+	private final String key;
+	private final long count;
+
+	LogCount(String key, long count) {
+		this.key = key;
+		this.count = count;
+	}
+
+	/**
+	 * @return value of the grouped field, e.g. level or logger name
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return key + "=" + count;
+	}
+
+}
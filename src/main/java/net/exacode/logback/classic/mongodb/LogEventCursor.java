@@ -0,0 +1,159 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.exacode.logback.classic.mongodb.converter.LoggingEventConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Iterates over logging events stored in one or more collections, decoding
+ * each event only when it is reached. Documents are fetched from the server
+ * in batches of {@code batchSize}.
+ * <p>
+ * Collections are queried one after another in the given order. Offset and
+ * limit apply across all of them. The cursor must be closed when it is not
+ * iterated to the end, preferably in a {@code finally} block.
+ * 
+ * @author mendlik
+ * 
+ */
+public class LogEventCursor implements Iterator<ILoggingEvent>, Closeable {
+
+	private final Iterator<DBCollection> collections;
+	private final DBObject query;
+	private final DBObject sort;
+	private final DBObject fields;
+	private final Object hint;
+	private final int batchSize;
+	private final LoggingEventConverter converter;
+
+	private int toSkip;
+	private int remaining;
+	private DBCursor cursor;
+	private boolean closed;
+
+	/**
+	 * @param offset
+	 *            - number of events to skip
+	 * @param limit
+	 *            - maximal number of events, 0 for no limit
+	 * @param batchSize
+	 *            - number of documents fetched at once, 0 for server default
+	 */
+	LogEventCursor(List<DBCollection> collections, DBObject query,
+			DBObject sort, int offset, int limit, int batchSize,
+			LoggingEventConverter converter) {
+		this(collections, query, null, sort, null, offset, limit, batchSize,
+				converter);
+	}
+
+	/**
+	 * @param fields
+	 *            - projection of read documents, null for all fields
+	 * @param hint
+	 *            - name or keys of the index to use, null to let MongoDB
+	 *            choose
+	 */
+	LogEventCursor(List<DBCollection> collections, DBObject query,
+			DBObject fields, DBObject sort, Object hint, int offset,
+			int limit, int batchSize, LoggingEventConverter converter) {
+		this.collections = collections.iterator();
+		this.query = query;
+		this.sort = sort;
+		this.fields = fields;
+		this.hint = hint;
+		this.toSkip = offset;
+		this.remaining = limit > 0 ? limit : -1;
+		this.batchSize = batchSize;
+		this.converter = converter;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (closed || remaining == 0) {
+			return false;
+		}
+		while (cursor == null || !cursor.hasNext()) {
+			if (cursor != null) {
+				cursor.close();
+				cursor = null;
+			}
+			if (!collections.hasNext()) {
+				return false;
+			}
+			cursor = open(collections.next());
+		}
+		return true;
+	}
+
+	@Override
+	public ILoggingEvent next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		if (remaining > 0) {
+			--remaining;
+		}
+		return converter.convertToLoggingEvent((BasicDBObject) cursor.next());
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Releases the server side cursor. May be called more than once.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (cursor != null) {
+			cursor.close();
+			cursor = null;
+		}
+	}
+
+	/**
+	 * @return cursor over the collection or null when all its documents are
+	 *         skipped
+	 */
+	private DBCursor open(DBCollection collection) {
+		if (toSkip > 0 && collections.hasNext()) {
+			long count = collection.count(query);
+			if (count <= toSkip) {
+				toSkip -= count;
+				return null;
+			}
+		}
+		DBCursor dbCursor = collection.find(query, fields);
+		if (sort != null) {
+			dbCursor.sort(sort);
+		}
+		if (hint instanceof String) {
+			dbCursor.hint((String) hint);
+		} else if (hint instanceof DBObject) {
+			dbCursor.hint((DBObject) hint);
+		}
+		if (toSkip > 0) {
+			dbCursor.skip(toSkip);
+			toSkip = 0;
+		}
+		if (remaining > 0) {
+			dbCursor.limit(remaining);
+		}
+		if (batchSize > 0) {
+			dbCursor.batchSize(batchSize);
+		}
+		return dbCursor;
+	}
+
+}
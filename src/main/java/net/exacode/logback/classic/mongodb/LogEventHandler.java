@@ -0,0 +1,18 @@
+package net.exacode.logback.classic.mongodb;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Receives logging events read by {@link MongoDbLogDao} one at a time.
+ * 
+ * @author mendlik
+ * 
+ */
+public interface LogEventHandler {
+
+	/**
+	 * @return true to receive the next event, false to stop reading
+	 */
+	boolean handle(ILoggingEvent event);
+
+}
@@ -0,0 +1,359 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import net.exacode.logback.classic.mongodb.converter.LoggingEventConverter;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Layout;
+
+import com.mongodb.util.JSON;
+
+/**
+ * Exports events of a time range to a gzip compressed file.
+ * <p>
+ * The time range is split into {@code threads} sub-ranges of equal length,
+ * each read by its own cursor on a separate thread. Readers hand over events
+ * through bounded queues of {@code queueSize} events, so memory use does not
+ * depend on the size of the export. The calling thread merges the queues by
+ * time stamps and writes the output, which is therefore globally ordered.
+ * Readers of later sub-ranges prefetch up to a full queue while earlier ones
+ * are written.
+ * <p>
+ * Output is either NDJSON, one event in the standard document layout per line
+ * formatted by readers, or text formatted by a logback {@link Layout} on the
+ * writing thread.
+ * 
+ * @author mendlik
+ * 
+ */
+public class LogExporter {
+
+	/**
+	 * Summary of a finished export.
+	 */
+	public static class Stats {
+		private final long events;
+		private final long bytes;
+		private final long elapsedMs;
+
+		Stats(long events, long bytes, long elapsedMs) {
+			this.events = events;
+			this.bytes = bytes;
+			this.elapsedMs = elapsedMs;
+		}
+
+		public long getEvents() {
+			return events;
+		}
+
+		/**
+		 * @return size of the output before compression
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		public long getElapsedMs() {
+			return elapsedMs;
+		}
+
+		public double getEventsPerSecond() {
+			return events * 1000.0 / Math.max(1, elapsedMs);
+		}
+
+		@Override
+		public String toString() {
+			return "Exported " + events + " events (" + bytes + " bytes) in "
+					+ elapsedMs + "ms, "
+					+ String.format("%.0f", getEventsPerSecond())
+					+ " events/s";
+		}
+	}
+
+	/**
+	 * Event with its NDJSON line or, for text output, the event itself.
+	 */
+	private static class Record {
+		private final long timeStamp;
+		private final ILoggingEvent event;
+		private final String line;
+
+		Record(long timeStamp, ILoggingEvent event, String line) {
+			this.timeStamp = timeStamp;
+			this.event = event;
+			this.line = line;
+		}
+	}
+
+	private static final Record END = new Record(0, null, null);
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String LINE_SEPARATOR = "\n";
+
+	private final MongoDbLogDao logDao;
+
+	private int threads = 4;
+
+	private int queueSize = 1000;
+
+	private int batchSize = 500;
+
+	private Layout<ILoggingEvent> layout;
+
+	public LogExporter(MongoDbLogDao logDao) {
+		this.logDao = logDao;
+	}
+
+	/**
+	 * Exports events of the time range {@code [from, to)} to the file.
+	 */
+	public Stats export(long from, long to, File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			return export(from, to, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Exports events of the time range {@code [from, to)} to the stream as
+	 * gzip data. The stream is not closed.
+	 */
+	public Stats export(long from, long to, OutputStream out)
+			throws IOException {
+		final long start = System.currentTimeMillis();
+		List<long[]> ranges = split(from, to, threads);
+		List<BlockingQueue<Record>> queues = new ArrayList<BlockingQueue<Record>>();
+		AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		ExecutorService readers = Executors.newFixedThreadPool(ranges.size(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"MongoDbLogExporter-reader");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			for (long[] range : ranges) {
+				BlockingQueue<Record> queue = new ArrayBlockingQueue<Record>(
+						queueSize);
+				queues.add(queue);
+				readers.execute(reader(range[0], range[1], queue, failure));
+			}
+			GZIPOutputStream gzip = new GZIPOutputStream(
+					new FilterOutputStream(out) {
+						@Override
+						public void close() throws IOException {
+							flush();
+						}
+					}, 64 * 1024);
+			CountingOutputStream counter = new CountingOutputStream(gzip);
+			Writer writer = new OutputStreamWriter(new BufferedOutputStream(
+					counter, 64 * 1024), UTF_8);
+			long events = merge(queues, writer);
+			writer.close();
+			if (failure.get() != null) {
+				throw new IOException("Could not read events from MongoDB",
+						failure.get());
+			}
+			return new Stats(events, counter.count, System.currentTimeMillis()
+					- start);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Export was interrupted", e);
+		} finally {
+			readers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writes records of all queues ordered by time stamps. Records of one
+	 * queue are already ordered.
+	 */
+	private long merge(List<BlockingQueue<Record>> queues, Writer writer)
+			throws InterruptedException, IOException {
+		PriorityQueue<Head> heads = new PriorityQueue<Head>(queues.size());
+		for (int i = 0; i < queues.size(); ++i) {
+			Head head = new Head(i, queues.get(i));
+			if (head.advance()) {
+				heads.add(head);
+			}
+		}
+		long events = 0;
+		while (!heads.isEmpty()) {
+			Head head = heads.poll();
+			write(head.record, writer);
+			++events;
+			if (head.advance()) {
+				heads.add(head);
+			}
+		}
+		return events;
+	}
+
+	private void write(Record record, Writer writer) throws IOException {
+		if (record.line != null) {
+			writer.write(record.line);
+			writer.write(LINE_SEPARATOR);
+		} else {
+			writer.write(layout.doLayout(record.event));
+		}
+	}
+
+	private Runnable reader(final long from, final long to,
+			final BlockingQueue<Record> queue,
+			final AtomicReference<RuntimeException> failure) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				LoggingEventConverter converter = new LoggingEventConverter();
+				try {
+					LogEventCursor cursor = logDao.stream(new LogQuery()
+							.from(from).to(to).batchSize(batchSize));
+					try {
+						while (cursor.hasNext()) {
+							ILoggingEvent event = cursor.next();
+							queue.put(layout != null ? new Record(event
+									.getTimeStamp(), event, null) : new Record(
+									event.getTimeStamp(), null, JSON
+											.serialize(converter
+													.convertToDocument(event))));
+						}
+					} finally {
+						cursor.close();
+					}
+				} catch (InterruptedException e) {
+					// export was aborted
+					return;
+				} catch (RuntimeException e) {
+					failure.compareAndSet(null, e);
+				}
+				try {
+					queue.put(END);
+				} catch (InterruptedException e) {
+					// export was aborted
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return up to {@code count} adjacent ranges covering {@code [from, to)}
+	 */
+	static List<long[]> split(long from, long to, int count) {
+		List<long[]> ranges = new ArrayList<long[]>(count);
+		long length = Math.max(1, (to - from + count - 1) / count);
+		for (long start = from; start < to; start += length) {
+			ranges.add(new long[] { start, Math.min(to, start + length) });
+		}
+		if (ranges.isEmpty()) {
+			ranges.add(new long[] { from, to });
+		}
+		return ranges;
+	}
+
+	/**
+	 * Current record of a queue in the merge.
+	 */
+	private static class Head implements Comparable<Head> {
+		private final int index;
+		private final BlockingQueue<Record> queue;
+		private Record record;
+
+		Head(int index, BlockingQueue<Record> queue) {
+			this.index = index;
+			this.queue = queue;
+		}
+
+		/**
+		 * @return false when the queue is exhausted
+		 */
+		boolean advance() throws InterruptedException {
+			record = queue.take();
+			return record != END;
+		}
+
+		@Override
+		public int compareTo(Head other) {
+			if (record.timeStamp != other.record.timeStamp) {
+				return record.timeStamp < other.record.timeStamp ? -1 : 1;
+			}
+			return index - other.index;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			++count;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * @param threads
+	 *            - number of parallel readers, each reading one sub-range
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @param queueSize
+	 *            - maximal number of events buffered per reader
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * @param batchSize
+	 *            - number of documents fetched from the server at once
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param layout
+	 *            - started layout for text output, null for NDJSON
+	 */
+	public void setLayout(Layout<ILoggingEvent> layout) {
+		this.layout = layout;
+	}
+
+}
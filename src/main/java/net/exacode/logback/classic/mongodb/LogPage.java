@@ -0,0 +1,47 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.List;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Page of logging events read by keyset pagination, see
+ * {@link MongoDbLogDao#findPage(String, int)}.
+ * <p>
+ * Tokens are opaque. They refer to the first and the last event of the page,
+ * so pages stay stable while new events are logged.
+ * 
+ * @author mendlik
+ * 
+ */
+public class LogPage {
+
+	private final List<ILoggingEvent> events;
+	private final String nextToken;
+	private final String previousToken;
+
+	LogPage(List<ILoggingEvent> events, String nextToken, String previousToken) {
+		this.events = events;
+		this.nextToken = nextToken;
+		this.previousToken = previousToken;
+	}
+
+	public List<ILoggingEvent> getEvents() {
+		return events;
+	}
+
+	/**
+	 * @return token of the following page or null if this is the last page
+	 */
+	public String getNextToken() {
+		return nextToken;
+	}
+
+	/**
+	 * @return token of the preceding page or null if this is the first page
+	 */
+	public String getPreviousToken() {
+		return previousToken;
+	}
+
+}
@@ -0,0 +1,373 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import net.exacode.logback.classic.mongodb.converter.LoggingEventConverter;
+import net.exacode.logback.classic.mongodb.converter.NameDictionary;
+import ch.qos.logback.classic.Level;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Criteria for reading logging events with
+ * {@link MongoDbLogDao#find(LogQuery)}. All criteria are evaluated by MongoDB,
+ * criteria set together must all match.
+ * <p>
+ * Events matching a time range are ordered by their time stamps, other events
+ * in natural order. Optional parts of events ({@code callerData},
+ * {@code arguments}, {@code throwable} and {@code mdc}) can be left out of
+ * the result, so list views do not transfer data they do not display.
+ * Logger and thread criteria also match names stored as ids of the
+ * converter's {@link NameDictionary}.
+ * 
+ * <pre>
+ * new LogQuery().from(start).minLevel(Level.WARN).loggerPrefix(&quot;net.exacode&quot;)
+ * 		.exclude(LoggingEventConverter.CALLER_DATA_FIELD).limit(50)
+ * </pre>
+ * 
+ * @author mendlik
+ * 
+ */
+public class LogQuery {
+
+	private static final Set<String> OPTIONAL_FIELDS = new LinkedHashSet<String>(
+			Arrays.asList(LoggingEventConverter.CALLER_DATA_FIELD,
+					LoggingEventConverter.ARGUMENTS_FIELD,
+					LoggingEventConverter.THROWABLE_FIELD,
+					LoggingEventConverter.MDC_FIELD));
+
+	private static final String REGEX_SPECIAL_CHARACTERS = "\\^$.|?*+()[]{}";
+
+	private Long from;
+	private Long to;
+	private Set<String> levels;
+	private String loggerPrefix;
+	private String thread;
+	private final Map<String, String> mdc = new LinkedHashMap<String, String>();
+	private Pattern messagePattern;
+	private String messageTemplate;
+	private final Set<String> excludedFields = new LinkedHashSet<String>();
+	private Object hint;
+	private boolean ascending = true;
+	private int offset;
+	private int limit;
+	private int batchSize;
+
+	/**
+	 * Matches events logged at or after the time stamp.
+	 */
+	public LogQuery from(long timestamp) {
+		this.from = timestamp;
+		return this;
+	}
+
+	/**
+	 * Matches events logged before the time stamp.
+	 */
+	public LogQuery to(long timestamp) {
+		this.to = timestamp;
+		return this;
+	}
+
+	/**
+	 * Matches events logged at one of the levels.
+	 */
+	public LogQuery levels(Level... levels) {
+		Set<String> names = new LinkedHashSet<String>();
+		for (Level level : levels) {
+			names.add(level.levelStr);
+		}
+		this.levels = names;
+		return this;
+	}
+
+	/**
+	 * Matches events logged at the threshold or a more severe level.
+	 */
+	public LogQuery minLevel(Level threshold) {
+		List<Level> matching = new ArrayList<Level>();
+		for (Level level : new Level[] { Level.TRACE, Level.DEBUG, Level.INFO,
+				Level.WARN, Level.ERROR }) {
+			if (level.isGreaterOrEqual(threshold)) {
+				matching.add(level);
+			}
+		}
+		return levels(matching.toArray(new Level[matching.size()]));
+	}
+
+	/**
+	 * Matches events of loggers whose names start with the prefix. Anchored
+	 * prefix is evaluated on an index over the logger field.
+	 */
+	public LogQuery loggerPrefix(String prefix) {
+		this.loggerPrefix = prefix;
+		return this;
+	}
+
+	public LogQuery thread(String thread) {
+		this.thread = thread;
+		return this;
+	}
+
+	/**
+	 * Matches events with the MDC property. May be called for more keys.
+	 */
+	public LogQuery mdc(String key, String value) {
+		mdc.put(key, value);
+		return this;
+	}
+
+	/**
+	 * Matches events logged with the message template. Only events stored in
+	 * message template mode are matched.
+	 */
+	public LogQuery messageTemplate(String template) {
+		this.messageTemplate = template;
+		return this;
+	}
+
+	/**
+	 * Matches events whose formatted message contains the text. Events stored
+	 * in message template mode are matched by their template.
+	 */
+	public LogQuery messageContains(String text) {
+		this.messagePattern = Pattern.compile(quote(text));
+		return this;
+	}
+
+	/**
+	 * Matches events whose formatted message matches the regular expression.
+	 * MongoDB evaluates the expression with PCRE syntax.
+	 */
+	public LogQuery messageMatches(String regex) {
+		this.messagePattern = Pattern.compile(regex);
+		return this;
+	}
+
+	/**
+	 * Leaves optional fields out of the read documents.
+	 * 
+	 * @param fields
+	 *            - {@link LoggingEventConverter#CALLER_DATA_FIELD},
+	 *            {@link LoggingEventConverter#ARGUMENTS_FIELD},
+	 *            {@link LoggingEventConverter#THROWABLE_FIELD} or
+	 *            {@link LoggingEventConverter#MDC_FIELD}
+	 * @throws IllegalArgumentException
+	 *             when a field is required to restore an event
+	 */
+	public LogQuery exclude(String... fields) {
+		for (String field : fields) {
+			if (!OPTIONAL_FIELDS.contains(field)) {
+				throw new IllegalArgumentException("Field " + field
+						+ " cannot be excluded, optional fields are: "
+						+ OPTIONAL_FIELDS);
+			}
+			excludedFields.add(field);
+		}
+		return this;
+	}
+
+	/**
+	 * Forces MongoDB to use the index with the name.
+	 */
+	public LogQuery hint(String indexName) {
+		this.hint = indexName;
+		return this;
+	}
+
+	/**
+	 * Forces MongoDB to use the index with the keys.
+	 */
+	public LogQuery hint(DBObject indexKeys) {
+		this.hint = indexKeys;
+		return this;
+	}
+
+	/**
+	 * @param ascending
+	 *            - true for the oldest events first
+	 */
+	public LogQuery ascending(boolean ascending) {
+		this.ascending = ascending;
+		return this;
+	}
+
+	public LogQuery offset(int offset) {
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * @param limit
+	 *            - maximal number of events, 0 for no limit
+	 */
+	public LogQuery limit(int limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * @param batchSize
+	 *            - number of documents fetched at once, 0 for server default
+	 */
+	public LogQuery batchSize(int batchSize) {
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	boolean hasTimeRange() {
+		return from != null || to != null;
+	}
+
+	long getFrom() {
+		return from != null ? from : Long.MIN_VALUE;
+	}
+
+	long getTo() {
+		return to != null ? to : Long.MAX_VALUE;
+	}
+
+	Object getHint() {
+		return hint;
+	}
+
+	boolean isAscending() {
+		return ascending;
+	}
+
+	int getOffset() {
+		return offset;
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return query document using field names of the converter layout
+	 */
+	DBObject toQuery(LoggingEventConverter converter) {
+		BasicDBObject query = new BasicDBObject();
+		if (hasTimeRange()) {
+			BasicDBObject range = new BasicDBObject();
+			if (from != null) {
+				range.append("$gte", new Date(from));
+			}
+			if (to != null) {
+				range.append("$lt", new Date(to));
+			}
+			query.append(
+					converter.getFieldName(LoggingEventConverter.TIME_STAMP_FIELD),
+					range);
+		}
+		if (levels != null) {
+			BasicDBList in = new BasicDBList();
+			in.addAll(levels);
+			query.append(
+					converter.getFieldName(LoggingEventConverter.LEVEL_FIELD),
+					new BasicDBObject("$in", in));
+		}
+		NameDictionary dictionary = converter.getNameDictionary();
+		if (loggerPrefix != null) {
+			Pattern pattern = Pattern.compile("^" + quote(loggerPrefix));
+			query.append(
+					converter.getFieldName(LoggingEventConverter.LOGGER_FIELD),
+					dictionary == null ? pattern : inNameOrIds(pattern,
+							dictionary.findIds(pattern)));
+		}
+		if (thread != null) {
+			Integer id = dictionary == null ? null : dictionary.find(thread);
+			query.append(
+					converter.getFieldName(LoggingEventConverter.THREAD_FIELD),
+					id == null ? thread : inNameOrIds(thread,
+							Collections.singletonList(id)));
+		}
+		String mdcField = converter
+				.getFieldName(LoggingEventConverter.MDC_FIELD);
+		for (Map.Entry<String, String> entry : mdc.entrySet()) {
+			query.append(mdcField + "." + entry.getKey(), entry.getValue());
+		}
+		if (messagePattern != null) {
+			query.append(converter.getMessageFieldName(), messagePattern);
+		}
+		if (messageTemplate != null) {
+			String templateField = converter
+					.getFieldName(LoggingEventConverter.MESSAGE_TEMPLATE_FIELD);
+			if (query.containsField(templateField)) {
+				// the template is also matched by the message pattern
+				query.append(templateField,
+						new BasicDBObject("$regex", messagePattern).append(
+								"$in", Arrays.asList(messageTemplate)));
+			} else {
+				query.append(templateField, messageTemplate);
+			}
+		}
+		return query;
+	}
+
+	/**
+	 * @return projection excluding fields or null when all fields are read
+	 */
+	DBObject toProjection(LoggingEventConverter converter) {
+		if (excludedFields.isEmpty()) {
+			return null;
+		}
+		BasicDBObject projection = new BasicDBObject();
+		for (String field : excludedFields) {
+			projection.append(converter.getFieldName(field), 0);
+		}
+		return projection;
+	}
+
+	/**
+	 * @return sort by time stamps for time ranges and hinted queries, natural
+	 *         order otherwise
+	 */
+	DBObject toSort(LoggingEventConverter converter) {
+		if (hasTimeRange() || hint != null) {
+			return new BasicDBObject(
+					converter.getFieldName(LoggingEventConverter.TIME_STAMP_FIELD),
+					ascending ? 1 : -1);
+		}
+		return new BasicDBObject("$natural", ascending ? 1 : -1);
+	}
+
+	/**
+	 * @return condition matching names stored as they are or as dictionary
+	 *         ids
+	 */
+	private static DBObject inNameOrIds(Object name, List<Integer> ids) {
+		BasicDBList in = new BasicDBList();
+		in.add(name);
+		in.addAll(ids);
+		return new BasicDBObject("$in", in);
+	}
+
+	private static String quote(String text) {
+		StringBuilder quoted = new StringBuilder(text.length() + 8);
+		for (int i = 0; i < text.length(); ++i) {
+			char c = text.charAt(i);
+			if (REGEX_SPECIAL_CHARACTERS.indexOf(c) >= 0) {
+				quoted.append('\\');
+			}
+			quoted.append(c);
+		}
+		return quoted.toString();
+	}
+
+}
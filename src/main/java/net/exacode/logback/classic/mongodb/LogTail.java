@@ -0,0 +1,206 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.exacode.logback.classic.mongodb.converter.LoggingEventConverter;
+
+import org.bson.types.ObjectId;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Live tail of a capped log collection. A single tailable, await-data cursor
+ * waits on the server for new documents and decoded events are pushed to
+ * registered {@link LogTailListener}s.
+ * <p>
+ * The tail remembers {@code _id} of the last read document. When the cursor
+ * dies, e.g. after a reconnect or while the collection is empty, it is
+ * reopened after {@code reconnectDelayMs} and continues after that position.
+ * The position can be passed to a new tail with
+ * {@link MongoDbLogDao#tail(LogQuery, String)} to resume where another tail
+ * stopped.
+ * 
+ * @author mendlik
+ * 
+ */
+public class LogTail {
+
+	private final DBCollection collection;
+	private final DBObject query;
+	private final DBObject fields;
+	private final LoggingEventConverter converter;
+	private final List<LogTailListener> listeners = new CopyOnWriteArrayList<LogTailListener>();
+
+	private long reconnectDelayMs = 1000;
+
+	private volatile ObjectId position;
+	private volatile boolean running;
+	private volatile MongoException lastError;
+	private volatile DBCursor cursor;
+	private Thread thread;
+
+	/**
+	 * @param position
+	 *            - {@code _id} after which events are read, null for the
+	 *            newest document at the time of {@link #start()}
+	 */
+	LogTail(DBCollection collection, DBObject query, DBObject fields,
+			LoggingEventConverter converter, ObjectId position) {
+		this.collection = collection;
+		this.query = query;
+		this.fields = fields;
+		this.converter = converter;
+		this.position = position;
+	}
+
+	public void addListener(LogTailListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(LogTailListener listener) {
+		listeners.remove(listener);
+	}
+
+	public void setReconnectDelayMs(long reconnectDelayMs) {
+		this.reconnectDelayMs = reconnectDelayMs;
+	}
+
+	/**
+	 * Starts the tail thread. Events stored before the start are not pushed
+	 * unless the tail was created with a position.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		if (position == null) {
+			position = newestId();
+		}
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				tailLoop();
+			}
+		}, "MongoDbLogTail-" + collection.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Releases the server side cursor and waits for the tail thread to
+	 * finish.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		closeCursor();
+		thread.interrupt();
+		try {
+			thread.join(reconnectDelayMs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return opaque position of the last pushed event or null if no event
+	 *         was stored yet
+	 */
+	public String getPosition() {
+		ObjectId id = position;
+		return id != null ? id.toString() : null;
+	}
+
+	/**
+	 * @return the last error that killed the cursor or null
+	 */
+	public MongoException getLastError() {
+		return lastError;
+	}
+
+	private void tailLoop() {
+		while (running) {
+			try {
+				cursor = open();
+				while (running && cursor.hasNext()) {
+					DBObject document = cursor.next();
+					position = (ObjectId) document.get("_id");
+					dispatch(converter
+							.convertToLoggingEvent((BasicDBObject) document));
+				}
+			} catch (MongoException e) {
+				if (running) {
+					lastError = e;
+				}
+			} finally {
+				closeCursor();
+			}
+			if (running) {
+				try {
+					Thread.sleep(reconnectDelayMs);
+				} catch (InterruptedException e) {
+					// stop() was called
+				}
+			}
+		}
+	}
+
+	private DBCursor open() {
+		BasicDBObject tailQuery = new BasicDBObject();
+		tailQuery.putAll(query);
+		if (position != null) {
+			tailQuery.put("_id", new BasicDBObject("$gt", position));
+		}
+		return collection.find(tailQuery, fields)
+				.sort(new BasicDBObject("$natural", 1))
+				.addOption(Bytes.QUERYOPTION_TAILABLE)
+				.addOption(Bytes.QUERYOPTION_AWAITDATA);
+	}
+
+	private void dispatch(ILoggingEvent event) {
+		for (LogTailListener listener : listeners) {
+			try {
+				listener.onEvent(event);
+			} catch (RuntimeException e) {
+				// a failing listener must not stop other listeners
+			}
+		}
+	}
+
+	private ObjectId newestId() {
+		DBCursor newest = collection.find(new BasicDBObject(),
+				new BasicDBObject("_id", 1))
+				.sort(new BasicDBObject("$natural", -1)).limit(1);
+		try {
+			return newest.hasNext() ? (ObjectId) newest.next().get("_id")
+					: null;
+		} finally {
+			newest.close();
+		}
+	}
+
+	private void closeCursor() {
+		DBCursor current = cursor;
+		if (current != null) {
+			cursor = null;
+			current.close();
+		}
+	}
+
+}
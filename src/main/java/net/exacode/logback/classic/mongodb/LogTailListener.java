@@ -0,0 +1,19 @@
+package net.exacode.logback.classic.mongodb;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Receives logging events pushed by a {@link LogTail} as they are written.
+ * 
+ * @author mendlik
+ * 
+ */
+public interface LogTailListener {
+
+	/**
+	 * Called on the tail thread. Should return quickly, events stored in the
+	 * meantime wait in the cursor.
+	 */
+	void onEvent(ILoggingEvent event);
+
+}
@@ -1,28 +1,118 @@
 package net.exacode.logback.classic.mongodb;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.bson.types.ObjectId;
+
+import net.exacode.logback.classic.CallerDataPolicy;
 import net.exacode.logback.classic.mongodb.converter.LoggingEventConverter;
+import net.exacode.logback.classic.mongodb.converter.NameDictionary;
+import net.exacode.logback.classic.mongodb.converter.StackTraceStore;
+import net.exacode.logback.classic.mongodb.converter.ThrowableLimits;
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
 
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBPortPool;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoException;
 import com.mongodb.ServerAddress;
 import com.mongodb.WriteConcern;
+import com.mongodb.WriteConcernException;
 
 /**
  * MongoDB appender.
+ * <p>
+ * By default every event is inserted on the logging thread. In asynchronous
+ * mode events are put into a bounded queue and inserted in batches by
+ * background writer threads.
+ * <p>
+ * When {@code journalDirectory} is set, events that could not be delivered
+ * are spilled to a local {@link SpillJournal} and
+ * replayed in order in the background once MongoDB is reachable again.
+ * <p>
+ * With {@code lazyConnect} the appender starts immediately and connects to
+ * MongoDB in the background, see {@link #isReady()}. Until then events are
+ * spilled to the journal or, without a journal, queued without blocking and
+ * dropped when the queue is full.
+ * <p>
+ * With {@code circuitBreakerEnabled} writes fail fast after repeated failures
+ * (see {@link CircuitBreaker}). Events that could not be written go to the
+ * spill journal, or to the attached fallback appenders when there is no
+ * journal. Only network failures and timeouts are treated as an outage,
+ * documents rejected by the server are reported as errors.
+ * <p>
+ * Write concern may be chosen per level, e.g. {@code UNACKNOWLEDGED} for
+ * {@code DEBUG} and {@code JOURNALED} for {@code ERROR}. Batches are then split
+ * into groups sharing the same write concern.
+ * <p>
+ * With {@code partitionPeriod} events are written to time-bucketed
+ * collections, e.g. {@code logs_2026_10_17}, instead of a single capped
+ * collection. Buckets older than {@code partitionRetentionMs} are dropped in
+ * the background.
+ * <p>
+ * Indexes declared with {@code <index>} elements (see {@link IndexDefinition})
+ * are built in the background after the connection is established, and on
+ * every new time bucket.
+ * <p>
+ * With {@code stackTraceDeduplication} each unique stack trace is stored once
+ * in a side collection (see {@link StackTraceStore}) and events refer to it by
+ * fingerprint.
+ * <p>
+ * With {@code nameDictionary} logger, thread and caller class names are
+ * stored as integer ids of a side collection (see {@link NameDictionary}).
+ * <p>
+ * With {@code rollup} events are counted per minute by level and logger, and
+ * errors by exception class (see {@link RollupCounters}). Counts are added to
+ * documents of a rollup collection every {@code rollupFlushIntervalMs}.
+ * <p>
+ * With {@code burstWindowMs} repeated events are collapsed into one document
+ * with {@code count}, {@code firstTimestamp} and {@code lastTimestamp} (see
+ * {@link BurstCollapser}).
+ * <p>
+ * With {@code messageTemplate} message templates are stored with arguments
+ * and formatted only when events are read.
+ * <p>
+ * With {@code callerDataPolicy} caller data is captured only for some events
+ * (see {@link CallerDataPolicy}).
  * 
  * @author mendlik
  */
-public class MongoDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+public class MongoDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+		implements AppenderAttachable<ILoggingEvent> {
 
 	protected MongoClient mongo;
 	protected LoggingEventConverter loggingEventConverter;
 	protected MongoDbLogDao logDao;
+	protected CollectionPartitioner partitioner;
+	protected AsyncBatchWriter asyncWriter;
+	protected SpillJournal journal;
+	protected ScheduledExecutorService scheduler;
+	protected ScheduledExecutorService probeScheduler;
+	protected CircuitBreaker circuitBreaker;
+	protected IndexBuilder indexBuilder;
+	protected StackTraceStore stackTraceStore;
+	protected RollupCounters rollupCounters;
+	protected BurstCollapser burstCollapser;
 
 	private String host = "localhost";
 	private int port = 27017;
@@ -44,11 +134,77 @@ public class MongoDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 	private boolean capped = true;
 	private int cappedSize = 1024 * 1024; // bytes
 	private boolean includeCallerData = true;
+	private CallerDataPolicy callerDataPolicy = new CallerDataPolicy();
+	private boolean compactSchema;
+	private boolean messageTemplate;
+	private int maxArgumentLength = 1024;
+	private int maxThrowableDepth = 16;
+	private int maxThrowableFrames = 256;
+	private int throwableTailFrames = 16;
+	private int maxThrowableTotalFrames = 1024;
+	private int maxDocumentSize = LoggingEventConverter.MAX_DOCUMENT_SIZE;
+	private boolean stackTraceDeduplication;
+	private String stackTraceCollectionName;
+	private int stackTraceCacheSize = 1000;
+	private boolean nameDictionary;
+	private String nameDictionaryCollectionName;
+	private int nameDictionaryCacheSize = 10000;
+	private long stackTraceFlushIntervalMs = 5000;
+	private boolean rollup;
+	private String rollupCollectionName;
+	private long rollupFlushIntervalMs = 10000;
+	private long burstWindowMs;
+	private int maxBursts = 1000;
+
+	private boolean async;
+	private int queueSize = 10000;
+	private int batchSize = 100;
+	private long maxBatchDelayMs = 1000;
+	private int writerThreads = 1;
+	private long shutdownTimeoutMs = 10000;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private long blockTimeoutMs;
+	private Level dropThreshold = Level.WARN;
+	private String journalDirectory;
+	private int journalSegmentSize = 8 * 1024 * 1024; // bytes
+	private long journalReplayIntervalMs = 1000;
+
+	private final Map<Level, String> levelWriteConcernNames = new HashMap<Level, String>();
+	private final Map<Level, WriteConcern> levelWriteConcerns = new HashMap<Level, WriteConcern>();
+	private WriteConcern writeConcern;
+	private boolean circuitBreakerEnabled;
+	private int failureThreshold = 5;
+	private long slowWriteThresholdMs;
+	private long probeIntervalMs = 10000;
+	private boolean lazyConnect;
+	private long initialRetryDelayMs = 500;
+	private long maxRetryDelayMs = 60000;
+	private PartitionPeriod partitionPeriod;
+	private long partitionRetentionMs;
+	private long retentionCheckIntervalMs = 60 * 60 * 1000;
+	private final List<IndexDefinition> indexes = new ArrayList<IndexDefinition>();
+	private final DropCounters circuitDropCounters = new DropCounters();
+
+	/**
+	 * Converts spilled events. It has neither a name dictionary nor a stack
+	 * trace store, so journaling never waits for MongoDB; journaled events
+	 * keep plain names and stack traces.
+	 */
+	private LoggingEventConverter spillConverter;
+
+	private volatile boolean ready;
+	private volatile boolean spilling;
 
 	@Override
 	public void start() {
+		if (lazyConnect) {
+			startInBackground();
+			return;
+		}
 		try {
 			connectToMongoDB();
+			startBackgroundServices();
+			onConnected();
 			super.start();
 		} catch (UnknownHostException e) {
 			addError(
@@ -57,16 +213,120 @@ public class MongoDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 		}
 	}
 
+	/**
+	 * Starts the appender immediately. Connection, authentication and
+	 * collection setup are retried in the background with exponential backoff.
+	 * Meanwhile events are spilled to the journal or, without a journal, held
+	 * in the asynchronous queue without ever blocking the logging thread.
+	 */
+	private void startInBackground() {
+		startBackgroundServices();
+		if (journal != null) {
+			// writers spill events to the journal until connected
+			asyncWriter.start(writerThreads, "MongoDbAppender-" + getName());
+		}
+		super.start();
+		connectInBackground(0, initialRetryDelayMs);
+	}
+
+	private void connectInBackground(long delayMs, final long retryDelayMs) {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (!isStarted()) {
+					return;
+				}
+				try {
+					connectToMongoDB();
+					onConnected();
+					addInfo("Connected to MongoDB server: " + host + ":" + port);
+				} catch (UnknownHostException e) {
+					retryConnect(retryDelayMs, e);
+				} catch (MongoException e) {
+					retryConnect(retryDelayMs, e);
+				}
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	private void retryConnect(long retryDelayMs, Exception cause) {
+		addWarn("Error connecting to MongoDB server: " + host + ":" + port
+				+ ", retrying in " + retryDelayMs + "ms", cause);
+		if (mongo != null) {
+			mongo.close();
+			mongo = null;
+		}
+		connectInBackground(retryDelayMs,
+				Math.min(retryDelayMs * 2, maxRetryDelayMs));
+	}
+
+	/**
+	 * @return number of events on the given level dropped since the last
+	 *         summary of dropped events was written
+	 */
+	public long getDroppedEvents(Level level) {
+		long dropped = circuitDropCounters.get(level);
+		return asyncWriter == null ? dropped : dropped
+				+ asyncWriter.getDropCounters().get(level);
+	}
+
+	/**
+	 * @return true if connection with MongoDB is established and the log
+	 *         collection is set up
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
 	private void connectToMongoDB() throws UnknownHostException {
+		buildWriteConcerns();
 		mongo = new MongoClient(new ServerAddress(host, port), buildOptions());
 		DB db = mongo.getDB(dbName);
 		db.getStats(); // check DB connection, throws exception otherwise
 		if (username != null && password != null) {
 			db.authenticate(username, password.toCharArray());
 		}
+		loggingEventConverter = createConverter();
+		if (stackTraceDeduplication) {
+			String tracesCollectionName = stackTraceCollectionName != null ? stackTraceCollectionName
+					: collectionName + "_stacktraces";
+			stackTraceStore = new StackTraceStore(
+					db.getCollection(tracesCollectionName), stackTraceCacheSize);
+			stackTraceStore.setContext(getContext());
+			loggingEventConverter.setStackTraceStore(stackTraceStore);
+		}
+		if (nameDictionary) {
+			NameDictionary dictionary = new NameDictionary(
+					db.getCollection(nameDictionaryCollectionName != null ? nameDictionaryCollectionName
+							: collectionName + "_names"),
+					nameDictionaryCacheSize);
+			dictionary.setContext(getContext());
+			dictionary.createIndex();
+			loggingEventConverter.setNameDictionary(dictionary);
+		}
+		if (rollupCounters != null) {
+			rollupCounters.setCollection(db
+					.getCollection(rollupCollectionName != null ? rollupCollectionName
+							: collectionName + "_rollup"));
+		}
+		if (partitionPeriod != null) {
+			// buckets are bounded by the retention instead of capped size
+			partitioner = new CollectionPartitioner(db,
+					collectionName, partitionPeriod);
+			partitioner
+					.setRolloverListener(new CollectionPartitioner.RolloverListener() {
+						@Override
+						public void rolledOver(DBCollection collection) {
+							if (indexBuilder != null) {
+								indexBuilder.build(collection);
+							}
+						}
+					});
+			logDao = new MongoDbLogDao(partitioner, loggingEventConverter);
+			return;
+		}
 		DBCollection eventsCollection = db.getCollection(collectionName);
-		logDao = new MongoDbLogDao(eventsCollection, new LoggingEventConverter(
-				includeCallerData));
+		logDao = new MongoDbLogDao(eventsCollection, loggingEventConverter);
 		if (capped) {
 			// TODO: At the moment there is easy way to convert capped
 			// collection back to normal
@@ -74,6 +334,222 @@ public class MongoDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 		}
 	}
 
+	/**
+	 * @return converter without side collections, which need a connection
+	 */
+	private LoggingEventConverter createConverter() {
+		LoggingEventConverter converter = new LoggingEventConverter(
+				includeCallerData, compactSchema);
+		converter.setMessageTemplate(messageTemplate);
+		converter.getArgumentEncoders().setMaxLength(maxArgumentLength);
+		ThrowableLimits throwableLimits = converter.getThrowableLimits();
+		throwableLimits.setMaxDepth(maxThrowableDepth);
+		throwableLimits.setMaxFrames(maxThrowableFrames);
+		throwableLimits.setTailFrames(throwableTailFrames);
+		throwableLimits.setMaxTotalFrames(maxThrowableTotalFrames);
+		converter.setMaxDocumentSize(maxDocumentSize);
+		return converter;
+	}
+
+	private void startBackgroundServices() {
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "MongoDbAppender-"
+								+ getName());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		if (journalDirectory != null) {
+			openJournal();
+		}
+		if (rollup) {
+			rollupCounters = new RollupCounters();
+			rollupCounters.setContext(getContext());
+		}
+		if (async || lazyConnect) {
+			asyncWriter = new AsyncBatchWriter(
+					new AsyncBatchWriter.BatchHandler() {
+						@Override
+						public void handle(List<ILoggingEvent> batch) {
+							write(batch);
+						}
+					}, queueSize, batchSize, maxBatchDelayMs);
+			asyncWriter.setContext(getContext());
+			asyncWriter.setOverflowPolicy(overflowPolicy);
+			asyncWriter.setBlockTimeoutMs(blockTimeoutMs);
+			asyncWriter.setDropThreshold(dropThreshold);
+		}
+		if (burstWindowMs > 0) {
+			startBurstCollapser();
+		}
+	}
+
+	/**
+	 * Starts writing queued and journaled events.
+	 */
+	private void onConnected() {
+		if (!indexes.isEmpty()) {
+			startIndexBuilder();
+		}
+		ready = true;
+		if (circuitBreakerEnabled) {
+			startCircuitBreaker();
+		}
+		if (asyncWriter != null) {
+			asyncWriter.start(writerThreads, "MongoDbAppender-" + getName());
+		}
+		if (journal != null) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					replayJournal();
+				}
+			}, 0, journalReplayIntervalMs, TimeUnit.MILLISECONDS);
+		}
+		if (stackTraceStore != null) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flushStackTraceCounts();
+				}
+			}, stackTraceFlushIntervalMs, stackTraceFlushIntervalMs,
+					TimeUnit.MILLISECONDS);
+		}
+		if (rollupCounters != null) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					flushRollup();
+				}
+			}, rollupFlushIntervalMs, rollupFlushIntervalMs,
+					TimeUnit.MILLISECONDS);
+		}
+		if (partitionPeriod != null && partitionRetentionMs > 0) {
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					dropExpiredPartitions();
+				}
+			}, 0, retentionCheckIntervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void startBurstCollapser() {
+		burstCollapser = new BurstCollapser(new BurstCollapser.Sink() {
+			@Override
+			public void emit(ILoggingEvent event) {
+				deliver(event);
+			}
+		}, burstWindowMs, maxBursts);
+		burstCollapser.setContext(getContext());
+		long period = Math.max(burstWindowMs / 4, 10);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				burstCollapser.flush();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private void startIndexBuilder() {
+		IndexBuilder builder = new IndexBuilder(indexes, compactSchema);
+		builder.setContext(getContext());
+		builder.start("MongoDbAppender-" + getName());
+		indexBuilder = builder;
+		if (partitioner == null) {
+			builder.build(mongo.getDB(dbName).getCollection(collectionName));
+			return;
+		}
+		// later time buckets are indexed when events start going to them, the
+		// current one may have been rolled over to before the builder started
+		DBCollection current = partitioner.currentCollection();
+		if (current != null) {
+			builder.build(current);
+		}
+	}
+
+	private void flushStackTraceCounts() {
+		try {
+			stackTraceStore.flush();
+		} catch (MongoException e) {
+			addError("Could not update stack trace counters", e);
+		}
+	}
+
+	private void flushRollup() {
+		try {
+			rollupCounters.flush();
+		} catch (MongoException e) {
+			addError("Could not update rollup counters", e);
+		}
+	}
+
+	private void dropExpiredPartitions() {
+		try {
+			List<String> dropped = logDao.dropPartitionsOlderThan(System
+					.currentTimeMillis() - partitionRetentionMs);
+			if (!dropped.isEmpty()) {
+				addInfo("Dropped expired log collections: " + dropped);
+			}
+		} catch (MongoException e) {
+			addError("Could not drop expired log collections", e);
+		}
+	}
+
+	private void startCircuitBreaker() {
+		circuitBreaker = new CircuitBreaker(failureThreshold,
+				slowWriteThresholdMs, probeIntervalMs);
+		circuitBreaker.setContext(getContext());
+		// a slow replay or flush must not delay recovery
+		probeScheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "MongoDbAppender-"
+								+ getName() + "-probe");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		probeScheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				probe();
+			}
+		}, probeIntervalMs, Math.max(probeIntervalMs / 10, 100),
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void probe() {
+		if (!circuitBreaker.tryProbe()) {
+			return;
+		}
+		final long startMs = System.currentTimeMillis();
+		try {
+			mongo.getDB(dbName).command("ping").throwOnError();
+			circuitBreaker.onSuccess(System.currentTimeMillis() - startMs);
+		} catch (MongoException e) {
+			circuitBreaker.onFailure(e);
+		}
+	}
+
+	private void openJournal() {
+		SpillJournal spillJournal = new SpillJournal(
+				new File(journalDirectory), journalSegmentSize);
+		spillJournal.setContext(getContext());
+		try {
+			spillJournal.open();
+		} catch (IOException e) {
+			addError("Could not open spill journal in: " + journalDirectory, e);
+			return;
+		}
+		spillConverter = createConverter();
+		journal = spillJournal;
+	}
+
 	private MongoClientOptions buildOptions() {
 		MongoClientOptions.Builder builder = MongoClientOptions
 				.builder()
@@ -83,21 +559,325 @@ public class MongoDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 				.maxWaitTime(maxWaitTime).connectTimeout(connectTimeout)
 				.socketTimeout(socketTimeout)
 				.autoConnectRetry(autoConnectRetry)
-				.writeConcern(new WriteConcern(w, wtimeout, fsync, j));
+				.writeConcern(writeConcern);
 		return builder.build();
 	}
 
+	/**
+	 * Builds the default write concern and write concerns assigned to levels.
+	 */
+	private void buildWriteConcerns() {
+		writeConcern = new WriteConcern(w, wtimeout, fsync, j);
+		levelWriteConcerns.clear();
+		for (Map.Entry<Level, String> entry : levelWriteConcernNames
+				.entrySet()) {
+			WriteConcern concern = WriteConcern.valueOf(entry.getValue());
+			if (concern == null) {
+				addError("Unknown write concern for level " + entry.getKey()
+						+ ": " + entry.getValue());
+			} else {
+				levelWriteConcerns.put(entry.getKey(), concern);
+			}
+		}
+	}
+
 	@Override
 	protected void append(ILoggingEvent event) {
-		logDao.append(event);
+		if (includeCallerData) {
+			event = callerDataPolicy.apply(event);
+		}
+		if (rollupCounters != null) {
+			rollupCounters.record(event);
+		}
+		if (burstCollapser != null) {
+			prepareForDeferredProcessing(event);
+			if (burstCollapser.collapse(event)) {
+				return;
+			}
+		}
+		deliver(event);
+	}
+
+	/**
+	 * Writes the event directly or hands it over to the asynchronous writer.
+	 */
+	private void deliver(ILoggingEvent event) {
+		if (asyncWriter == null) {
+			write(Collections.singletonList(event));
+			return;
+		}
+		prepareForDeferredProcessing(event);
+		if (!ready && journal == null) {
+			// writers wait for the connection, never block the caller
+			asyncWriter.offer(event);
+			return;
+		}
+		try {
+			asyncWriter.enqueue(event);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			addWarn("Interrupted while queueing event for MongoDB", e);
+		}
+	}
+
+	/**
+	 * Captures all thread-bound data while still on the logging thread. Stored
+	 * message templates need no formatting, only thread name and MDC are
+	 * captured then. Caller data was already captured by the
+	 * {@link CallerDataPolicy}.
+	 */
+	private void prepareForDeferredProcessing(ILoggingEvent event) {
+		if (messageTemplate) {
+			event.getThreadName();
+			event.getMDCPropertyMap();
+		} else {
+			event.prepareForDeferredProcessing();
+		}
+	}
+
+	/**
+	 * Inserts events into MongoDB. Events are spilled to the journal when
+	 * MongoDB is not reachable or when previously spilled events still wait for
+	 * replay, so the original order is preserved.
+	 */
+	private void write(List<ILoggingEvent> events) {
+		if (!ready) {
+			// lazily connecting with a journal
+			spill(events, null);
+			return;
+		}
+		if (levelWriteConcerns.isEmpty()) {
+			write(events, writeConcern);
+			return;
+		}
+		// consecutive runs keep the log order of a capped collection
+		int runStart = 0;
+		WriteConcern runConcern = concernOf(events.get(0));
+		for (int i = 1; i < events.size(); ++i) {
+			WriteConcern concern = concernOf(events.get(i));
+			if (!concern.equals(runConcern)) {
+				write(events.subList(runStart, i), runConcern);
+				runStart = i;
+				runConcern = concern;
+			}
+		}
+		write(events.subList(runStart, events.size()), runConcern);
+	}
+
+	private WriteConcern concernOf(ILoggingEvent event) {
+		WriteConcern concern = levelWriteConcerns.get(event.getLevel());
+		return concern != null ? concern : writeConcern;
+	}
+
+	private void write(List<ILoggingEvent> events, WriteConcern concern) {
+		SpillJournal spillJournal = journal;
+		if (spillJournal == null) {
+			insert(events, wrap(events), concern);
+			return;
+		}
+		// no other event may be spilled between the check and the insert
+		synchronized (spillJournal) {
+			if (!spillJournal.isEmpty()) {
+				spill(events, null);
+				return;
+			}
+			insert(events, wrap(events), concern);
+		}
+	}
+
+	private List<DBObject> wrap(List<ILoggingEvent> events) {
+		List<DBObject> documents = new ArrayList<DBObject>(events.size());
+		for (ILoggingEvent event : events) {
+			documents.add(loggingEventConverter.wrap(event));
+		}
+		return documents;
+	}
+
+	private void insert(List<ILoggingEvent> events, List<DBObject> documents,
+			WriteConcern concern) {
+		if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+			divert(events, documents, null);
+			return;
+		}
+		final long startMs = System.currentTimeMillis();
+		try {
+			logDao.insert(documents, concern);
+		} catch (MongoException e) {
+			if (!isOutage(e)) {
+				// documents were rejected, writing them again would fail too
+				throw e;
+			}
+			if (circuitBreaker != null) {
+				circuitBreaker.onFailure(e);
+			}
+			divert(events, documents, e);
+			return;
+		}
+		if (circuitBreaker != null) {
+			circuitBreaker.onSuccess(System.currentTimeMillis() - startMs);
+		}
+		if (circuitDropCounters.total() > 0) {
+			String summary = circuitDropCounters.drainSummary();
+			if (summary != null) {
+				addWarn(summary + " while the circuit was open");
+			}
+		}
+	}
+
+	/**
+	 * @return true if the failure means that MongoDB is not reachable or does
+	 *         not respond in time, false if it rejected the documents
+	 */
+	static boolean isOutage(MongoException e) {
+		if (e instanceof MongoException.Network
+				|| e instanceof DBPortPool.NoMoreConnection) {
+			return true;
+		}
+		return e instanceof WriteConcernException
+				&& ((WriteConcernException) e).getCommandResult().getBoolean(
+						"wtimeout");
+	}
+
+	/**
+	 * Hands over events that were not written to MongoDB to the spill journal
+	 * or to the fallback appenders. Failure is rethrown when there is no
+	 * fallback, events rejected by an open circuit are then dropped and
+	 * counted.
+	 */
+	private void divert(List<ILoggingEvent> events, List<DBObject> documents,
+			MongoException cause) {
+		if (journal != null) {
+			if (!spilling) {
+				addWarn("MongoDB is not available, spilling events to journal: "
+						+ journalDirectory, cause);
+			}
+			spill(events, documents);
+		} else if (aai.iteratorForAppenders().hasNext()) {
+			for (ILoggingEvent event : events) {
+				aai.appendLoopOnAppenders(event);
+			}
+		} else if (cause != null) {
+			throw cause;
+		} else {
+			for (ILoggingEvent event : events) {
+				if (circuitDropCounters.record(event.getLevel())) {
+					addWarn("Circuit is open and there is neither a journal "
+							+ "nor a fallback appender, dropping events");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Appends events to the journal. Documents of a failed insert, if any,
+	 * only provide the {@code _id} assigned by the driver.
+	 */
+	private void spill(List<ILoggingEvent> events, List<DBObject> inserted) {
+		spilling = true;
+		List<DBObject> documents = new ArrayList<DBObject>(events.size());
+		for (int i = 0; i < events.size(); ++i) {
+			DBObject document = spillConverter.wrap(events.get(i));
+			Object id = inserted != null ? inserted.get(i).get("_id") : null;
+			// replay of a partly inserted batch must not duplicate events
+			document.put("_id", id != null ? id : new ObjectId());
+			documents.add(document);
+		}
+		try {
+			journal.append(documents);
+		} catch (IOException e) {
+			addError("Could not spill " + documents.size()
+					+ " events to journal: " + journalDirectory, e);
+		}
+	}
+
+	private void replayJournal() {
+		if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+			return;
+		}
+		try {
+			SpillJournal.Batch batch;
+			while ((batch = journal.read(batchSize)) != null) {
+				final long startMs = System.currentTimeMillis();
+				try {
+					logDao.insert(batch.getDocuments(),
+							writeConcern.continueOnErrorForInsert(true));
+				} catch (MongoException.DuplicateKey e) {
+					// part of the batch was inserted before the connection was
+					// lost, the rest was inserted now
+				} catch (MongoException e) {
+					if (isOutage(e)) {
+						if (circuitBreaker != null) {
+							circuitBreaker.onFailure(e);
+						}
+						// keep the batch for the next replay
+						return;
+					}
+					addError("MongoDB rejected " + batch.getDocuments().size()
+							+ " journaled events, skipping them", e);
+				}
+				if (circuitBreaker != null) {
+					// MongoDB answered, even when it rejected the batch
+					circuitBreaker.onSuccess(System.currentTimeMillis()
+							- startMs);
+				}
+				journal.commit(batch);
+			}
+			if (spilling) {
+				spilling = false;
+				addInfo("Spill journal replayed to MongoDB");
+			}
+		} catch (RuntimeException e) {
+			addError("Could not replay spill journal: " + journalDirectory, e);
+		}
 	}
 
 	@Override
 	public void stop() {
+		super.stop();
+		if (burstCollapser != null) {
+			if (asyncWriter != null || ready) {
+				burstCollapser.flushAll();
+			}
+			burstCollapser = null;
+		}
+		if (asyncWriter != null) {
+			asyncWriter.stop(shutdownTimeoutMs);
+			asyncWriter = null;
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if (probeScheduler != null) {
+			probeScheduler.shutdownNow();
+			probeScheduler = null;
+		}
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+		circuitBreaker = null;
+		if (indexBuilder != null) {
+			indexBuilder.stop();
+			indexBuilder = null;
+		}
+		if (stackTraceStore != null) {
+			if (ready) {
+				flushStackTraceCounts();
+			}
+			stackTraceStore = null;
+		}
+		if (rollupCounters != null) {
+			if (ready) {
+				flushRollup();
+			}
+			rollupCounters = null;
+		}
 		if (mongo != null) {
 			mongo.close();
 		}
-		super.stop();
+		ready = false;
+		aai.detachAndStopAllAppenders();
 	}
 
 	public void setHost(String host) {
@@ -165,6 +945,26 @@ public class MongoDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 		this.wtimeout = wtimeout;
 	}
 
+	public void setTraceWriteConcern(String writeConcern) {
+		levelWriteConcernNames.put(Level.TRACE, writeConcern);
+	}
+
+	public void setDebugWriteConcern(String writeConcern) {
+		levelWriteConcernNames.put(Level.DEBUG, writeConcern);
+	}
+
+	public void setInfoWriteConcern(String writeConcern) {
+		levelWriteConcernNames.put(Level.INFO, writeConcern);
+	}
+
+	public void setWarnWriteConcern(String writeConcern) {
+		levelWriteConcernNames.put(Level.WARN, writeConcern);
+	}
+
+	public void setErrorWriteConcern(String writeConcern) {
+		levelWriteConcernNames.put(Level.ERROR, writeConcern);
+	}
+
 	public void setCapped(boolean capped) {
 		this.capped = capped;
 	}
@@ -177,4 +977,300 @@ public class MongoDbAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 		this.includeCallerData = includeCallerData;
 	}
 
+	/**
+	 * @param callerDataPolicy
+	 *            - selects events whose caller data is stored when
+	 *            {@code includeCallerData} is enabled, other events are stored
+	 *            without caller data
+	 */
+	public void setCallerDataPolicy(CallerDataPolicy callerDataPolicy) {
+		this.callerDataPolicy = callerDataPolicy;
+	}
+
+	/**
+	 * Stores events with short keys and without default values, see
+	 * {@link LoggingEventConverter}.
+	 */
+	public void setCompactSchema(boolean compactSchema) {
+		this.compactSchema = compactSchema;
+	}
+
+	/**
+	 * Stores message templates with arguments instead of formatted messages,
+	 * so messages are formatted only when events are read.
+	 */
+	public void setMessageTemplate(boolean messageTemplate) {
+		this.messageTemplate = messageTemplate;
+	}
+
+	/**
+	 * @param maxArgumentLength
+	 *            - maximal number of characters stored of a string argument or
+	 *            of {@code toString()} of other arguments
+	 */
+	public void setMaxArgumentLength(int maxArgumentLength) {
+		this.maxArgumentLength = maxArgumentLength;
+	}
+
+	/**
+	 * @param maxThrowableDepth
+	 *            - maximal number of levels of causes and suppressed
+	 *            exceptions stored below the logged throwable
+	 */
+	public void setMaxThrowableDepth(int maxThrowableDepth) {
+		this.maxThrowableDepth = maxThrowableDepth;
+	}
+
+	/**
+	 * @param maxThrowableFrames
+	 *            - maximal number of frames stored of a throwable, frames in
+	 *            the middle are omitted
+	 */
+	public void setMaxThrowableFrames(int maxThrowableFrames) {
+		this.maxThrowableFrames = maxThrowableFrames;
+	}
+
+	/**
+	 * @param throwableTailFrames
+	 *            - number of bottom frames kept when frames are omitted
+	 */
+	public void setThrowableTailFrames(int throwableTailFrames) {
+		this.throwableTailFrames = throwableTailFrames;
+	}
+
+	/**
+	 * @param maxThrowableTotalFrames
+	 *            - maximal number of frames stored of a throwable with all its
+	 *            causes and suppressed exceptions
+	 */
+	public void setMaxThrowableTotalFrames(int maxThrowableTotalFrames) {
+		this.maxThrowableTotalFrames = maxThrowableTotalFrames;
+	}
+
+	/**
+	 * @param maxDocumentSize
+	 *            - events that could exceed the size are stored truncated
+	 */
+	public void setMaxDocumentSize(int maxDocumentSize) {
+		this.maxDocumentSize = maxDocumentSize;
+	}
+
+	public void setStackTraceDeduplication(boolean stackTraceDeduplication) {
+		this.stackTraceDeduplication = stackTraceDeduplication;
+	}
+
+	/**
+	 * @param stackTraceCollectionName
+	 *            - side collection of unique stack traces, by default the log
+	 *            collection name followed by {@code _stacktraces}
+	 */
+	public void setStackTraceCollectionName(String stackTraceCollectionName) {
+		this.stackTraceCollectionName = stackTraceCollectionName;
+	}
+
+	public void setStackTraceCacheSize(int stackTraceCacheSize) {
+		this.stackTraceCacheSize = stackTraceCacheSize;
+	}
+
+	public void setStackTraceFlushIntervalMs(long stackTraceFlushIntervalMs) {
+		this.stackTraceFlushIntervalMs = stackTraceFlushIntervalMs;
+	}
+
+	/**
+	 * Stores logger, thread and caller class names as ids of a
+	 * {@link NameDictionary}.
+	 */
+	public void setNameDictionary(boolean nameDictionary) {
+		this.nameDictionary = nameDictionary;
+	}
+
+	/**
+	 * @param nameDictionaryCollectionName
+	 *            - side collection of names, by default the log collection
+	 *            name followed by {@code _names}
+	 */
+	public void setNameDictionaryCollectionName(
+			String nameDictionaryCollectionName) {
+		this.nameDictionaryCollectionName = nameDictionaryCollectionName;
+	}
+
+	/**
+	 * @param nameDictionaryCacheSize
+	 *            - maximal number of names cached in memory
+	 */
+	public void setNameDictionaryCacheSize(int nameDictionaryCacheSize) {
+		this.nameDictionaryCacheSize = nameDictionaryCacheSize;
+	}
+
+	/**
+	 * @param rollup
+	 *            - true to count events per minute into a rollup collection
+	 */
+	public void setRollup(boolean rollup) {
+		this.rollup = rollup;
+	}
+
+	/**
+	 * @param rollupCollectionName
+	 *            - name of the rollup collection, defaults to
+	 *            {@code <collectionName>_rollup}
+	 */
+	public void setRollupCollectionName(String rollupCollectionName) {
+		this.rollupCollectionName = rollupCollectionName;
+	}
+
+	public void setRollupFlushIntervalMs(long rollupFlushIntervalMs) {
+		this.rollupFlushIntervalMs = rollupFlushIntervalMs;
+	}
+
+	/**
+	 * @param burstWindowMs
+	 *            - time in which repeated events are collapsed, 0 to write
+	 *            every event
+	 */
+	public void setBurstWindowMs(long burstWindowMs) {
+		this.burstWindowMs = burstWindowMs;
+	}
+
+	/**
+	 * @param maxBursts
+	 *            - maximal number of bursts collapsed at once, other events
+	 *            are written directly
+	 */
+	public void setMaxBursts(int maxBursts) {
+		this.maxBursts = maxBursts;
+	}
+
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void setMaxBatchDelayMs(long maxBatchDelayMs) {
+		this.maxBatchDelayMs = maxBatchDelayMs;
+	}
+
+	public void setWriterThreads(int writerThreads) {
+		this.writerThreads = writerThreads;
+	}
+
+	public void setShutdownTimeoutMs(long shutdownTimeoutMs) {
+		this.shutdownTimeoutMs = shutdownTimeoutMs;
+	}
+
+	public void setJournalDirectory(String journalDirectory) {
+		this.journalDirectory = journalDirectory;
+	}
+
+	public void setJournalSegmentSize(int journalSegmentSize) {
+		this.journalSegmentSize = journalSegmentSize;
+	}
+
+	public void setJournalReplayIntervalMs(long journalReplayIntervalMs) {
+		this.journalReplayIntervalMs = journalReplayIntervalMs;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public void setBlockTimeoutMs(long blockTimeoutMs) {
+		this.blockTimeoutMs = blockTimeoutMs;
+	}
+
+	public void setDropThreshold(Level dropThreshold) {
+		this.dropThreshold = dropThreshold;
+	}
+
+	public void setCircuitBreakerEnabled(boolean circuitBreakerEnabled) {
+		this.circuitBreakerEnabled = circuitBreakerEnabled;
+	}
+
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public void setSlowWriteThresholdMs(long slowWriteThresholdMs) {
+		this.slowWriteThresholdMs = slowWriteThresholdMs;
+	}
+
+	public void setProbeIntervalMs(long probeIntervalMs) {
+		this.probeIntervalMs = probeIntervalMs;
+	}
+
+	public void setLazyConnect(boolean lazyConnect) {
+		this.lazyConnect = lazyConnect;
+	}
+
+	public void setInitialRetryDelayMs(long initialRetryDelayMs) {
+		this.initialRetryDelayMs = initialRetryDelayMs;
+	}
+
+	public void setMaxRetryDelayMs(long maxRetryDelayMs) {
+		this.maxRetryDelayMs = maxRetryDelayMs;
+	}
+
+	/**
+	 * Enables writing to time-bucketed collections. Capped settings are
+	 * ignored for partitioned logs.
+	 */
+	public void setPartitionPeriod(PartitionPeriod partitionPeriod) {
+		this.partitionPeriod = partitionPeriod;
+	}
+
+	public void setPartitionRetentionMs(long partitionRetentionMs) {
+		this.partitionRetentionMs = partitionRetentionMs;
+	}
+
+	public void setRetentionCheckIntervalMs(long retentionCheckIntervalMs) {
+		this.retentionCheckIntervalMs = retentionCheckIntervalMs;
+	}
+
+	public void addIndex(IndexDefinition index) {
+		indexes.add(index);
+	}
+
+	private transient AppenderAttachableImpl<ILoggingEvent> aai = new AppenderAttachableImpl<ILoggingEvent>();
+
+	@Override
+	public void addAppender(Appender<ILoggingEvent> newAppender) {
+		aai.addAppender(newAppender);
+	}
+
+	@Override
+	public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+		return aai.iteratorForAppenders();
+	}
+
+	@Override
+	public Appender<ILoggingEvent> getAppender(String name) {
+		return aai.getAppender(name);
+	}
+
+	@Override
+	public boolean isAttached(Appender<ILoggingEvent> appender) {
+		return aai.isAttached(appender);
+	}
+
+	@Override
+	public void detachAndStopAllAppenders() {
+		aai.detachAndStopAllAppenders();
+	}
+
+	@Override
+	public boolean detachAppender(Appender<ILoggingEvent> appender) {
+		return aai.detachAppender(appender);
+	}
+
+	@Override
+	public boolean detachAppender(String name) {
+		return aai.detachAppender(name);
+	}
 }
@@ -1,23 +1,48 @@
 package net.exacode.logback.classic.mongodb;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bson.types.ObjectId;
 
 import net.exacode.logback.classic.mongodb.converter.LoggingEventConverter;
+import net.exacode.logback.classic.mongodb.converter.LoggingEventDocument;
+import net.exacode.logback.classic.mongodb.converter.LoggingEventEncoder;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 
+import com.mongodb.AggregationOutput;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 
+/**
+ * Reads and writes logging events stored in a single log collection or, when
+ * created with a {@link CollectionPartitioner}, in time-bucketed collections.
+ * Queries on partitioned logs fan out across the buckets covering the
+ * requested time range.
+ * 
+ * @author mendlik
+ * 
+ */
 public class MongoDbLogDao {
 
 	private final LoggingEventConverter loggingEventConverter;
 
 	private final DBCollection logCollection;
 
+	private final CollectionPartitioner partitioner;
+
 	public MongoDbLogDao(DBCollection logCollection) {
 		this(logCollection, new LoggingEventConverter());
 	}
@@ -26,44 +51,386 @@ public class MongoDbLogDao {
 			LoggingEventConverter loggingEventConverter) {
 		this.loggingEventConverter = loggingEventConverter;
 		this.logCollection = logCollection;
+		this.partitioner = null;
+	}
+
+	public MongoDbLogDao(CollectionPartitioner partitioner,
+			LoggingEventConverter loggingEventConverter) {
+		this.loggingEventConverter = loggingEventConverter;
+		this.logCollection = partitioner.getDB().getCollection(
+				partitioner.getBaseName());
+		this.partitioner = partitioner;
 	}
 
 	public void append(ILoggingEvent logEvent) {
-		logCollection.insert(convert(logEvent));
+		insert(Collections.<DBObject> singletonList(convert(logEvent)));
+	}
+
+	/**
+	 * Inserts all events using a single multi-document insert per collection.
+	 */
+	public void append(List<ILoggingEvent> logEvents) {
+		List<DBObject> documents = new ArrayList<DBObject>(logEvents.size());
+		for (ILoggingEvent logEvent : logEvents) {
+			documents.add(convert(logEvent));
+		}
+		insert(documents);
+	}
+
+	public void insert(List<DBObject> documents) {
+		insert(documents, logCollection.getWriteConcern());
+	}
+
+	/**
+	 * Inserts documents, {@link LoggingEventDocument}s are encoded directly
+	 * into BSON.
+	 */
+	public void insert(List<DBObject> documents, WriteConcern writeConcern) {
+		if (partitioner == null) {
+			logCollection.insert(documents, writeConcern,
+					LoggingEventEncoder.FACTORY.create());
+			return;
+		}
+		for (Map.Entry<DBCollection, List<DBObject>> entry : partition(
+				documents).entrySet()) {
+			entry.getKey().insert(entry.getValue(), writeConcern,
+					LoggingEventEncoder.FACTORY.create());
+		}
 	}
 
 	public List<ILoggingEvent> find() {
-		DBCursor cursor = logCollection.find();
-		return convert(cursor);
+		return find(collections(), new BasicDBObject(), null, true, 0, 0);
 	}
 
 	public List<ILoggingEvent> find(boolean naturalOrder) {
-		DBCursor cursor = logCollection.find().sort(
-				new BasicDBObject().append("$natural", naturalOrder ? 1 : -1));
-		return convert(cursor);
+		return find(collections(), new BasicDBObject(),
+				naturalSort(naturalOrder), naturalOrder, 0, 0);
 	}
 
 	public List<ILoggingEvent> find(int size, boolean naturalOrder) {
-		DBCursor cursor = logCollection
-				.find()
-				.sort(new BasicDBObject().append("$natural", naturalOrder ? 1
-						: -1)).limit(size);
-		return convert(cursor);
+		return find(collections(), new BasicDBObject(),
+				naturalSort(naturalOrder), naturalOrder, 0, size);
 	}
 
 	public List<ILoggingEvent> find(int offset, int size, boolean naturalOrder) {
-		DBCursor cursor = logCollection
-				.find()
-				.sort(new BasicDBObject().append("$natural", naturalOrder ? 1
-						: -1)).skip(offset).limit(size);
-		return convert(cursor);
+		return find(collections(), new BasicDBObject(),
+				naturalSort(naturalOrder), naturalOrder, offset, size);
 	}
 
 	public List<ILoggingEvent> findByTimestamp(long timestamp,
 			boolean naturalOrder) {
-		DBCursor cursor = logCollection.find(new BasicDBObject().append(
-				LoggingEventConverter.TIME_STAMP_FIELD, timestamp));
-		return convert(cursor);
+		return find(collections(timestamp, timestamp + 1), new BasicDBObject(
+				timeStampField(), new Date(timestamp)),
+				naturalSort(naturalOrder), naturalOrder, 0, 0);
+	}
+
+	/**
+	 * Finds events matching the query. Only buckets overlapping the time range
+	 * of the query are read.
+	 */
+	public List<ILoggingEvent> find(LogQuery query) {
+		final List<ILoggingEvent> logEvents = new ArrayList<ILoggingEvent>();
+		forEach(query, new LogEventHandler() {
+			@Override
+			public boolean handle(ILoggingEvent event) {
+				return logEvents.add(event);
+			}
+		});
+		return logEvents;
+	}
+
+	/**
+	 * Finds events logged in the time range {@code [from, to)} ordered by
+	 * their time stamps.
+	 */
+	public List<ILoggingEvent> findByTimeRange(long from, long to,
+			boolean naturalOrder) {
+		return find(collections(from, to), timeRangeQuery(from, to),
+				timeStampSort(naturalOrder), naturalOrder, 0, 0);
+	}
+
+	/**
+	 * Streams all events, decoding them as the cursor advances.
+	 * 
+	 * @param batchSize
+	 *            - number of documents fetched from the server at once, 0 for
+	 *            server default
+	 * @return cursor that has to be closed
+	 */
+	public LogEventCursor stream(boolean naturalOrder, int batchSize) {
+		return cursor(collections(), new BasicDBObject(),
+				naturalSort(naturalOrder), naturalOrder, 0, 0, batchSize);
+	}
+
+	/**
+	 * Streams events logged in the time range {@code [from, to)} ordered by
+	 * their time stamps.
+	 * 
+	 * @return cursor that has to be closed
+	 */
+	public LogEventCursor streamByTimeRange(long from, long to,
+			boolean naturalOrder, int batchSize) {
+		return cursor(collections(from, to), timeRangeQuery(from, to),
+				timeStampSort(naturalOrder), naturalOrder, 0, 0, batchSize);
+	}
+
+	/**
+	 * Streams events matching the query.
+	 * 
+	 * @return cursor that has to be closed
+	 */
+	public LogEventCursor stream(LogQuery query) {
+		List<DBCollection> ordered = new ArrayList<DBCollection>(
+				query.hasTimeRange() ? collections(query.getFrom(),
+						query.getTo()) : collections());
+		if (!query.isAscending()) {
+			Collections.reverse(ordered);
+		}
+		return new LogEventCursor(ordered,
+				query.toQuery(loggingEventConverter),
+				query.toProjection(loggingEventConverter),
+				query.toSort(loggingEventConverter), query.getHint(),
+				query.getOffset(), query.getLimit(), query.getBatchSize(),
+				loggingEventConverter);
+	}
+
+	/**
+	 * Passes events matching the query to the handler until it returns false.
+	 * The cursor is always released.
+	 */
+	public void forEach(LogQuery query, LogEventHandler handler) {
+		forEach(stream(query), handler);
+	}
+
+	/**
+	 * Creates a live tail of new events. Only criteria and excluded fields of
+	 * the filter are used, the tail always reads in natural order.
+	 * 
+	 * @param filter
+	 *            - criteria of pushed events, null for all events
+	 * @throws IllegalStateException
+	 *             when the log collection is not capped
+	 */
+	public LogTail tail(LogQuery filter) {
+		return tail(filter, null);
+	}
+
+	/**
+	 * Creates a live tail that resumes after the position of another tail.
+	 * 
+	 * @param position
+	 *            - {@link LogTail#getPosition()} of the previous tail, null to
+	 *            start at the newest event
+	 * @throws IllegalArgumentException
+	 *             when the position is not valid
+	 */
+	public LogTail tail(LogQuery filter, String position) {
+		if (partitioner != null || !logCollection.isCapped()) {
+			throw new IllegalStateException(
+					"Live tail requires a capped log collection");
+		}
+		if (position != null && !ObjectId.isValid(position)) {
+			throw new IllegalArgumentException("Invalid tail position: "
+					+ position);
+		}
+		LogQuery query = filter != null ? filter : new LogQuery();
+		return new LogTail(logCollection,
+				query.toQuery(loggingEventConverter),
+				query.toProjection(loggingEventConverter),
+				loggingEventConverter, position != null ? new ObjectId(
+						position) : null);
+	}
+
+	/**
+	 * Passes all events to the handler until it returns false. The cursor is
+	 * always released.
+	 */
+	public void forEach(boolean naturalOrder, int batchSize,
+			LogEventHandler handler) {
+		forEach(stream(naturalOrder, batchSize), handler);
+	}
+
+	/**
+	 * Passes events logged in the time range {@code [from, to)} to the handler
+	 * until it returns false. The cursor is always released.
+	 */
+	public void forEachByTimeRange(long from, long to, boolean naturalOrder,
+			int batchSize, LogEventHandler handler) {
+		forEach(streamByTimeRange(from, to, naturalOrder, batchSize), handler);
+	}
+
+	/**
+	 * Reads the first page of events for keyset pagination. Unlike
+	 * {@link #find(int, int, boolean)} the cost of reading a page does not
+	 * grow with its position.
+	 */
+	public LogPage findFirstPage(int size, boolean naturalOrder) {
+		return findPage(new PageToken(naturalOrder, false, null, null), size);
+	}
+
+	/**
+	 * Reads the page of events referred to by a token of a previously read
+	 * page.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             when the token is not valid
+	 */
+	public LogPage findPage(String token, int size) {
+		return findPage(PageToken.parse(token), size);
+	}
+
+	/**
+	 * Seeks by {@code _id} from the token boundary, in the bucket of the
+	 * boundary first and in the following buckets then.
+	 */
+	private LogPage findPage(PageToken token, int size) {
+		final boolean ascending = token.ascending != token.backward;
+		List<DBCollection> ordered = new ArrayList<DBCollection>(collections());
+		if (!ascending) {
+			Collections.reverse(ordered);
+		}
+		List<DBObject> documents = new ArrayList<DBObject>(size);
+		List<String> names = new ArrayList<String>(size);
+		for (DBCollection collection : ordered) {
+			if (documents.size() >= size) {
+				break;
+			}
+			DBObject query = new BasicDBObject();
+			if (token.collection != null) {
+				int position = collection.getName().compareTo(
+						token.collection);
+				if (ascending ? position < 0 : position > 0) {
+					continue;
+				} else if (position == 0) {
+					query.put("_id", new BasicDBObject(ascending ? "$gt"
+							: "$lt", token.id));
+				}
+			}
+			DBCursor cursor = collection.find(query)
+					.sort(new BasicDBObject("_id", ascending ? 1 : -1))
+					.limit(size - documents.size());
+			try {
+				while (cursor.hasNext()) {
+					documents.add(cursor.next());
+					names.add(collection.getName());
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		if (token.backward) {
+			Collections.reverse(documents);
+			Collections.reverse(names);
+		}
+		List<ILoggingEvent> logEvents = new ArrayList<ILoggingEvent>(
+				documents.size());
+		for (DBObject document : documents) {
+			logEvents.add(loggingEventConverter
+					.convertToLoggingEvent((BasicDBObject) document));
+		}
+		if (documents.isEmpty()) {
+			return new LogPage(logEvents, null, null);
+		}
+		boolean hasNext = token.backward || documents.size() == size;
+		boolean hasPrevious = token.backward ? documents.size() == size
+				: token.collection != null;
+		int last = documents.size() - 1;
+		return new LogPage(logEvents, hasNext ? new PageToken(
+				token.ascending, false, names.get(last), documents.get(last)
+						.get("_id")).toString() : null,
+				hasPrevious ? new PageToken(token.ascending, true,
+						names.get(0), documents.get(0).get("_id")).toString()
+						: null);
+	}
+
+	/**
+	 * Counts events matching the filter by level, the most frequent first.
+	 * 
+	 * @param filter
+	 *            - criteria of counted events, null for all events
+	 */
+	public List<LogCount> countByLevel(LogQuery filter) {
+		return countBy(filter, field(LoggingEventConverter.LEVEL_FIELD), 0);
+	}
+
+	public List<LogCount> countByLogger(LogQuery filter) {
+		return countBy(filter, field(LoggingEventConverter.LOGGER_FIELD), 0);
+	}
+
+	public List<LogCount> countByThread(LogQuery filter) {
+		return countBy(filter, field(LoggingEventConverter.THREAD_FIELD), 0);
+	}
+
+	/**
+	 * Counts events stored in message template mode by their template.
+	 */
+	public List<LogCount> countByMessageTemplate(LogQuery filter) {
+		return countBy(filter,
+				field(LoggingEventConverter.MESSAGE_TEMPLATE_FIELD), 0);
+	}
+
+	/**
+	 * Counts events with an exception by class of the top level exception.
+	 */
+	public List<LogCount> countByExceptionClass(LogQuery filter) {
+		return countBy(filter,
+				loggingEventConverter.getThrowableClassField(), 0);
+	}
+
+	/**
+	 * @return {@code n} loggers with the most events matching the filter
+	 */
+	public List<LogCount> topLoggers(LogQuery filter, int n) {
+		return countBy(filter, field(LoggingEventConverter.LOGGER_FIELD), n);
+	}
+
+	/**
+	 * Counts events in time buckets of {@code bucketMs} aligned to the epoch,
+	 * e.g. 60000 for events per minute. Buckets without events are left out.
+	 * 
+	 * @return counts ordered by bucket start
+	 */
+	public List<TimeBucketCount> countByTimeBucket(LogQuery filter,
+			long bucketMs) {
+		DBObject sinceEpoch = new BasicDBObject("$subtract", Arrays.asList(
+				"$" + timeStampField(), new Date(0)));
+		DBObject bucketStart = new BasicDBObject("$subtract", Arrays.asList(
+				sinceEpoch,
+				new BasicDBObject("$mod", Arrays.asList(sinceEpoch, bucketMs))));
+		Map<Object, Long> counts = aggregate(filter, null, bucketStart, null);
+		TreeMap<Long, Long> ordered = new TreeMap<Long, Long>();
+		for (Map.Entry<Object, Long> entry : counts.entrySet()) {
+			ordered.put(((Number) entry.getKey()).longValue(), entry.getValue());
+		}
+		List<TimeBucketCount> buckets = new ArrayList<TimeBucketCount>(
+				ordered.size());
+		for (Map.Entry<Long, Long> entry : ordered.entrySet()) {
+			buckets.add(new TimeBucketCount(entry.getKey(), entry.getValue()));
+		}
+		return buckets;
+	}
+
+	/**
+	 * Drops time buckets that end before the cutoff.
+	 * 
+	 * @return names of dropped collections
+	 */
+	public List<String> dropPartitionsOlderThan(long cutoff) {
+		if (partitioner == null) {
+			throw new IllegalStateException("Log collection is not partitioned");
+		}
+		return partitioner.dropOlderThan(cutoff);
+	}
+
+	/**
+	 * @return indexes of the log collection or of the latest time bucket
+	 */
+	public List<DBObject> getIndexInfo() {
+		List<DBCollection> collections = collections();
+		if (collections.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return collections.get(collections.size() - 1).getIndexInfo();
 	}
 
 	/**
@@ -73,7 +440,12 @@ public class MongoDbLogDao {
 	 * with the same capped size. You cannot easily clear capped collection.
 	 */
 	public void clear() {
-		if (logCollection.isCapped()) {
+		if (partitioner != null) {
+			for (DBCollection collection : partitioner.collections()) {
+				collection.drop();
+			}
+			partitioner.refresh();
+		} else if (logCollection.isCapped()) {
 			int cappedSize = getCappedSize();
 			String collectionName = logCollection.getName();
 			DB db = logCollection.getDB();
@@ -88,6 +460,10 @@ public class MongoDbLogDao {
 	/**
 	 * Ensures that current collection is capped and has appropriate capped
 	 * size.
+	 * <p>
+	 * Collections converted by {@code convertToCapped} have no {@code _id}
+	 * index on MongoDB 2.x, it is created here, so pages are sought by index
+	 * and replayed duplicates are rejected.
 	 * 
 	 * @param size
 	 */
@@ -97,6 +473,7 @@ public class MongoDbLogDao {
 					new BasicDBObject("convertToCapped", logCollection
 							.getName()).append("size", size));
 		}
+		logCollection.createIndex(new BasicDBObject("_id", 1));
 	}
 
 	/**
@@ -116,21 +493,223 @@ public class MongoDbLogDao {
 		return ((BasicDBObject) opt.get("options")).getInt("size");
 	}
 
-	private BasicDBObject convert(ILoggingEvent logEvent) {
-		return loggingEventConverter.convertToDocument(logEvent);
+	private List<DBCollection> collections() {
+		return partitioner == null ? Collections.singletonList(logCollection)
+				: partitioner.collections();
 	}
 
-	private ILoggingEvent convert(DBObject document) {
-		return loggingEventConverter
-				.convertToLoggingEvent((BasicDBObject) document);
+	private List<DBCollection> collections(long from, long to) {
+		return partitioner == null ? Collections.singletonList(logCollection)
+				: partitioner.collections(from, to);
 	}
 
-	private List<ILoggingEvent> convert(DBCursor cursor) {
+	private Map<DBCollection, List<DBObject>> partition(List<DBObject> documents) {
+		Map<DBCollection, List<DBObject>> partitions = new LinkedHashMap<DBCollection, List<DBObject>>();
+		for (DBObject document : documents) {
+			DBCollection collection = partitioner
+					.collectionFor(loggingEventConverter.getTimeStamp(document));
+			List<DBObject> partition = partitions.get(collection);
+			if (partition == null) {
+				partition = new ArrayList<DBObject>();
+				partitions.put(collection, partition);
+			}
+			partition.add(document);
+		}
+		return partitions;
+	}
+
+	/**
+	 * Reads all events matched by the query into a list.
+	 */
+	private List<ILoggingEvent> find(List<DBCollection> collections,
+			DBObject query, DBObject sort, boolean ascending, int offset,
+			int size) {
 		List<ILoggingEvent> logEvents = new ArrayList<ILoggingEvent>();
-		while (cursor.hasNext()) {
-			logEvents.add(convert(cursor.next()));
+		LogEventCursor cursor = cursor(collections, query, sort, ascending,
+				offset, size, 0);
+		try {
+			while (cursor.hasNext()) {
+				logEvents.add(cursor.next());
+			}
+		} finally {
+			cursor.close();
 		}
 		return logEvents;
 	}
 
+	/**
+	 * Runs the query on each collection, newest collection first if
+	 * {@code ascending} is false. Offset and size apply across the
+	 * collections.
+	 */
+	private LogEventCursor cursor(List<DBCollection> collections,
+			DBObject query, DBObject sort, boolean ascending, int offset,
+			int size, int batchSize) {
+		List<DBCollection> ordered = new ArrayList<DBCollection>(collections);
+		if (!ascending) {
+			Collections.reverse(ordered);
+		}
+		return new LogEventCursor(ordered, query, sort, offset, size,
+				batchSize, loggingEventConverter);
+	}
+
+	private void forEach(LogEventCursor cursor, LogEventHandler handler) {
+		try {
+			while (cursor.hasNext() && handler.handle(cursor.next())) {
+				// handler decides whether to continue
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Boundary of a page: collection and {@code _id} of the first or the last
+	 * event and direction of reading.
+	 */
+	private static class PageToken {
+		private final boolean ascending;
+		private final boolean backward;
+		private final String collection;
+		private final Object id;
+
+		PageToken(boolean ascending, boolean backward, String collection,
+				Object id) {
+			this.ascending = ascending;
+			this.backward = backward;
+			this.collection = collection;
+			this.id = id;
+		}
+
+		static PageToken parse(String token) {
+			String[] parts = token == null ? new String[0] : token.split(":",
+					3);
+			if (parts.length != 3 || parts[0].length() != 2
+					|| !ObjectId.isValid(parts[1])) {
+				throw new IllegalArgumentException("Invalid page token: "
+						+ token);
+			}
+			return new PageToken(parts[0].charAt(0) == 'a',
+					parts[0].charAt(1) == 'b', parts[2], new ObjectId(parts[1]));
+		}
+
+		@Override
+		public String toString() {
+			return (ascending ? "a" : "d") + (backward ? "b" : "f") + ":" + id
+					+ ":" + collection;
+		}
+	}
+
+	/**
+	 * Groups events by the field and sorts the groups by count.
+	 * 
+	 * @param limit
+	 *            - maximal number of groups, 0 for all
+	 */
+	private List<LogCount> countBy(LogQuery filter, String field, int limit) {
+		Map<Object, Long> counts = aggregate(filter, field, "$" + field,
+				limit > 0 ? new BasicDBObject("$limit", limit) : null);
+		// names stored as dictionary ids and as they are form one group
+		Map<String, Long> named = new HashMap<String, Long>();
+		for (Map.Entry<Object, Long> entry : counts.entrySet()) {
+			String key = entry.getKey() instanceof Number ? loggingEventConverter
+					.decodeName(entry.getKey()) : (String) entry.getKey();
+			Long count = named.get(key);
+			named.put(key, count == null ? entry.getValue() : count
+					+ entry.getValue());
+		}
+		List<LogCount> result = new ArrayList<LogCount>(named.size());
+		for (Map.Entry<String, Long> entry : named.entrySet()) {
+			result.add(new LogCount(entry.getKey(), entry.getValue()));
+		}
+		Collections.sort(result, new Comparator<LogCount>() {
+			@Override
+			public int compare(LogCount first, LogCount second) {
+				if (first.getCount() != second.getCount()) {
+					return first.getCount() > second.getCount() ? -1 : 1;
+				}
+				return String.valueOf(first.getKey()).compareTo(
+						String.valueOf(second.getKey()));
+			}
+		});
+		return limit > 0 && result.size() > limit ? result.subList(0, limit)
+				: result;
+	}
+
+	/**
+	 * Runs {@code $match}, {@code $group} and {@code $sort} on each collection
+	 * of the filter time range and sums counts of equal groups. Collapsed
+	 * bursts are counted as their number of events. The match
+	 * stage comes first, so it is evaluated on indexes of the collection.
+	 * 
+	 * @param requiredField
+	 *            - field that has to be present in counted events or null
+	 * @param limit
+	 *            - limit stage, applied only when there is a single
+	 *            collection
+	 * @return counts by group key
+	 */
+	private Map<Object, Long> aggregate(LogQuery filter, String requiredField,
+			Object groupKey, DBObject limit) {
+		LogQuery query = filter != null ? filter : new LogQuery();
+		DBObject match = query.toQuery(loggingEventConverter);
+		if (requiredField != null) {
+			match.put(requiredField, new BasicDBObject("$exists", true));
+		}
+		List<DBCollection> collections = query.hasTimeRange() ? collections(
+				query.getFrom(), query.getTo()) : collections();
+		// a collapsed burst stands for count events
+		DBObject eventCount = new BasicDBObject("$ifNull", Arrays.asList(
+				"$" + field(LoggingEventConverter.COUNT_FIELD), 1));
+		Map<Object, Long> counts = new HashMap<Object, Long>();
+		for (DBCollection collection : collections) {
+			List<DBObject> pipeline = new ArrayList<DBObject>();
+			pipeline.add(new BasicDBObject("$group", new BasicDBObject("_id",
+					groupKey).append("count", new BasicDBObject("$sum",
+					eventCount))));
+			pipeline.add(new BasicDBObject("$sort", new BasicDBObject("count",
+					-1)));
+			if (limit != null && collections.size() == 1) {
+				pipeline.add(limit);
+			}
+			AggregationOutput output = collection.aggregate(
+					new BasicDBObject("$match", match),
+					pipeline.toArray(new DBObject[pipeline.size()]));
+			output.getCommandResult().throwOnError();
+			for (DBObject group : output.results()) {
+				Object key = group.get("_id");
+				long count = ((Number) group.get("count")).longValue();
+				Long previous = counts.get(key);
+				counts.put(key, previous != null ? previous + count : count);
+			}
+		}
+		return counts;
+	}
+
+	private String field(String name) {
+		return loggingEventConverter.getFieldName(name);
+	}
+
+	private String timeStampField() {
+		return loggingEventConverter
+				.getFieldName(LoggingEventConverter.TIME_STAMP_FIELD);
+	}
+
+	private DBObject timeRangeQuery(long from, long to) {
+		return new BasicDBObject(timeStampField(), new BasicDBObject("$gte",
+				new Date(from)).append("$lt", new Date(to)));
+	}
+
+	private DBObject timeStampSort(boolean naturalOrder) {
+		return new BasicDBObject(timeStampField(), naturalOrder ? 1 : -1);
+	}
+
+	private DBObject naturalSort(boolean naturalOrder) {
+		return new BasicDBObject("$natural", naturalOrder ? 1 : -1);
+	}
+
+	private DBObject convert(ILoggingEvent logEvent) {
+		return loggingEventConverter.wrap(logEvent);
+	}
+
 }
@@ -0,0 +1,31 @@
+package net.exacode.logback.classic.mongodb;
+
+/**
+ * Defines what {@link MongoDbAppender} does when its asynchronous queue is
+ * full.
+ * 
+ * @author mendlik
+ * 
+ */
+public enum OverflowPolicy {
+	/**
+	 * Logging thread waits for free space, at most {@code blockTimeoutMs} (0
+	 * means no limit). Event is dropped when the timeout elapses.
+	 */
+	BLOCK,
+	/**
+	 * Event that does not fit into the queue is dropped.
+	 */
+	DROP_NEWEST,
+	/**
+	 * The oldest queued event is dropped to make room for the new one.
+	 */
+	DROP_OLDEST,
+	/**
+	 * Events below {@code dropThreshold} level are dropped once the queue is
+	 * 80% full. Events on or above the threshold wait for free space as with
+	 * {@link #BLOCK}, at most {@code blockTimeoutMs} (0 means no limit), and
+	 * are dropped only when the timeout elapses.
+	 */
+	DROP_BELOW_THRESHOLD
+}
@@ -0,0 +1,89 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Time span covered by a single log collection when logs are partitioned by
+ * time. Collection names are built from the base collection name and the UTC
+ * start of the period, e.g. {@code logs_2026_10_17} for {@link #DAILY}.
+ * 
+ * @author mendlik
+ * 
+ */
+public enum PartitionPeriod {
+	HOURLY("yyyy_MM_dd_HH", Calendar.HOUR_OF_DAY), DAILY("yyyy_MM_dd",
+			Calendar.DAY_OF_MONTH), MONTHLY("yyyy_MM", Calendar.MONTH);
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private final String pattern;
+	private final int calendarField;
+
+	private PartitionPeriod(String pattern, int calendarField) {
+		this.pattern = pattern;
+		this.calendarField = calendarField;
+	}
+
+	/**
+	 * @return start of the period containing the timestamp
+	 */
+	public long start(long timestamp) {
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.setTimeInMillis(timestamp);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		if (calendarField != Calendar.HOUR_OF_DAY) {
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+		}
+		if (calendarField == Calendar.MONTH) {
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+		}
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * @return start of the period following the one starting at
+	 *         {@code periodStart}
+	 */
+	public long next(long periodStart) {
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.setTimeInMillis(periodStart);
+		calendar.add(calendarField, 1);
+		return calendar.getTimeInMillis();
+	}
+
+	public String collectionName(String baseName, long timestamp) {
+		return baseName + "_" + dateFormat().format(new Date(timestamp));
+	}
+
+	/**
+	 * @return start of the period stored in the collection or -1 if the name
+	 *         does not belong to a partition of the base collection
+	 */
+	public long parseStart(String baseName, String collectionName) {
+		String prefix = baseName + "_";
+		if (!collectionName.startsWith(prefix)
+				|| collectionName.length() != prefix.length()
+						+ pattern.length()) {
+			return -1;
+		}
+		try {
+			return dateFormat().parse(
+					collectionName.substring(prefix.length())).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	private SimpleDateFormat dateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(UTC);
+		format.setLenient(false);
+		return format;
+	}
+}
@@ -0,0 +1,194 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Per-minute event counters flushed as upserts into a rollup collection.
+ * <p>
+ * Events are counted by minute, level and logger, errors with an exception
+ * also by minute and exception class. Counting on the logging thread only
+ * looks up an {@link AtomicLong} in a {@link ConcurrentHashMap}, no lock is
+ * taken.
+ * <p>
+ * {@link #flush()} adds the counts to rollup documents
+ * {@code { minute, level, logger, count }} and
+ * {@code { minute, exception, count }}, so a dashboard reads one document per
+ * group and minute instead of every event. Counts that could not be written
+ * are kept for the next flush.
+ * 
+ * @author mendlik
+ * 
+ */
+class RollupCounters extends ContextAwareBase {
+
+	static final String MINUTE_FIELD = "minute";
+	static final String LEVEL_FIELD = "level";
+	static final String LOGGER_FIELD = "logger";
+	static final String EXCEPTION_FIELD = "exception";
+	static final String COUNT_FIELD = "count";
+
+	private static final long MINUTE_MS = 60 * 1000;
+
+	/**
+	 * Counters of minutes older than this are removed after they are flushed.
+	 * Late events of such minutes are still counted in a new counter.
+	 */
+	private static final long RETAINED_MINUTES = 2;
+
+	/**
+	 * Group of counted events.
+	 */
+	private static final class Key {
+		private final long minute;
+		private final String level;
+		private final String logger;
+		private final String exception;
+		private final int hash;
+
+		Key(long minute, String level, String logger, String exception) {
+			this.minute = minute;
+			this.level = level;
+			this.logger = logger;
+			this.exception = exception;
+			int h = (int) (minute ^ (minute >>> 32));
+			h = 31 * h + (level != null ? level.hashCode() : 0);
+			h = 31 * h + (logger != null ? logger.hashCode() : 0);
+			h = 31 * h + (exception != null ? exception.hashCode() : 0);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) object;
+			return minute == other.minute && equal(level, other.level)
+					&& equal(logger, other.logger)
+					&& equal(exception, other.exception);
+		}
+
+		private static boolean equal(String first, String second) {
+			return first == null ? second == null : first.equals(second);
+		}
+
+		DBObject toQuery() {
+			BasicDBObject query = new BasicDBObject(MINUTE_FIELD, new Date(
+					minute));
+			if (exception != null) {
+				query.append(EXCEPTION_FIELD, exception);
+			} else {
+				query.append(LEVEL_FIELD, level).append(LOGGER_FIELD, logger);
+			}
+			return query;
+		}
+	}
+
+	private final ConcurrentMap<Key, AtomicLong> counters = new ConcurrentHashMap<Key, AtomicLong>();
+
+	private volatile DBCollection collection;
+
+	/**
+	 * Counts the event. Called on the logging thread.
+	 */
+	public void record(ILoggingEvent event) {
+		long minute = event.getTimeStamp() - event.getTimeStamp() % MINUTE_MS;
+		increment(new Key(minute, event.getLevel().levelStr,
+				event.getLoggerName(), null));
+		IThrowableProxy throwable = event.getThrowableProxy();
+		if (throwable != null && event.getLevel() == Level.ERROR) {
+			increment(new Key(minute, null, null, throwable.getClassName()));
+		}
+	}
+
+	private void increment(Key key) {
+		counter(key).incrementAndGet();
+	}
+
+	private AtomicLong counter(Key key) {
+		AtomicLong counter = counters.get(key);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Sets the rollup collection and builds its index in the background.
+	 * Counts recorded before are written by the first flush.
+	 */
+	public void setCollection(DBCollection collection) {
+		collection.createIndex(new BasicDBObject(MINUTE_FIELD, 1)
+				.append(LEVEL_FIELD, 1).append(LOGGER_FIELD, 1)
+				.append(EXCEPTION_FIELD, 1), new BasicDBObject("background",
+				true).append("unique", true));
+		this.collection = collection;
+	}
+
+	/**
+	 * Adds counts recorded since the previous flush to the rollup documents.
+	 * 
+	 * @throws MongoException
+	 *             when MongoDB is not reachable, remaining counts are kept
+	 */
+	public void flush() {
+		DBCollection target = collection;
+		if (target == null) {
+			return;
+		}
+		long oldest = System.currentTimeMillis() - RETAINED_MINUTES
+				* MINUTE_MS;
+		Iterator<Map.Entry<Key, AtomicLong>> entries = counters.entrySet()
+				.iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Key, AtomicLong> entry = entries.next();
+			if (entry.getKey().minute < oldest) {
+				entries.remove();
+			}
+			long count = entry.getValue().getAndSet(0);
+			if (count == 0) {
+				continue;
+			}
+			try {
+				target.update(entry.getKey().toQuery(), new BasicDBObject(
+						"$inc", new BasicDBObject(COUNT_FIELD, count)), true,
+						false);
+			} catch (MongoException e) {
+				counter(entry.getKey()).addAndGet(count);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return number of groups counted in memory
+	 */
+	int size() {
+		return counters.size();
+	}
+
+}
@@ -0,0 +1,380 @@
+package net.exacode.logback.classic.mongodb;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import net.exacode.logback.classic.mongodb.converter.LoggingEventEncoder;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+
+/**
+ * Append-only journal of BSON documents kept on a local disk.
+ * <p>
+ * Documents are stored in memory-mapped segment files of fixed size. Every
+ * record is prefixed with its length and CRC32 checksum, so after a crash the
+ * journal is recovered up to the last complete record. Each segment keeps the
+ * offset of the first record that was not yet replayed in its header. Fully
+ * replayed segments are deleted.
+ * <p>
+ * Segment layout: {@code magic (int), readOffset (int), records...}. Record
+ * layout: {@code length (int), crc32 (int), bson (length bytes)}. A zero
+ * length marks the end of written records.
+ * <p>
+ * All methods synchronize on the journal. Callers may synchronize on it as
+ * well to make a check and the following append atomic.
+ * 
+ * @author mendlik
+ * 
+ */
+class SpillJournal extends ContextAwareBase {
+
+	/**
+	 * Documents read from the journal that can be committed as replayed.
+	 */
+	static class Batch {
+		private final Segment segment;
+		private final int endOffset;
+		private final List<DBObject> documents;
+
+		Batch(Segment segment, int endOffset, List<DBObject> documents) {
+			this.segment = segment;
+			this.endOffset = endOffset;
+			this.documents = documents;
+		}
+
+		public List<DBObject> getDocuments() {
+			return documents;
+		}
+	}
+
+	private static class Segment {
+		private final File file;
+		private final long sequence;
+		private MappedByteBuffer buffer;
+		private int readOffset;
+		private int writeOffset;
+
+		Segment(File file, long sequence) {
+			this.file = file;
+			this.sequence = sequence;
+		}
+
+		boolean isConsumed() {
+			return readOffset >= writeOffset;
+		}
+	}
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final int MAGIC = 0x4C4F474A;
+	private static final int READ_OFFSET_POSITION = 4;
+	private static final int HEADER_SIZE = 8;
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private final File directory;
+	private final int segmentSize;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final LoggingEventEncoder encoder = new LoggingEventEncoder();
+	private final DefaultDBDecoder decoder = new DefaultDBDecoder();
+	private final CRC32 crc = new CRC32();
+
+	public SpillJournal(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Opens existing segments and recovers their content.
+	 * 
+	 * @throws IOException
+	 *             when journal directory or segment files are not accessible
+	 */
+	public synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create journal directory: "
+					+ directory);
+		}
+		for (File file : listSegmentFiles()) {
+			Segment segment = new Segment(file, parseSequence(file));
+			map(segment);
+			if (segment.buffer.getInt(0) != MAGIC) {
+				addWarn("Skipping journal segment with unknown format: " + file);
+				unmap(segment);
+				continue;
+			}
+			recover(segment);
+			segments.add(segment);
+		}
+		while (segments.size() > 1 && segments.getFirst().isConsumed()) {
+			delete(segments.removeFirst());
+		}
+		if (segments.isEmpty()) {
+			roll();
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		for (Segment segment : segments) {
+			if (!segment.isConsumed()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Appends documents at the end of the journal. Documents larger than a
+	 * segment are rejected.
+	 * 
+	 * @throws IOException
+	 *             when new segment could not be created or the journal is
+	 *             closed
+	 */
+	public synchronized void append(List<DBObject> documents)
+			throws IOException {
+		if (segments.isEmpty()) {
+			throw new IOException("Journal is closed: " + directory);
+		}
+		Segment active = segments.getLast();
+		for (DBObject document : documents) {
+			byte[] bson = encoder.encode(document);
+			int recordSize = RECORD_HEADER_SIZE + bson.length;
+			if (HEADER_SIZE + recordSize > segmentSize) {
+				addError("Document of " + bson.length
+						+ " bytes exceeds journal segment size: " + segmentSize);
+				continue;
+			}
+			if (active.writeOffset + recordSize > segmentSize) {
+				active.buffer.force();
+				active = roll();
+			}
+			write(active, bson);
+		}
+		active.buffer.force();
+	}
+
+	/**
+	 * Reads up to {@code maxDocuments} oldest documents that were not yet
+	 * committed.
+	 * 
+	 * @return batch of documents or null if the journal is empty
+	 */
+	public synchronized Batch read(int maxDocuments) {
+		if (segments.isEmpty()) {
+			// closed
+			return null;
+		}
+		while (segments.size() > 1 && segments.getFirst().isConsumed()) {
+			delete(segments.removeFirst());
+		}
+		Segment segment = segments.getFirst();
+		if (segment.isConsumed()) {
+			return null;
+		}
+		List<DBObject> documents = new ArrayList<DBObject>();
+		int offset = segment.readOffset;
+		while (offset < segment.writeOffset && documents.size() < maxDocuments) {
+			int length = segment.buffer.getInt(offset);
+			byte[] bson = new byte[length];
+			segment.buffer.position(offset + RECORD_HEADER_SIZE);
+			segment.buffer.get(bson);
+			documents.add(decoder.decode(bson, (DBCollection) null));
+			offset += RECORD_HEADER_SIZE + length;
+		}
+		return new Batch(segment, offset, documents);
+	}
+
+	/**
+	 * Marks documents from the batch as replayed.
+	 */
+	public synchronized void commit(Batch batch) {
+		Segment segment = batch.segment;
+		if (segment.buffer == null) {
+			return;
+		}
+		segment.readOffset = batch.endOffset;
+		if (segment.isConsumed() && segment == segments.getLast()) {
+			// reuse the active segment instead of rolling a new one
+			segment.readOffset = HEADER_SIZE;
+			segment.writeOffset = HEADER_SIZE;
+			segment.buffer.putInt(HEADER_SIZE, 0);
+		}
+		segment.buffer.putInt(READ_OFFSET_POSITION, segment.readOffset);
+		segment.buffer.force();
+	}
+
+	/**
+	 * Flushes and unmaps all segments. The journal cannot be used afterwards.
+	 */
+	public synchronized void close() {
+		for (Segment segment : segments) {
+			segment.buffer.force();
+			unmap(segment);
+		}
+		segments.clear();
+	}
+
+	private void write(Segment segment, byte[] bson) {
+		MappedByteBuffer buffer = segment.buffer;
+		int offset = segment.writeOffset;
+		buffer.position(offset + RECORD_HEADER_SIZE);
+		buffer.put(bson);
+		buffer.putInt(offset + 4, checksum(bson, 0, bson.length));
+		// length goes last, so a torn write is never taken for a record
+		buffer.putInt(offset, bson.length);
+		segment.writeOffset = offset + RECORD_HEADER_SIZE + bson.length;
+		if (segment.writeOffset + 4 <= segmentSize) {
+			buffer.putInt(segment.writeOffset, 0);
+		}
+	}
+
+	/**
+	 * Finds the end of the last complete record.
+	 */
+	private void recover(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int offset = HEADER_SIZE;
+		while (offset + RECORD_HEADER_SIZE <= segmentSize) {
+			int length = buffer.getInt(offset);
+			if (length <= 0
+					|| offset + RECORD_HEADER_SIZE + length > segmentSize) {
+				break;
+			}
+			byte[] bson = new byte[length];
+			buffer.position(offset + RECORD_HEADER_SIZE);
+			buffer.get(bson);
+			if (buffer.getInt(offset + 4) != checksum(bson, 0, length)) {
+				addWarn("Discarding corrupted record at offset " + offset
+						+ " of journal segment: " + segment.file);
+				break;
+			}
+			offset += RECORD_HEADER_SIZE + length;
+		}
+		segment.writeOffset = offset;
+		if (offset + 4 <= segmentSize) {
+			buffer.putInt(offset, 0);
+		}
+		int readOffset = buffer.getInt(READ_OFFSET_POSITION);
+		segment.readOffset = Math.max(HEADER_SIZE, Math.min(readOffset, offset));
+	}
+
+	private Segment roll() throws IOException {
+		long sequence = segments.isEmpty() ? 0
+				: segments.getLast().sequence + 1;
+		File file = new File(directory, String.format("%s%019d%s",
+				SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+		Segment segment = new Segment(file, sequence);
+		map(segment);
+		segment.buffer.putInt(0, MAGIC);
+		segment.buffer.putInt(READ_OFFSET_POSITION, HEADER_SIZE);
+		segment.buffer.putInt(HEADER_SIZE, 0);
+		segment.readOffset = HEADER_SIZE;
+		segment.writeOffset = HEADER_SIZE;
+		segments.add(segment);
+		return segment;
+	}
+
+	private void map(Segment segment) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+		try {
+			segment.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, segmentSize);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void delete(Segment segment) {
+		unmap(segment);
+		if (!segment.file.delete()) {
+			addWarn("Could not delete replayed journal segment: "
+					+ segment.file);
+		}
+	}
+
+	/**
+	 * Releases the mapping right away instead of waiting for the buffer to be
+	 * garbage collected, which keeps the file open. Only segments that are no
+	 * longer accessed may be unmapped.
+	 */
+	private void unmap(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		segment.buffer = null;
+		if (buffer == null) {
+			return;
+		}
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			try {
+				// Java 9 and later
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+						ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			} catch (NoSuchMethodException e) {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (Exception e) {
+			// mapping is released when the buffer is garbage collected
+			addInfo("Could not unmap journal segment: " + segment.file, e);
+		}
+	}
+
+	private int checksum(byte[] bytes, int offset, int length) {
+		crc.reset();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private List<File> listSegmentFiles() {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && name.startsWith(SEGMENT_PREFIX)
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null) {
+			return Collections.emptyList();
+		}
+		List<File> sorted = new ArrayList<File>(Arrays.asList(files));
+		Collections.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File first, File second) {
+				return first.getName().compareTo(second.getName());
+			}
+		});
+		return sorted;
+	}
+
+	private long parseSequence(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+				name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+}
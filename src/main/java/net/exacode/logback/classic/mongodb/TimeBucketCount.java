@@ -0,0 +1,36 @@
+package net.exacode.logback.classic.mongodb;
+
+/**
+ * Number of events logged in a time bucket, see
+ * {@link MongoDbLogDao#countByTimeBucket(LogQuery, long)}.
+ * 
+ * @author mendlik
+ * 
+ */
+public class TimeBucketCount {
+
+	private final long start;
+	private final long count;
+
+	TimeBucketCount(long start, long count) {
+		this.start = start;
+		this.count = count;
+	}
+
+	/**
+	 * @return start of the bucket in milliseconds since epoch
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return start + "=" + count;
+	}
+
+}
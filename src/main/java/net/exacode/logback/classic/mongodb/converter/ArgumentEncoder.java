@@ -0,0 +1,22 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+/**
+ * Converts logging arguments of a type into values stored in MongoDB.
+ * 
+ * @author mendlik
+ * 
+ * @param <T>
+ *            - type of encoded arguments
+ */
+public interface ArgumentEncoder<T> {
+
+	/**
+	 * @param argument
+	 *            - argument, never null
+	 * @return value of a type supported by BSON, i.e. a {@link String},
+	 *         {@link Integer}, {@link Long}, {@link Double}, {@link Boolean}
+	 *         or {@link java.util.Date}
+	 */
+	Object encode(T argument);
+
+}
@@ -0,0 +1,229 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Registry of {@link ArgumentEncoder}s that converts logging arguments into
+ * values stored in MongoDB.
+ * <p>
+ * Primitive wrappers, dates and calendars keep their BSON type, other numbers,
+ * {@link UUID}s and enums are stored as strings. Strings and other
+ * {@link CharSequence}s are cut to {@code maxLength} characters. Arguments of
+ * other types are stored as the result of {@code toString()} cut to
+ * {@code maxLength} characters, so domain objects are never embedded whole and
+ * encoding does not fail on types unknown to BSON.
+ * <p>
+ * Encoders are chosen by the most recently registered type the argument is an
+ * instance of. The choice is cached per class in a {@link ClassValue}, so
+ * encoding an argument takes one lookup and no reflection.
+ * 
+ * @author mendlik
+ * 
+ */
+public class ArgumentEncoders {
+
+	static final String TRUNCATED_SUFFIX = "...";
+
+	static final String FAILED_TO_STRING = "[FAILED toString()]";
+
+	/**
+	 * Registered type with its encoder.
+	 */
+	private static final class Registration {
+		private final Class<?> type;
+		private final ArgumentEncoder<Object> encoder;
+
+		Registration(Class<?> type, ArgumentEncoder<Object> encoder) {
+			this.type = type;
+			this.encoder = encoder;
+		}
+	}
+
+	private static final ArgumentEncoder<Object> IDENTITY = new ArgumentEncoder<Object>() {
+		@Override
+		public Object encode(Object argument) {
+			return argument;
+		}
+	};
+
+	private final List<Registration> registrations = new ArrayList<Registration>();
+
+	private final ArgumentEncoder<Object> fallback = new ArgumentEncoder<Object>() {
+		@Override
+		public Object encode(Object argument) {
+			return truncate(describe(argument));
+		}
+	};
+
+	private volatile ClassValue<ArgumentEncoder<Object>> encoders = newCache();
+
+	private int maxLength = 1024;
+
+	public ArgumentEncoders() {
+		register(CharSequence.class, new ArgumentEncoder<CharSequence>() {
+			@Override
+			public Object encode(CharSequence argument) {
+				return truncate(argument.toString());
+			}
+		});
+		register(Number.class, new ArgumentEncoder<Number>() {
+			@Override
+			public Object encode(Number argument) {
+				return argument.toString();
+			}
+		});
+		register(Byte.class, new ArgumentEncoder<Byte>() {
+			@Override
+			public Object encode(Byte argument) {
+				return argument.intValue();
+			}
+		});
+		register(Short.class, new ArgumentEncoder<Short>() {
+			@Override
+			public Object encode(Short argument) {
+				return argument.intValue();
+			}
+		});
+		register(Float.class, new ArgumentEncoder<Float>() {
+			@Override
+			public Object encode(Float argument) {
+				return argument.doubleValue();
+			}
+		});
+		register(Character.class, new ArgumentEncoder<Character>() {
+			@Override
+			public Object encode(Character argument) {
+				return argument.toString();
+			}
+		});
+		register(Calendar.class, new ArgumentEncoder<Calendar>() {
+			@Override
+			public Object encode(Calendar argument) {
+				return argument.getTime();
+			}
+		});
+		register(Enum.class, new ArgumentEncoder<Object>() {
+			@Override
+			public Object encode(Object argument) {
+				return ((Enum<?>) argument).name();
+			}
+		});
+		register(UUID.class, new ArgumentEncoder<UUID>() {
+			@Override
+			public Object encode(UUID argument) {
+				return argument.toString();
+			}
+		});
+		for (Class<?> type : Arrays.<Class<?>> asList(Integer.class,
+				Long.class, Double.class, Boolean.class, Date.class)) {
+			register(type, IDENTITY);
+		}
+		// stored as strings, BSON numbers would lose precision
+		register(BigDecimal.class, new ArgumentEncoder<BigDecimal>() {
+			@Override
+			public Object encode(BigDecimal argument) {
+				return argument.toString();
+			}
+		});
+		register(BigInteger.class, new ArgumentEncoder<BigInteger>() {
+			@Override
+			public Object encode(BigInteger argument) {
+				return argument.toString();
+			}
+		});
+	}
+
+	/**
+	 * Registers the encoder for arguments of the type and its subtypes. It
+	 * takes precedence over encoders registered before.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> void register(Class<T> type,
+			ArgumentEncoder<? super T> encoder) {
+		registrations.add(new Registration(type,
+				(ArgumentEncoder<Object>) encoder));
+		encoders = newCache();
+	}
+
+	/**
+	 * @return encoded arguments or null for no arguments
+	 */
+	public Object[] encode(Object[] arguments) {
+		if (arguments == null) {
+			return null;
+		}
+		Object[] encoded = new Object[arguments.length];
+		for (int i = 0; i < arguments.length; ++i) {
+			encoded[i] = encode(arguments[i]);
+		}
+		return encoded;
+	}
+
+	public Object encode(Object argument) {
+		if (argument == null) {
+			return null;
+		}
+		try {
+			return encoders.get(argument.getClass()).encode(argument);
+		} catch (RuntimeException e) {
+			return FAILED_TO_STRING;
+		}
+	}
+
+	private ClassValue<ArgumentEncoder<Object>> newCache() {
+		return new ClassValue<ArgumentEncoder<Object>>() {
+			@Override
+			protected ArgumentEncoder<Object> computeValue(Class<?> type) {
+				return lookup(type);
+			}
+		};
+	}
+
+	private synchronized ArgumentEncoder<Object> lookup(Class<?> type) {
+		for (int i = registrations.size() - 1; i >= 0; --i) {
+			Registration registration = registrations.get(i);
+			if (registration.type.isAssignableFrom(type)) {
+				return registration.encoder;
+			}
+		}
+		return fallback;
+	}
+
+	private static String describe(Object argument) {
+		if (argument instanceof Object[]) {
+			return Arrays.deepToString((Object[]) argument);
+		}
+		if (argument.getClass().isArray()) {
+			String text = Arrays.deepToString(new Object[] { argument });
+			return text.substring(1, text.length() - 1);
+		}
+		return argument.toString();
+	}
+
+	private String truncate(String text) {
+		if (text.length() <= maxLength) {
+			return text;
+		}
+		return text.substring(0, maxLength) + TRUNCATED_SUFFIX;
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * @param maxLength
+	 *            - maximal number of characters stored of a string argument
+	 */
+	public void setMaxLength(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+}
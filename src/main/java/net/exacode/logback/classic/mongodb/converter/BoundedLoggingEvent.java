@@ -0,0 +1,141 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.CallerData;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+
+/**
+ * View of an event that is stored with its throwable reduced to
+ * {@link ThrowableLimits}. A truncated event is also stored without MDC,
+ * caller data and arguments and with the message cut, because the whole event
+ * would exceed the maximal document size.
+ * 
+ * @author mendlik
+ * 
+ */
+class BoundedLoggingEvent implements ILoggingEvent {
+
+	private final ILoggingEvent original;
+	private final IThrowableProxy throwable;
+	private final int maxMessageLength;
+
+	/**
+	 * @param maxMessageLength
+	 *            - maximal length of a truncated message, 0 if the event is
+	 *            not truncated
+	 */
+	BoundedLoggingEvent(ILoggingEvent original, IThrowableProxy throwable,
+			int maxMessageLength) {
+		this.original = original;
+		this.throwable = throwable;
+		this.maxMessageLength = maxMessageLength;
+	}
+
+	ILoggingEvent getOriginal() {
+		return original;
+	}
+
+	/**
+	 * @return true if only the essential part of the event is stored
+	 */
+	boolean isTruncated() {
+		return maxMessageLength > 0;
+	}
+
+	@Override
+	public String getThreadName() {
+		return original.getThreadName();
+	}
+
+	@Override
+	public Level getLevel() {
+		return original.getLevel();
+	}
+
+	@Override
+	public String getMessage() {
+		return truncate(original.getMessage());
+	}
+
+	@Override
+	public Object[] getArgumentArray() {
+		return isTruncated() ? null : original.getArgumentArray();
+	}
+
+	@Override
+	public String getFormattedMessage() {
+		return truncate(original.getFormattedMessage());
+	}
+
+	@Override
+	public String getLoggerName() {
+		return original.getLoggerName();
+	}
+
+	@Override
+	public LoggerContextVO getLoggerContextVO() {
+		return original.getLoggerContextVO();
+	}
+
+	@Override
+	public IThrowableProxy getThrowableProxy() {
+		return throwable;
+	}
+
+	@Override
+	public StackTraceElement[] getCallerData() {
+		return isTruncated() ? CallerData.EMPTY_CALLER_DATA_ARRAY : original
+				.getCallerData();
+	}
+
+	@Override
+	public boolean hasCallerData() {
+		return !isTruncated() && original.hasCallerData();
+	}
+
+	@Override
+	public Marker getMarker() {
+		return original.getMarker();
+	}
+
+	@Override
+	public Map<String, String> getMDCPropertyMap() {
+		if (isTruncated()) {
+			return Collections.emptyMap();
+		}
+		return original.getMDCPropertyMap();
+	}
+
+	@Override
+	@Deprecated
+	public Map<String, String> getMdc() {
+		return getMDCPropertyMap();
+	}
+
+	@Override
+	public long getTimeStamp() {
+		return original.getTimeStamp();
+	}
+
+	@Override
+	public void prepareForDeferredProcessing() {
+		original.prepareForDeferredProcessing();
+	}
+
+	private String truncate(String message) {
+		if (!isTruncated() || message == null
+				|| message.length() <= maxMessageLength) {
+			return message;
+		}
+		return message.substring(0, maxMessageLength)
+				+ ArgumentEncoders.TRUNCATED_SUFFIX;
+	}
+
+}
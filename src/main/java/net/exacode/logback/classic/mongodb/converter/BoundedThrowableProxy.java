@@ -0,0 +1,67 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * Copy of a throwable chain reduced to {@link ThrowableLimits}.
+ * 
+ * @author mendlik
+ * 
+ */
+class BoundedThrowableProxy implements IThrowableProxy {
+
+	static final IThrowableProxy[] NO_SUPPRESSED = new IThrowableProxy[0];
+
+	private final String className;
+	private final String message;
+	private final StackTraceElementProxy[] frames;
+	private IThrowableProxy cause;
+	private IThrowableProxy[] suppressed = NO_SUPPRESSED;
+
+	BoundedThrowableProxy(String className, String message,
+			StackTraceElementProxy[] frames) {
+		this.className = className;
+		this.message = message;
+		this.frames = frames;
+	}
+
+	@Override
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String getClassName() {
+		return className;
+	}
+
+	@Override
+	public StackTraceElementProxy[] getStackTraceElementProxyArray() {
+		return frames;
+	}
+
+	@Override
+	public int getCommonFrames() {
+		return 0;
+	}
+
+	@Override
+	public IThrowableProxy getCause() {
+		return cause;
+	}
+
+	void setCause(IThrowableProxy cause) {
+		this.cause = cause;
+	}
+
+	@Override
+	public IThrowableProxy[] getSuppressed() {
+		return suppressed;
+	}
+
+	void setSuppressed(IThrowableProxy[] suppressed) {
+		this.suppressed = suppressed;
+	}
+
+}
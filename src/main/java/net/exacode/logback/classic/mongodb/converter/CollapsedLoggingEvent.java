@@ -0,0 +1,124 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import java.util.Map;
+
+import org.slf4j.Marker;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+
+/**
+ * The first event of a burst of repeated events standing for all of them.
+ * Stored documents additionally hold the number of events and time stamps of
+ * the first and the last one.
+ * 
+ * @author mendlik
+ * 
+ */
+public class CollapsedLoggingEvent implements ILoggingEvent {
+
+	private final ILoggingEvent first;
+	private final long count;
+	private final long lastTimeStamp;
+
+	public CollapsedLoggingEvent(ILoggingEvent first, long count,
+			long lastTimeStamp) {
+		this.first = first;
+		this.count = count;
+		this.lastTimeStamp = lastTimeStamp;
+	}
+
+	/**
+	 * @return number of collapsed events including the first one
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public long getFirstTimeStamp() {
+		return first.getTimeStamp();
+	}
+
+	public long getLastTimeStamp() {
+		return lastTimeStamp;
+	}
+
+	@Override
+	public String getThreadName() {
+		return first.getThreadName();
+	}
+
+	@Override
+	public Level getLevel() {
+		return first.getLevel();
+	}
+
+	@Override
+	public String getMessage() {
+		return first.getMessage();
+	}
+
+	@Override
+	public Object[] getArgumentArray() {
+		return first.getArgumentArray();
+	}
+
+	@Override
+	public String getFormattedMessage() {
+		return first.getFormattedMessage();
+	}
+
+	@Override
+	public String getLoggerName() {
+		return first.getLoggerName();
+	}
+
+	@Override
+	public LoggerContextVO getLoggerContextVO() {
+		return first.getLoggerContextVO();
+	}
+
+	@Override
+	public IThrowableProxy getThrowableProxy() {
+		return first.getThrowableProxy();
+	}
+
+	@Override
+	public StackTraceElement[] getCallerData() {
+		return first.getCallerData();
+	}
+
+	@Override
+	public boolean hasCallerData() {
+		return first.hasCallerData();
+	}
+
+	@Override
+	public Marker getMarker() {
+		return first.getMarker();
+	}
+
+	@Override
+	public Map<String, String> getMDCPropertyMap() {
+		return first.getMDCPropertyMap();
+	}
+
+	@Override
+	@Deprecated
+	public Map<String, String> getMdc() {
+		return first.getMdc();
+	}
+
+	@Override
+	public long getTimeStamp() {
+		return first.getTimeStamp();
+	}
+
+	@Override
+	public void prepareForDeferredProcessing() {
+		first.prepareForDeferredProcessing();
+	}
+
+}
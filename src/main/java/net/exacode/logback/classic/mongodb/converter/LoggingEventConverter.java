@@ -4,15 +4,39 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
-import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 
 /**
  * Converts {@link ILoggingEvent} to and from {@link BasicDBObject}.
+ * <p>
+ * In compact mode documents use short keys, values equal to defaults (empty
+ * or null) are omitted and stack frames are stored as arrays of
+ * {@code [class, method, file, lineNumber]}. Documents in both layouts are
+ * read regardless of the mode.
+ * <p>
+ * With {@code includeCallerData} caller data of every event is stored, events
+ * returning null caller data, e.g. left out by
+ * {@link net.exacode.logback.classic.CallerDataPolicy}, are stored without it.
+ * <p>
+ * Logging arguments are stored as converted by {@link ArgumentEncoders},
+ * throwables are reduced to {@link ThrowableLimits}. Events whose document
+ * could exceed {@code maxDocumentSize} are stored truncated, without MDC,
+ * caller data and arguments, with a shortened message and throwable and with
+ * the {@code truncated} flag.
+ * <p>
+ * With a {@link NameDictionary} logger, thread and caller class names are
+ * stored as dictionary ids and resolved back when events are read.
+ * <p>
+ * In message template mode the unformatted message is stored as
+ * {@code messageTemplate} next to the arguments instead of the formatted
+ * message. Events are then formatted only when they are read, and documents
+ * can be grouped and indexed by their template.
  * 
  * @author mendlik
  * 
@@ -24,79 +48,477 @@ public class LoggingEventConverter {
 	public static final String THREAD_FIELD = "thread";
 	public static final String LOGGER_FIELD = "logger";
 	public static final String MESSAGE_FIELD = "message";
+	public static final String MESSAGE_TEMPLATE_FIELD = "messageTemplate";
 	public static final String MDC_FIELD = "mdc";
 	public static final String CALLER_DATA_FIELD = "callerData";
 	public static final String ARGUMENTS_FIELD = "arguments";
 	public static final String THROWABLE_FIELD = "throwable";
+	public static final String COUNT_FIELD = "count";
+	public static final String FIRST_TIME_STAMP_FIELD = "firstTimestamp";
+	public static final String LAST_TIME_STAMP_FIELD = "lastTimestamp";
+	public static final String TRUNCATED_FIELD = "truncated";
+
+	public static final String COMPACT_TIME_STAMP_FIELD = "t";
+	public static final String COMPACT_LEVEL_FIELD = "l";
+	public static final String COMPACT_THREAD_FIELD = "th";
+	public static final String COMPACT_LOGGER_FIELD = "lg";
+	public static final String COMPACT_MESSAGE_FIELD = "m";
+	public static final String COMPACT_MESSAGE_TEMPLATE_FIELD = "mt";
+	public static final String COMPACT_MDC_FIELD = "md";
+	public static final String COMPACT_CALLER_DATA_FIELD = "c";
+	public static final String COMPACT_ARGUMENTS_FIELD = "a";
+	public static final String COMPACT_THROWABLE_FIELD = "x";
+	public static final String COMPACT_COUNT_FIELD = "n";
+	public static final String COMPACT_FIRST_TIME_STAMP_FIELD = "tf";
+	public static final String COMPACT_LAST_TIME_STAMP_FIELD = "tl";
+	public static final String COMPACT_TRUNCATED_FIELD = "tr";
+
+	/**
+	 * Maximal size of a BSON document accepted by MongoDB.
+	 */
+	public static final int MAX_DOCUMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final Map<String, String> COMPACT_FIELDS = new HashMap<String, String>();
+
+	static {
+		COMPACT_FIELDS.put(TIME_STAMP_FIELD, COMPACT_TIME_STAMP_FIELD);
+		COMPACT_FIELDS.put(LEVEL_FIELD, COMPACT_LEVEL_FIELD);
+		COMPACT_FIELDS.put(THREAD_FIELD, COMPACT_THREAD_FIELD);
+		COMPACT_FIELDS.put(LOGGER_FIELD, COMPACT_LOGGER_FIELD);
+		COMPACT_FIELDS.put(MESSAGE_FIELD, COMPACT_MESSAGE_FIELD);
+		COMPACT_FIELDS.put(MESSAGE_TEMPLATE_FIELD,
+				COMPACT_MESSAGE_TEMPLATE_FIELD);
+		COMPACT_FIELDS.put(MDC_FIELD, COMPACT_MDC_FIELD);
+		COMPACT_FIELDS.put(CALLER_DATA_FIELD, COMPACT_CALLER_DATA_FIELD);
+		COMPACT_FIELDS.put(ARGUMENTS_FIELD, COMPACT_ARGUMENTS_FIELD);
+		COMPACT_FIELDS.put(THROWABLE_FIELD, COMPACT_THROWABLE_FIELD);
+		COMPACT_FIELDS.put(COUNT_FIELD, COMPACT_COUNT_FIELD);
+		COMPACT_FIELDS.put(FIRST_TIME_STAMP_FIELD,
+				COMPACT_FIRST_TIME_STAMP_FIELD);
+		COMPACT_FIELDS.put(LAST_TIME_STAMP_FIELD, COMPACT_LAST_TIME_STAMP_FIELD);
+		COMPACT_FIELDS.put(TRUNCATED_FIELD, COMPACT_TRUNCATED_FIELD);
+	}
+
+	/**
+	 * Allowance for a stored caller data frame, whose strings are not measured.
+	 */
+	private static final int CALLER_FRAME_SIZE = 1024;
 
 	private final StackTraceElementConverter steConverter = new StackTraceElementConverter();
 
 	private final ThrowableConverter throwableConverter = new ThrowableConverter();
 
+	private final ArgumentEncoders argumentEncoders = new ArgumentEncoders();
+
+	private final ThrowableLimits throwableLimits = new ThrowableLimits();
+
+	private final ThrowableLimits truncatedThrowableLimits = new ThrowableLimits();
+
+	private int maxDocumentSize = MAX_DOCUMENT_SIZE;
+
 	private boolean includeCallerData = true;
 
+	private boolean compact;
+
+	private boolean messageTemplate;
+
+	private StackTraceStore stackTraceStore;
+
+	private NameDictionary nameDictionary;
+
 	public LoggingEventConverter() {
+		truncatedThrowableLimits.setMaxDepth(8);
+		truncatedThrowableLimits.setMaxFrames(8);
+		truncatedThrowableLimits.setTailFrames(0);
+		truncatedThrowableLimits.setMaxTotalFrames(64);
+		truncatedThrowableLimits.setMaxMessageLength(1024);
 	}
 
 	public LoggingEventConverter(boolean includeCallerData) {
+		this();
 		this.includeCallerData = includeCallerData;
 	}
 
+	public LoggingEventConverter(boolean includeCallerData, boolean compact) {
+		this();
+		this.includeCallerData = includeCallerData;
+		this.compact = compact;
+	}
+
+	/**
+	 * Restores the event from a document of either layout. Caller data,
+	 * arguments, MDC and throwable are decoded when first accessed.
+	 */
 	public ILoggingEvent convertToLoggingEvent(BasicDBObject object) {
-		final LoggingEvent event = new LoggingEvent();
-		event.setTimeStamp(object.getDate(TIME_STAMP_FIELD).getTime());
-		event.setLevel(Level.toLevel(object.getString(LEVEL_FIELD)));
-		event.setThreadName(object.getString(THREAD_FIELD));
-		event.setLoggerName(object.getString(LOGGER_FIELD));
-		event.setMessage(object.getString(MESSAGE_FIELD));
-		if (object.containsField(MDC_FIELD)) {
-			BasicDBObject mdcMapDoc = (BasicDBObject) object.get(MDC_FIELD);
-			Map<String, String> mdcMap = new HashMap<String, String>();
-			for (String key : mdcMapDoc.keySet()) {
-				mdcMap.put(key, mdcMapDoc.getString(key));
-			}
+		return new StoredLoggingEvent(object,
+				object.containsField(COMPACT_TIME_STAMP_FIELD), this);
+	}
+
+	StackTraceElement[] convertCallerData(BasicDBList frames) {
+		return steConverter.convertToStackTrace(frames);
+	}
+
+	IThrowableProxy convertThrowable(BasicDBObject throwable) {
+		return throwableConverter.convertToThrowableProxy(throwable);
+	}
+
+	/**
+	 * @return key of the field in the compact layout, null for unknown fields
+	 */
+	public static String compactFieldName(String field) {
+		return COMPACT_FIELDS.get(field);
+	}
+
+	/**
+	 * @return time stamp of the event stored in the document of any layout
+	 */
+	public long getTimeStamp(DBObject document) {
+		if (document instanceof LoggingEventDocument) {
+			return ((LoggingEventDocument) document).getEvent()
+					.getTimeStamp();
 		}
-		if (object.containsField(CALLER_DATA_FIELD)) {
-			event.setCallerData(steConverter
-					.convertToStackTrace((BasicDBList) object
-							.get(CALLER_DATA_FIELD)));
+		Object timeStamp = document.get(TIME_STAMP_FIELD);
+		if (timeStamp == null) {
+			timeStamp = document.get(COMPACT_TIME_STAMP_FIELD);
 		}
-		if (object.containsField(ARGUMENTS_FIELD)) {
-			BasicDBList argListDoc = (BasicDBList) object.get(ARGUMENTS_FIELD);
-			event.setArgumentArray(argListDoc.toArray());
+		return ((Date) timeStamp).getTime();
+	}
+
+	/**
+	 * @return key under which the field is stored in documents written by this
+	 *         converter
+	 */
+	public String getFieldName(String field) {
+		return compact ? COMPACT_FIELDS.get(field) : field;
+	}
+
+	/**
+	 * @return dotted path of the class name of a logged exception in documents
+	 *         written by this converter
+	 */
+	public String getThrowableClassField() {
+		return compact ? COMPACT_THROWABLE_FIELD + "."
+				+ ThrowableConverter.COMPACT_CLASS_FIELD : THROWABLE_FIELD + "."
+				+ ThrowableConverter.CLASS_FILED;
+	}
+
+	public boolean isCompact() {
+		return compact;
+	}
+
+	/**
+	 * Enables storing message templates instead of formatted messages.
+	 */
+	public void setMessageTemplate(boolean messageTemplate) {
+		this.messageTemplate = messageTemplate;
+	}
+
+	public boolean isMessageTemplate() {
+		return messageTemplate;
+	}
+
+	/**
+	 * @return key of the stored message, formatted or template, in documents
+	 *         written by this converter
+	 */
+	public String getMessageFieldName() {
+		return getFieldName(messageTemplate ? MESSAGE_TEMPLATE_FIELD
+				: MESSAGE_FIELD);
+	}
+
+	/**
+	 * @return the stored message, the template is not formatted
+	 */
+	String getStoredMessage(ILoggingEvent event) {
+		return messageTemplate ? event.getMessage() : event
+				.getFormattedMessage();
+	}
+
+	/**
+	 * Wraps the event in a document that is encoded directly into BSON by
+	 * {@link LoggingEventEncoder}. Unlike
+	 * {@link #convertToDocument(ILoggingEvent)} no intermediate objects are
+	 * created.
+	 */
+	public LoggingEventDocument wrap(ILoggingEvent event) {
+		final ILoggingEvent bounded = bound(event);
+		LoggingEventDocument document = new LoggingEventDocument(bounded, this);
+		if (stackTraceStore != null && bounded.getThrowableProxy() != null) {
+			// register the trace once, before the document is encoded
+			document.setThrowableDocument(convertThrowable(bounded
+					.getThrowableProxy()));
 		}
-		if (object.containsField(THROWABLE_FIELD)) {
-			event.setThrowableProxy(throwableConverter
-					.convertToThrowableProxy((BasicDBObject) object
-							.get(THROWABLE_FIELD)));
+		return document;
+	}
+
+	/**
+	 * Enables storing each unique stack trace once in the store, events then
+	 * hold only a stub of the throwable chain.
+	 */
+	public void setStackTraceStore(StackTraceStore stackTraceStore) {
+		this.stackTraceStore = stackTraceStore;
+		throwableConverter.setStackTraceStore(stackTraceStore);
+	}
+
+	/**
+	 * @return registry converting logging arguments into stored values, more
+	 *         encoders may be registered
+	 */
+	public ArgumentEncoders getArgumentEncoders() {
+		return argumentEncoders;
+	}
+
+	/**
+	 * Enables storing logger, thread and caller class names as ids of the
+	 * dictionary.
+	 */
+	public void setNameDictionary(NameDictionary nameDictionary) {
+		this.nameDictionary = nameDictionary;
+		steConverter.setNameDictionary(nameDictionary);
+	}
+
+	public NameDictionary getNameDictionary() {
+		return nameDictionary;
+	}
+
+	/**
+	 * @return dictionary id of the name or the name itself
+	 */
+	Object encodeName(String name) {
+		return nameDictionary == null ? name : nameDictionary.encode(name);
+	}
+
+	/**
+	 * @return name of a stored dictionary id or the stored name
+	 */
+	public String decodeName(Object value) {
+		if (nameDictionary != null) {
+			return nameDictionary.decode(value);
 		}
-		return event;
+		return value != null ? value.toString() : null;
+	}
+
+	Object encodeClassName(String className) {
+		return steConverter.encodeClassName(className);
+	}
+
+	/**
+	 * @return limits of stored throwables, may be changed
+	 */
+	public ThrowableLimits getThrowableLimits() {
+		return throwableLimits;
+	}
+
+	/**
+	 * @param maxDocumentSize
+	 *            - maximal size of a stored event, larger events are truncated
+	 */
+	public void setMaxDocumentSize(int maxDocumentSize) {
+		this.maxDocumentSize = maxDocumentSize;
+	}
+
+	public boolean isIncludeCallerData() {
+		return includeCallerData;
 	}
 
 	public BasicDBObject convertToDocument(ILoggingEvent event) {
+		return convertToDocument(bound(event), null);
+	}
+
+	/**
+	 * @return the event or its view reduced to the limits of stored events
+	 */
+	ILoggingEvent bound(ILoggingEvent event) {
+		IThrowableProxy throwable = event.getThrowableProxy();
+		if (throwable == null) {
+			return estimateSize(event) > maxDocumentSize ? new BoundedLoggingEvent(
+					event, null, maxDocumentSize / 16) : event;
+		}
+		IThrowableProxy bounded = throwableLimits.apply(throwable);
+		ILoggingEvent result = bounded == throwable ? event
+				: new BoundedLoggingEvent(event, bounded, 0);
+		if (estimateSize(result) + estimateSize(bounded) > maxDocumentSize) {
+			result = new BoundedLoggingEvent(event,
+					truncatedThrowableLimits.apply(throwable),
+					maxDocumentSize / 16);
+		}
+		return result;
+	}
+
+	/**
+	 * Estimates the event without its throwable from lengths of the stored
+	 * strings, the limit of arguments and the number of caller data frames, so
+	 * events without a throwable are bounded without walking stack frames.
+	 * Caller data that was not taken yet is not counted and not taken.
+	 * 
+	 * @return upper bound of the size of the encoded event without throwable
+	 */
+	long estimateSize(ILoggingEvent event) {
+		long size = 256 + estimateSize(event.getThreadName())
+				+ estimateSize(event.getLoggerName())
+				+ estimateSize(getStoredMessage(event));
+		if (event.getArgumentArray() != null) {
+			size += event.getArgumentArray().length
+					* (3L * argumentEncoders.getMaxLength() + 32);
+		}
+		Map<String, String> mdc = event.getMDCPropertyMap();
+		if (mdc != null) {
+			for (Map.Entry<String, String> entry : mdc.entrySet()) {
+				size += estimateSize(entry.getKey())
+						+ estimateSize(entry.getValue());
+			}
+		}
+		if (includeCallerData && event.hasCallerData()) {
+			StackTraceElement[] callerData = event.getCallerData();
+			if (callerData != null) {
+				size += 16 + callerData.length * CALLER_FRAME_SIZE;
+			}
+		}
+		return size;
+	}
+
+	private long estimateSize(IThrowableProxy throwable) {
+		long size = 64 + estimateSize(throwable.getClassName())
+				+ estimateSize(throwable.getMessage());
+		StackTraceElementProxy[] frames = throwable
+				.getStackTraceElementProxyArray();
+		for (int i = 0; i < frames.length - throwable.getCommonFrames(); ++i) {
+			size += estimateSize(frames[i].getStackTraceElement());
+		}
+		if (throwable.getCause() != null) {
+			size += estimateSize(throwable.getCause());
+		}
+		for (IThrowableProxy suppressed : ThrowableLimits
+				.suppressedOf(throwable)) {
+			size += estimateSize(suppressed);
+		}
+		return size;
+	}
+
+	private static long estimateSize(StackTraceElement frame) {
+		return 80 + estimateSize(frame.getClassName())
+				+ estimateSize(frame.getMethodName())
+				+ estimateSize(frame.getFileName());
+	}
+
+	/**
+	 * @return upper bound of the size of the field name and UTF-8 string
+	 */
+	private static long estimateSize(String value) {
+		return value == null ? 16 : 16 + 3L * value.length();
+	}
+
+	/**
+	 * @param throwableDocument
+	 *            - already converted throwable or null
+	 */
+	BasicDBObject convertToDocument(ILoggingEvent event,
+			DBObject throwableDocument) {
+		if (compact) {
+			return convertToCompactDocument(event, throwableDocument);
+		}
 		final BasicDBObject doc = new BasicDBObject();
 		doc.append(TIME_STAMP_FIELD, new Date(event.getTimeStamp()));
 		doc.append(LEVEL_FIELD, event.getLevel().levelStr);
-		doc.append(THREAD_FIELD, event.getThreadName());
-		doc.append(LOGGER_FIELD, event.getLoggerName());
-		doc.append(MESSAGE_FIELD, event.getFormattedMessage());
+		doc.append(THREAD_FIELD, encodeName(event.getThreadName()));
+		doc.append(LOGGER_FIELD, encodeName(event.getLoggerName()));
+		doc.append(getMessageFieldName(), getStoredMessage(event));
 		if (event.getMDCPropertyMap() != null
 				&& !event.getMDCPropertyMap().isEmpty()) {
 			doc.append(MDC_FIELD, event.getMDCPropertyMap());
 		}
-		if (includeCallerData) {
+		if (includeCallerData && event.getCallerData() != null) {
 			doc.append(CALLER_DATA_FIELD,
 					steConverter.convertToDocument(event.getCallerData()));
 		}
 		if (event.getArgumentArray() != null
 				&& event.getArgumentArray().length > 0) {
-			doc.append(ARGUMENTS_FIELD, event.getArgumentArray());
+			doc.append(ARGUMENTS_FIELD,
+					argumentEncoders.encode(event.getArgumentArray()));
+		}
+		if (event.getThrowableProxy() != null) {
+			doc.append(THROWABLE_FIELD,
+					throwableDocument != null ? throwableDocument
+							: convertThrowable(event.getThrowableProxy()));
+		}
+		appendBurst(doc, event);
+		return doc;
+	}
+
+	DBObject convertThrowable(IThrowableProxy throwable) {
+		return throwableConverter.convertToDocument(throwable, compact);
+	}
+
+	private BasicDBObject convertToCompactDocument(ILoggingEvent event,
+			DBObject throwableDocument) {
+		final BasicDBObject doc = new BasicDBObject();
+		doc.append(COMPACT_TIME_STAMP_FIELD, new Date(event.getTimeStamp()));
+		doc.append(COMPACT_LEVEL_FIELD, event.getLevel().levelStr);
+		appendIfNotNull(doc, COMPACT_THREAD_FIELD,
+				encodeName(event.getThreadName()));
+		appendIfNotNull(doc, COMPACT_LOGGER_FIELD,
+				encodeName(event.getLoggerName()));
+		appendIfNotNull(doc, getMessageFieldName(), getStoredMessage(event));
+		if (event.getMDCPropertyMap() != null
+				&& !event.getMDCPropertyMap().isEmpty()) {
+			doc.append(COMPACT_MDC_FIELD, event.getMDCPropertyMap());
+		}
+		if (includeCallerData && event.getCallerData() != null
+				&& event.getCallerData().length > 0) {
+			doc.append(COMPACT_CALLER_DATA_FIELD,
+					steConverter.convertToCompactDocument(event.getCallerData()));
+		}
+		if (event.getArgumentArray() != null
+				&& event.getArgumentArray().length > 0) {
+			doc.append(COMPACT_ARGUMENTS_FIELD,
+					argumentEncoders.encode(event.getArgumentArray()));
 		}
 		if (event.getThrowableProxy() != null) {
-			final BasicDBObject val = throwableConverter
-					.convertToDocument(event.getThrowableProxy());
-			doc.append(THROWABLE_FIELD, val);
+			doc.append(COMPACT_THROWABLE_FIELD,
+					throwableDocument != null ? throwableDocument
+							: convertThrowable(event.getThrowableProxy()));
 		}
+		appendBurst(doc, event);
 		return doc;
 	}
+
+	/**
+	 * Appends the number of events and time stamps of a collapsed burst and the
+	 * flag of a truncated event.
+	 */
+	private void appendBurst(BasicDBObject doc, ILoggingEvent event) {
+		CollapsedLoggingEvent burst = burstOf(event);
+		if (burst != null) {
+			doc.append(getFieldName(COUNT_FIELD), burst.getCount());
+			doc.append(getFieldName(FIRST_TIME_STAMP_FIELD),
+					new Date(burst.getFirstTimeStamp()));
+			doc.append(getFieldName(LAST_TIME_STAMP_FIELD),
+					new Date(burst.getLastTimeStamp()));
+		}
+		if (isTruncated(event)) {
+			doc.append(getFieldName(TRUNCATED_FIELD), true);
+		}
+	}
+
+	/**
+	 * @return the collapsed burst or null for a single event
+	 */
+	static CollapsedLoggingEvent burstOf(ILoggingEvent event) {
+		if (event instanceof BoundedLoggingEvent) {
+			event = ((BoundedLoggingEvent) event).getOriginal();
+		}
+		return event instanceof CollapsedLoggingEvent ? (CollapsedLoggingEvent) event
+				: null;
+	}
+
+	static boolean isTruncated(ILoggingEvent event) {
+		return event instanceof BoundedLoggingEvent
+				&& ((BoundedLoggingEvent) event).isTruncated();
+	}
+
+	private void appendIfNotNull(BasicDBObject doc, String key, Object value) {
+		if (value != null) {
+			doc.append(key, value);
+		}
+	}
 }
@@ -0,0 +1,322 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BSONObject;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import com.mongodb.DBObject;
+
+/**
+ * {@link DBObject} view of an {@link ILoggingEvent} that is serialized
+ * directly by {@link LoggingEventEncoder}, without building a tree of
+ * {@link com.mongodb.BasicDBObject}s first.
+ * <p>
+ * Caller data and throwable are exposed as the raw {@link StackTraceElement}
+ * array and {@link ch.qos.logback.classic.spi.IThrowableProxy}, so the
+ * document must be encoded with {@link LoggingEventEncoder}. Use
+ * {@link #toDBObject()} to obtain an equivalent regular document.
+ * <p>
+ * Setting {@code _id}, as the driver does on insert, keeps the view. Any other
+ * modification materializes the regular document once; from then on the view
+ * delegates to it and the encoder writes it as any other document.
+ * 
+ * @author mendlik
+ * 
+ */
+public class LoggingEventDocument implements DBObject {
+
+	static final String ID_FIELD = "_id";
+
+	private final ILoggingEvent event;
+	private final LoggingEventConverter converter;
+	private Object id;
+	private DBObject throwableDocument;
+	private DBObject materialized;
+
+	LoggingEventDocument(ILoggingEvent event, LoggingEventConverter converter) {
+		this.event = event;
+		this.converter = converter;
+	}
+
+	public ILoggingEvent getEvent() {
+		return event;
+	}
+
+	Object getId() {
+		return id;
+	}
+
+	/**
+	 * @return true if the document was modified beyond {@code _id} and is no
+	 *         longer a view of the event
+	 */
+	boolean isMaterialized() {
+		return materialized != null;
+	}
+
+	/**
+	 * @return throwable converted when the event was wrapped or null if it is
+	 *         encoded directly
+	 */
+	DBObject getThrowableDocument() {
+		return throwableDocument;
+	}
+
+	void setThrowableDocument(DBObject throwableDocument) {
+		this.throwableDocument = throwableDocument;
+	}
+
+	boolean hasMdc() {
+		Map<String, String> mdc = event.getMDCPropertyMap();
+		return mdc != null && !mdc.isEmpty();
+	}
+
+	boolean hasArguments() {
+		return event.getArgumentArray() != null
+				&& event.getArgumentArray().length > 0;
+	}
+
+	boolean hasCallerData() {
+		if (!converter.isIncludeCallerData()) {
+			return false;
+		}
+		StackTraceElement[] callerData = event.getCallerData();
+		if (callerData == null) {
+			return false;
+		}
+		return !converter.isCompact() || callerData.length > 0;
+	}
+
+	/**
+	 * @return the collapsed burst or null for a single event
+	 */
+	CollapsedLoggingEvent getBurst() {
+		return LoggingEventConverter.burstOf(event);
+	}
+
+	boolean isTruncated() {
+		return LoggingEventConverter.isTruncated(event);
+	}
+
+	boolean hasThrowable() {
+		return event.getThrowableProxy() != null;
+	}
+
+	/**
+	 * @return true if the field is stored, compact documents omit null values
+	 */
+	private boolean has(String value) {
+		return value != null || !converter.isCompact();
+	}
+
+	boolean isCompact() {
+		return converter.isCompact();
+	}
+
+	String fieldName(String field) {
+		return converter.getFieldName(field);
+	}
+
+	ArgumentEncoders argumentEncoders() {
+		return converter.getArgumentEncoders();
+	}
+
+	/**
+	 * @return dictionary id of the name or the name itself
+	 */
+	Object encodeName(String name) {
+		return converter.encodeName(name);
+	}
+
+	Object encodeClassName(String className) {
+		return converter.encodeClassName(className);
+	}
+
+	String messageFieldName() {
+		return converter.getMessageFieldName();
+	}
+
+	/**
+	 * @return formatted message or template, as stored by the converter
+	 */
+	String getStoredMessage() {
+		return converter.getStoredMessage(event);
+	}
+
+	/**
+	 * @return regular document with the same content
+	 */
+	public DBObject toDBObject() {
+		if (materialized != null) {
+			return materialized;
+		}
+		DBObject document = converter.convertToDocument(event,
+				throwableDocument);
+		if (id != null) {
+			document.put(ID_FIELD, id);
+		}
+		return document;
+	}
+
+	private DBObject materialize() {
+		if (materialized == null) {
+			materialized = toDBObject();
+		}
+		return materialized;
+	}
+
+	@Override
+	public Object get(String key) {
+		if (materialized != null) {
+			return materialized.get(key);
+		} else if (ID_FIELD.equals(key)) {
+			return id;
+		} else if (fieldName(LoggingEventConverter.TIME_STAMP_FIELD).equals(key)) {
+			return new Date(event.getTimeStamp());
+		} else if (fieldName(LoggingEventConverter.LEVEL_FIELD).equals(key)) {
+			return event.getLevel().levelStr;
+		} else if (fieldName(LoggingEventConverter.THREAD_FIELD).equals(key)) {
+			return converter.encodeName(event.getThreadName());
+		} else if (fieldName(LoggingEventConverter.LOGGER_FIELD).equals(key)) {
+			return converter.encodeName(event.getLoggerName());
+		} else if (converter.getMessageFieldName().equals(key)) {
+			return converter.getStoredMessage(event);
+		} else if (fieldName(LoggingEventConverter.MDC_FIELD).equals(key)) {
+			return hasMdc() ? event.getMDCPropertyMap() : null;
+		} else if (fieldName(LoggingEventConverter.CALLER_DATA_FIELD)
+				.equals(key)) {
+			return hasCallerData() ? event.getCallerData() : null;
+		} else if (fieldName(LoggingEventConverter.ARGUMENTS_FIELD).equals(key)) {
+			return hasArguments() ? converter.getArgumentEncoders().encode(
+					event.getArgumentArray()) : null;
+		} else if (fieldName(LoggingEventConverter.THROWABLE_FIELD).equals(key)) {
+			return throwableDocument != null ? throwableDocument : event
+					.getThrowableProxy();
+		} else if (getBurst() != null) {
+			if (fieldName(LoggingEventConverter.COUNT_FIELD).equals(key)) {
+				return getBurst().getCount();
+			} else if (fieldName(LoggingEventConverter.FIRST_TIME_STAMP_FIELD)
+					.equals(key)) {
+				return new Date(getBurst().getFirstTimeStamp());
+			} else if (fieldName(LoggingEventConverter.LAST_TIME_STAMP_FIELD)
+					.equals(key)) {
+				return new Date(getBurst().getLastTimeStamp());
+			}
+		}
+		if (isTruncated()
+				&& fieldName(LoggingEventConverter.TRUNCATED_FIELD).equals(key)) {
+			return true;
+		}
+		return null;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		if (materialized != null || !ID_FIELD.equals(key)) {
+			return materialize().put(key, value);
+		}
+		Object previous = id;
+		id = value;
+		return previous;
+	}
+
+	@Override
+	public Object removeField(String key) {
+		if (materialized == null && ID_FIELD.equals(key)) {
+			return put(ID_FIELD, null);
+		}
+		return materialize().removeField(key);
+	}
+
+	@Override
+	public boolean containsField(String key) {
+		return keySet().contains(key);
+	}
+
+	@Override
+	@Deprecated
+	public boolean containsKey(String key) {
+		return containsField(key);
+	}
+
+	@Override
+	public Set<String> keySet() {
+		if (materialized != null) {
+			return materialized.keySet();
+		}
+		Set<String> keys = new LinkedHashSet<String>();
+		keys.add(fieldName(LoggingEventConverter.TIME_STAMP_FIELD));
+		keys.add(fieldName(LoggingEventConverter.LEVEL_FIELD));
+		if (has(event.getThreadName())) {
+			keys.add(fieldName(LoggingEventConverter.THREAD_FIELD));
+		}
+		if (has(event.getLoggerName())) {
+			keys.add(fieldName(LoggingEventConverter.LOGGER_FIELD));
+		}
+		if (has(converter.getStoredMessage(event))) {
+			keys.add(converter.getMessageFieldName());
+		}
+		if (hasMdc()) {
+			keys.add(fieldName(LoggingEventConverter.MDC_FIELD));
+		}
+		if (hasCallerData()) {
+			keys.add(fieldName(LoggingEventConverter.CALLER_DATA_FIELD));
+		}
+		if (hasArguments()) {
+			keys.add(fieldName(LoggingEventConverter.ARGUMENTS_FIELD));
+		}
+		if (hasThrowable()) {
+			keys.add(fieldName(LoggingEventConverter.THROWABLE_FIELD));
+		}
+		if (getBurst() != null) {
+			keys.add(fieldName(LoggingEventConverter.COUNT_FIELD));
+			keys.add(fieldName(LoggingEventConverter.FIRST_TIME_STAMP_FIELD));
+			keys.add(fieldName(LoggingEventConverter.LAST_TIME_STAMP_FIELD));
+		}
+		if (isTruncated()) {
+			keys.add(fieldName(LoggingEventConverter.TRUNCATED_FIELD));
+		}
+		if (id != null) {
+			keys.add(ID_FIELD);
+		}
+		return keys;
+	}
+
+	@Override
+	public void putAll(BSONObject o) {
+		materialize().putAll(o);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void putAll(Map m) {
+		materialize().putAll(m);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Map toMap() {
+		return toDBObject().toMap();
+	}
+
+	@Override
+	public void markAsPartialObject() {
+		materialize().markAsPartialObject();
+	}
+
+	@Override
+	public boolean isPartialObject() {
+		return materialized != null && materialized.isPartialObject();
+	}
+
+	@Override
+	public String toString() {
+		return toDBObject().toString();
+	}
+
+}
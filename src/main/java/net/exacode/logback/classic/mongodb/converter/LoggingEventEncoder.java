@@ -0,0 +1,309 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * Encodes {@link LoggingEventDocument}s straight from {@link ILoggingEvent}
+ * into BSON. The output is byte for byte the same as encoding the document
+ * built by {@link LoggingEventConverter#convertToDocument(ILoggingEvent)}, in
+ * both standard and compact layout.
+ * Other documents are encoded as by {@link DefaultDBEncoder}.
+ * <p>
+ * Encoders keep state, use {@link #FACTORY} to obtain one per thread.
+ * 
+ * @author mendlik
+ * 
+ */
+public class LoggingEventEncoder extends DefaultDBEncoder {
+
+	/**
+	 * Creates one encoder per thread and reuses it.
+	 */
+	public static final DBEncoderFactory FACTORY = new DBEncoderFactory() {
+		private final ThreadLocal<LoggingEventEncoder> encoders = new ThreadLocal<LoggingEventEncoder>() {
+			@Override
+			protected LoggingEventEncoder initialValue() {
+				return new LoggingEventEncoder();
+			}
+		};
+
+		@Override
+		public DBEncoder create() {
+			return encoders.get();
+		}
+	};
+
+	private static final String[] INDEX_NAMES = new String[256];
+
+	static {
+		for (int i = 0; i < INDEX_NAMES.length; ++i) {
+			INDEX_NAMES[i] = String.valueOf(i);
+		}
+	}
+
+	@Override
+	protected int putObject(String name, BSONObject o) {
+		if (name != null || !(o instanceof LoggingEventDocument)) {
+			return super.putObject(name, o);
+		}
+		LoggingEventDocument document = (LoggingEventDocument) o;
+		if (document.isMaterialized()) {
+			return super.putObject(name, document.toDBObject());
+		}
+		return putEvent(document);
+	}
+
+	private int putEvent(LoggingEventDocument document) {
+		final ILoggingEvent event = document.getEvent();
+		final boolean compact = document.isCompact();
+		final int sizePos = _buf.getPosition();
+		_buf.writeInt(0);
+		if (document.getId() != null) {
+			_putObjectField(LoggingEventDocument.ID_FIELD, document.getId());
+		}
+		_put(BSON.DATE,
+				document.fieldName(LoggingEventConverter.TIME_STAMP_FIELD));
+		_buf.writeLong(event.getTimeStamp());
+		putString(document.fieldName(LoggingEventConverter.LEVEL_FIELD),
+				event.getLevel().levelStr);
+		putName(document.fieldName(LoggingEventConverter.THREAD_FIELD),
+				document.encodeName(event.getThreadName()), compact);
+		putName(document.fieldName(LoggingEventConverter.LOGGER_FIELD),
+				document.encodeName(event.getLoggerName()), compact);
+		putString(document.messageFieldName(), document.getStoredMessage(),
+				compact);
+		if (document.hasMdc()) {
+			_putObjectField(
+					document.fieldName(LoggingEventConverter.MDC_FIELD),
+					event.getMDCPropertyMap());
+		}
+		if (document.hasCallerData()) {
+			putFrames(
+					document.fieldName(LoggingEventConverter.CALLER_DATA_FIELD),
+					event.getCallerData(), compact, document);
+		}
+		if (document.hasArguments()) {
+			putArguments(
+					document.fieldName(LoggingEventConverter.ARGUMENTS_FIELD),
+					event.getArgumentArray(), document.argumentEncoders());
+		}
+		if (document.getThrowableDocument() != null) {
+			_putObjectField(
+					document.fieldName(LoggingEventConverter.THROWABLE_FIELD),
+					document.getThrowableDocument());
+		} else if (document.hasThrowable()) {
+			if (compact) {
+				putCompactThrowable(
+						LoggingEventConverter.COMPACT_THROWABLE_FIELD,
+						event.getThrowableProxy());
+			} else {
+				putThrowable(LoggingEventConverter.THROWABLE_FIELD,
+						event.getThrowableProxy());
+			}
+		}
+		final CollapsedLoggingEvent burst = document.getBurst();
+		if (burst != null) {
+			_put(BSON.NUMBER_LONG,
+					document.fieldName(LoggingEventConverter.COUNT_FIELD));
+			_buf.writeLong(burst.getCount());
+			_put(BSON.DATE, document
+					.fieldName(LoggingEventConverter.FIRST_TIME_STAMP_FIELD));
+			_buf.writeLong(burst.getFirstTimeStamp());
+			_put(BSON.DATE, document
+					.fieldName(LoggingEventConverter.LAST_TIME_STAMP_FIELD));
+			_buf.writeLong(burst.getLastTimeStamp());
+		}
+		if (document.isTruncated()) {
+			_put(BSON.BOOLEAN,
+					document.fieldName(LoggingEventConverter.TRUNCATED_FIELD));
+			_buf.write(1);
+		}
+		return end(sizePos);
+	}
+
+	private void putArguments(String name, Object[] arguments,
+			ArgumentEncoders encoders) {
+		final int sizePos = begin(BSON.ARRAY, name);
+		for (int i = 0; i < arguments.length; ++i) {
+			_putObjectField(indexName(i), encoders.encode(arguments[i]));
+		}
+		end(sizePos);
+	}
+
+	private void putFrames(String name, StackTraceElement[] frames,
+			boolean compact, LoggingEventDocument document) {
+		final int sizePos = begin(BSON.ARRAY, name);
+		for (int i = 0; i < frames.length; ++i) {
+			final Object className = document.encodeClassName(frames[i]
+					.getClassName());
+			if (compact) {
+				putCompactFrame(indexName(i), frames[i], className);
+			} else {
+				putFrame(indexName(i), frames[i], className);
+			}
+		}
+		end(sizePos);
+	}
+
+	private void putThrowable(String name, IThrowableProxy throwable) {
+		final int sizePos = begin(BSON.OBJECT, name);
+		putString(ThrowableConverter.CLASS_FILED, throwable.getClassName(),
+				false);
+		putString(ThrowableConverter.MESSAGE_FILED, throwable.getMessage(),
+				false);
+		final StackTraceElementProxy[] proxies = throwable
+				.getStackTraceElementProxyArray();
+		final int frames = proxies.length - throwable.getCommonFrames();
+		final int stackTracePos = begin(BSON.ARRAY,
+				ThrowableConverter.STACK_TRACE_FIELD);
+		for (int i = 0; i < frames; ++i) {
+			final StackTraceElement frame = proxies[i].getStackTraceElement();
+			putFrame(indexName(i), frame, frame.getClassName());
+		}
+		end(stackTracePos);
+		if (throwable.getCause() != null) {
+			putThrowable(ThrowableConverter.CAUSE_TRACE_FIELD,
+					throwable.getCause());
+		}
+		final IThrowableProxy[] suppressed = ThrowableLimits
+				.suppressedOf(throwable);
+		if (suppressed.length > 0) {
+			final int suppressedPos = begin(BSON.ARRAY,
+					ThrowableConverter.SUPPRESSED_FIELD);
+			for (int i = 0; i < suppressed.length; ++i) {
+				putThrowable(indexName(i), suppressed[i]);
+			}
+			end(suppressedPos);
+		}
+		end(sizePos);
+	}
+
+	private void putCompactThrowable(String name, IThrowableProxy throwable) {
+		final int sizePos = begin(BSON.OBJECT, name);
+		putString(ThrowableConverter.COMPACT_CLASS_FIELD,
+				throwable.getClassName());
+		putString(ThrowableConverter.COMPACT_MESSAGE_FIELD,
+				throwable.getMessage(), true);
+		final StackTraceElementProxy[] proxies = throwable
+				.getStackTraceElementProxyArray();
+		final int frames = proxies.length - throwable.getCommonFrames();
+		if (frames > 0) {
+			final int stackTracePos = begin(BSON.ARRAY,
+					ThrowableConverter.COMPACT_STACK_TRACE_FIELD);
+			for (int i = 0; i < frames; ++i) {
+				final StackTraceElement frame = proxies[i]
+						.getStackTraceElement();
+				putCompactFrame(indexName(i), frame, frame.getClassName());
+			}
+			end(stackTracePos);
+		}
+		if (throwable.getCause() != null) {
+			putCompactThrowable(ThrowableConverter.COMPACT_CAUSE_FIELD,
+					throwable.getCause());
+		}
+		final IThrowableProxy[] suppressed = ThrowableLimits
+				.suppressedOf(throwable);
+		if (suppressed.length > 0) {
+			final int suppressedPos = begin(BSON.ARRAY,
+					ThrowableConverter.COMPACT_SUPPRESSED_FIELD);
+			for (int i = 0; i < suppressed.length; ++i) {
+				putCompactThrowable(indexName(i), suppressed[i]);
+			}
+			end(suppressedPos);
+		}
+		end(sizePos);
+	}
+
+	/**
+	 * @param className
+	 *            - class name of the frame or its dictionary id
+	 */
+	private void putFrame(String name, StackTraceElement frame,
+			Object className) {
+		final int sizePos = begin(BSON.OBJECT, name);
+		putString(StackTraceElementConverter.FILE_FIELD, frame.getFileName(),
+				false);
+		putName(StackTraceElementConverter.CLASS_FIELD, className, false);
+		putString(StackTraceElementConverter.METHOD_FIELD,
+				frame.getMethodName(), false);
+		_put(BSON.NUMBER_INT, StackTraceElementConverter.LINE_NO_FIELD);
+		_buf.writeInt(frame.getLineNumber());
+		_put(BSON.BOOLEAN, StackTraceElementConverter.NATIVE_FIELD);
+		_buf.write(frame.isNativeMethod() ? 1 : 0);
+		end(sizePos);
+	}
+
+	private void putCompactFrame(String name, StackTraceElement frame,
+			Object className) {
+		final int sizePos = begin(BSON.ARRAY, name);
+		putName(indexName(0), className, false);
+		putString(indexName(1), frame.getMethodName(), false);
+		putString(indexName(2), frame.getFileName(), false);
+		_put(BSON.NUMBER_INT, indexName(3));
+		_buf.writeInt(frame.getLineNumber());
+		end(sizePos);
+	}
+
+	/**
+	 * Writes a dictionary id or the name, null is either omitted or written as
+	 * BSON null.
+	 */
+	private void putName(String name, Object value, boolean omitNull) {
+		if (value instanceof Integer) {
+			_put(BSON.NUMBER_INT, name);
+			_buf.writeInt((Integer) value);
+		} else {
+			putString(name, (String) value, omitNull);
+		}
+	}
+
+	/**
+	 * Writes the string, null is either omitted or written as BSON null.
+	 */
+	private void putString(String name, String value, boolean omitNull) {
+		if (value != null) {
+			putString(name, value);
+		} else if (!omitNull) {
+			putNull(name);
+		}
+	}
+
+	/**
+	 * Writes type and name of an embedded document and reserves its size.
+	 * 
+	 * @return position of the size
+	 */
+	private int begin(byte type, String name) {
+		_put(type, name);
+		final int sizePos = _buf.getPosition();
+		_buf.writeInt(0);
+		return sizePos;
+	}
+
+	/**
+	 * Terminates the document and writes its size.
+	 * 
+	 * @return size of the document
+	 */
+	private int end(int sizePos) {
+		_buf.write(BSON.EOO);
+		final int size = _buf.getPosition() - sizePos;
+		_buf.writeInt(sizePos, size);
+		return size;
+	}
+
+	private static String indexName(int index) {
+		return index < INDEX_NAMES.length ? INDEX_NAMES[index] : String
+				.valueOf(index);
+	}
+
+}
@@ -0,0 +1,175 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
+/**
+ * Assigns small integer ids to logger, thread and caller class names, kept in
+ * a side collection of documents {@code { _id : id, name : name }}.
+ * <p>
+ * Names and ids are cached in {@link ConcurrentHashMap}s of at most
+ * {@code cacheSize} entries, so a known name is encoded by a single lock-free
+ * lookup. A full cache is cleared and filled again with the names in use.
+ * An unknown name is looked up in the collection and, if missing, stored with
+ * an id taken from a sequence document. Concurrent writers of the same name
+ * agree on the first stored id thanks to a unique index on names; the ids
+ * taken by the losers are not used, so ids may have gaps. Names that could not
+ * be stored are written as they are.
+ * 
+ * @author mendlik
+ * 
+ */
+public class NameDictionary extends ContextAwareBase {
+
+	public static final String NAME_FIELD = "name";
+
+	static final String SEQUENCE_ID = "sequence";
+
+	static final String NEXT_FIELD = "next";
+
+	private final DBCollection collection;
+	private final int cacheSize;
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+
+	public NameDictionary(DBCollection collection, int cacheSize) {
+		this.collection = collection;
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Builds the unique index on names in the background.
+	 */
+	public void createIndex() {
+		collection.createIndex(new BasicDBObject(NAME_FIELD, 1),
+				new BasicDBObject("background", true).append("unique", true));
+	}
+
+	/**
+	 * @return id of the name or the name itself when it could not be stored
+	 */
+	public Object encode(String name) {
+		if (name == null) {
+			return null;
+		}
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		try {
+			id = find(name);
+			if (id == null) {
+				id = store(name);
+			}
+		} catch (MongoException e) {
+			addWarn("Could not store name " + name, e);
+			return name;
+		}
+		cache(id, name);
+		return id;
+	}
+
+	/**
+	 * @return name of a stored id, other values as strings
+	 */
+	public String decode(Object value) {
+		if (!(value instanceof Number)) {
+			return (String) value;
+		}
+		Integer id = ((Number) value).intValue();
+		String name = names.get(id);
+		if (name == null) {
+			DBObject document = collection.findOne(new BasicDBObject("_id",
+					id));
+			if (document == null) {
+				return String.valueOf(id);
+			}
+			name = (String) document.get(NAME_FIELD);
+			cache(id, name);
+		}
+		return name;
+	}
+
+	/**
+	 * @return id of the name or null if it is not stored, the name is never
+	 *         stored by the lookup
+	 */
+	public Integer find(String name) {
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		DBObject document = collection.findOne(new BasicDBObject(NAME_FIELD,
+				name));
+		if (document == null) {
+			return null;
+		}
+		id = ((Number) document.get("_id")).intValue();
+		cache(id, name);
+		return id;
+	}
+
+	/**
+	 * @return ids of stored names matching the pattern
+	 */
+	public List<Integer> findIds(Pattern pattern) {
+		List<Integer> result = new ArrayList<Integer>();
+		DBCursor cursor = collection.find(new BasicDBObject(NAME_FIELD,
+				pattern));
+		try {
+			while (cursor.hasNext()) {
+				result.add(((Number) cursor.next().get("_id")).intValue());
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
+	private Integer store(String name) {
+		DBObject sequence = collection.findAndModify(new BasicDBObject("_id",
+				SEQUENCE_ID), null, null, false, new BasicDBObject("$inc",
+				new BasicDBObject(NEXT_FIELD, 1)), true, true);
+		Integer id = ((Number) sequence.get(NEXT_FIELD)).intValue();
+		try {
+			collection.insert(new BasicDBObject("_id", id).append(NAME_FIELD,
+					name), WriteConcern.ACKNOWLEDGED);
+			return id;
+		} catch (MongoException.DuplicateKey e) {
+			// stored meanwhile by another writer, the taken id stays unused
+			return find(name);
+		}
+	}
+
+	void cache(Integer id, String name) {
+		// clearing keeps lookups lock-free, unlike an access ordered map
+		if (ids.size() >= cacheSize) {
+			ids.clear();
+		}
+		ids.putIfAbsent(name, id);
+		if (names.size() >= cacheSize) {
+			names.clear();
+		}
+		names.putIfAbsent(id, name);
+	}
+
+	/**
+	 * @return number of cached names
+	 */
+	int size() {
+		return ids.size();
+	}
+
+}
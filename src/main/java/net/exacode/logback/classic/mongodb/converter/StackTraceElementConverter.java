@@ -4,7 +4,12 @@ import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 
 /**
- * Converts {@link StackTraceElement} to and from {@link BasicDBObject}.
+ * Converts {@link StackTraceElement} to and from {@link BasicDBObject}, or
+ * {@link BasicDBList} of {@code [class, method, file, lineNumber]} in compact
+ * mode. Native flag is not stored in compact frames as it is implied by the
+ * line number.
+ * <p>
+ * With a {@link NameDictionary} class names are stored as dictionary ids.
  * 
  * @author mendlik
  * 
@@ -16,23 +21,55 @@ class StackTraceElementConverter {
 	public static final String LINE_NO_FIELD = "lineNumber";
 	public static final String NATIVE_FIELD = "native";
 
+	private NameDictionary nameDictionary;
+
+	void setNameDictionary(NameDictionary nameDictionary) {
+		this.nameDictionary = nameDictionary;
+	}
+
+	/**
+	 * @return class name or its dictionary id
+	 */
+	Object encodeClassName(String className) {
+		return nameDictionary == null ? className : nameDictionary
+				.encode(className);
+	}
+
+	private String decodeClassName(Object className) {
+		if (nameDictionary != null) {
+			return nameDictionary.decode(className);
+		}
+		return className != null ? className.toString() : null;
+	}
+
 	public StackTraceElement[] convertToStackTrace(BasicDBList callerDataDocs) {
 		StackTraceElement[] callerData = new StackTraceElement[callerDataDocs
 				.size()];
 		for (int i = 0; i < callerDataDocs.size(); ++i) {
-			BasicDBObject callerDataDoc = (BasicDBObject) callerDataDocs.get(i);
-			callerData[i] = convertToStackTrace(callerDataDoc);
+			Object callerDataDoc = callerDataDocs.get(i);
+			if (callerDataDoc instanceof BasicDBList) {
+				callerData[i] = convertCompactToStackTrace((BasicDBList) callerDataDoc);
+			} else {
+				callerData[i] = convertToStackTrace((BasicDBObject) callerDataDoc);
+			}
 		}
 		return callerData;
 	}
 
 	public StackTraceElement convertToStackTrace(BasicDBObject callerDataDoc) {
-		return new StackTraceElement(callerDataDoc.getString(CLASS_FIELD),
+		return new StackTraceElement(
+				decodeClassName(callerDataDoc.get(CLASS_FIELD)),
 				callerDataDoc.getString(METHOD_FIELD),
 				callerDataDoc.getString(FILE_FIELD),
 				callerDataDoc.getInt(LINE_NO_FIELD));
 	}
 
+	public StackTraceElement convertCompactToStackTrace(BasicDBList frame) {
+		return new StackTraceElement(decodeClassName(frame.get(0)),
+				(String) frame.get(1), (String) frame.get(2),
+				((Number) frame.get(3)).intValue());
+	}
+
 	public BasicDBList convertToDocument(StackTraceElement[] callerData) {
 		final BasicDBList dbList = new BasicDBList();
 		for (final StackTraceElement ste : callerData) {
@@ -43,9 +80,26 @@ class StackTraceElementConverter {
 
 	public BasicDBObject convertToDocument(StackTraceElement callerData) {
 		return new BasicDBObject().append(FILE_FIELD, callerData.getFileName())
-				.append(CLASS_FIELD, callerData.getClassName())
+				.append(CLASS_FIELD, encodeClassName(callerData.getClassName()))
 				.append(METHOD_FIELD, callerData.getMethodName())
 				.append(LINE_NO_FIELD, callerData.getLineNumber())
 				.append(NATIVE_FIELD, callerData.isNativeMethod());
 	}
+
+	public BasicDBList convertToCompactDocument(StackTraceElement[] callerData) {
+		final BasicDBList dbList = new BasicDBList();
+		for (final StackTraceElement ste : callerData) {
+			dbList.add(convertToCompactDocument(ste));
+		}
+		return dbList;
+	}
+
+	public BasicDBList convertToCompactDocument(StackTraceElement callerData) {
+		final BasicDBList frame = new BasicDBList();
+		frame.add(encodeClassName(callerData.getClassName()));
+		frame.add(callerData.getMethodName());
+		frame.add(callerData.getFileName());
+		frame.add(callerData.getLineNumber());
+		return frame;
+	}
 }
@@ -0,0 +1,236 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+/**
+ * Stores each unique stack trace once in a side collection.
+ * <p>
+ * Throwable chains are identified by a fingerprint of their class names and
+ * frames, messages are not part of it. A trace document holds the full chain
+ * together with the number of occurrences and time stamps of the first and
+ * last one. Fingerprints known to be stored are kept in an LRU cache, so
+ * repeated traces only increment an in-memory counter that is written by
+ * {@link #flush()}.
+ * 
+ * @author mendlik
+ * 
+ */
+public class StackTraceStore extends ContextAwareBase {
+
+	public static final String TRACE_FIELD = "trace";
+	public static final String COUNT_FIELD = "count";
+	public static final String FIRST_SEEN_FIELD = "firstSeen";
+	public static final String LAST_SEEN_FIELD = "lastSeen";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final DBCollection collection;
+	private final ThrowableConverter throwableConverter = new ThrowableConverter();
+
+	/** Pending occurrence counts of stored traces, in access order. */
+	private final LinkedHashMap<String, long[]> known;
+	/** Pending counts of traces evicted from {@link #known}. */
+	private final Map<String, long[]> evicted = new HashMap<String, long[]>();
+	private final LinkedHashMap<String, DBObject> loaded;
+
+	public StackTraceStore(DBCollection collection, final int cacheSize) {
+		this.collection = collection;
+		this.known = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+				if (size() <= cacheSize) {
+					return false;
+				}
+				if (eldest.getValue()[0] > 0) {
+					evicted.put(eldest.getKey(), eldest.getValue());
+				}
+				return true;
+			}
+		};
+		this.loaded = new LinkedHashMap<String, DBObject>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, DBObject> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Records an occurrence of the throwable chain and stores its trace if it
+	 * is not known yet.
+	 * 
+	 * @return fingerprint of the chain or null if the trace could not be
+	 *         stored
+	 */
+	public String register(IThrowableProxy throwable) {
+		final String fingerprint = fingerprint(throwable);
+		synchronized (this) {
+			long[] pending = known.get(fingerprint);
+			if (pending != null) {
+				++pending[0];
+				return fingerprint;
+			}
+		}
+		final Date now = new Date();
+		try {
+			collection.update(
+					new BasicDBObject("_id", fingerprint),
+					new BasicDBObject("$setOnInsert", new BasicDBObject(
+							TRACE_FIELD, throwableConverter
+									.convertToDocument(throwable)).append(
+							FIRST_SEEN_FIELD, now)).append("$inc",
+							new BasicDBObject(COUNT_FIELD, 1)).append("$set",
+							new BasicDBObject(LAST_SEEN_FIELD, now)), true,
+					false);
+		} catch (MongoException e) {
+			addWarn("Could not store stack trace " + fingerprint, e);
+			return null;
+		}
+		synchronized (this) {
+			if (!known.containsKey(fingerprint)) {
+				known.put(fingerprint, new long[1]);
+			}
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * Writes pending occurrence counts.
+	 */
+	public void flush() {
+		final Map<String, Long> counts = new HashMap<String, Long>();
+		synchronized (this) {
+			for (Map.Entry<String, long[]> entry : known.entrySet()) {
+				if (entry.getValue()[0] > 0) {
+					counts.put(entry.getKey(), entry.getValue()[0]);
+					entry.getValue()[0] = 0;
+				}
+			}
+			for (Map.Entry<String, long[]> entry : evicted.entrySet()) {
+				// a trace evicted and registered again has counts in both
+				Long count = counts.get(entry.getKey());
+				counts.put(entry.getKey(), count == null ? entry.getValue()[0]
+						: count + entry.getValue()[0]);
+			}
+			evicted.clear();
+		}
+		final Date now = new Date();
+		final Iterator<Map.Entry<String, Long>> iterator = counts.entrySet()
+				.iterator();
+		try {
+			while (iterator.hasNext()) {
+				Map.Entry<String, Long> count = iterator.next();
+				collection.update(new BasicDBObject("_id", count.getKey()),
+						new BasicDBObject("$inc", new BasicDBObject(
+								COUNT_FIELD, count.getValue())).append("$set",
+								new BasicDBObject(LAST_SEEN_FIELD, now)));
+				iterator.remove();
+			}
+		} finally {
+			restore(counts);
+		}
+	}
+
+	/**
+	 * Keeps counts that were not written for the next flush.
+	 */
+	private synchronized void restore(Map<String, Long> counts) {
+		for (Map.Entry<String, Long> count : counts.entrySet()) {
+			long[] pending = evicted.get(count.getKey());
+			if (pending == null) {
+				evicted.put(count.getKey(), new long[] { count.getValue() });
+			} else {
+				pending[0] += count.getValue();
+			}
+		}
+	}
+
+	/**
+	 * @return stored throwable chain document or null if there is no trace
+	 *         with the fingerprint
+	 */
+	public DBObject load(String fingerprint) {
+		synchronized (loaded) {
+			DBObject trace = loaded.get(fingerprint);
+			if (trace != null) {
+				return trace;
+			}
+		}
+		DBObject document = collection.findOne(new BasicDBObject("_id",
+				fingerprint), new BasicDBObject(TRACE_FIELD, 1));
+		if (document == null) {
+			return null;
+		}
+		DBObject trace = (DBObject) document.get(TRACE_FIELD);
+		synchronized (loaded) {
+			loaded.put(fingerprint, trace);
+		}
+		return trace;
+	}
+
+	/**
+	 * @return hex encoded MD5 of class names and stored frames of the chain,
+	 *         including suppressed exceptions
+	 */
+	public static String fingerprint(IThrowableProxy throwable) {
+		final StringBuilder chain = new StringBuilder(1024);
+		appendChain(chain, throwable);
+		try {
+			return hex(MessageDigest.getInstance("MD5").digest(
+					chain.toString().getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void appendChain(StringBuilder chain,
+			IThrowableProxy throwable) {
+		for (IThrowableProxy t = throwable; t != null; t = t.getCause()) {
+			chain.append(t.getClassName()).append('\n');
+			final StackTraceElementProxy[] frames = t
+					.getStackTraceElementProxyArray();
+			final int count = frames.length - t.getCommonFrames();
+			for (int i = 0; i < count; ++i) {
+				chain.append(frames[i].getSTEAsString()).append('\n');
+			}
+			for (IThrowableProxy suppressed : ThrowableLimits.suppressedOf(t)) {
+				chain.append("Suppressed: ");
+				appendChain(chain, suppressed);
+			}
+			chain.append('\n');
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		final char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; ++i) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,198 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Marker;
+import org.slf4j.helpers.MessageFormatter;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.CallerData;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * {@link ILoggingEvent} backed by a stored document of either layout.
+ * <p>
+ * Time stamp, level, thread, logger and message are read when the event is
+ * created. Caller data, arguments, MDC and throwable are decoded on the first
+ * access, so events shown only as list entries never decode them. A stored
+ * formatted message is not formatted again, a stored message template is
+ * formatted with the arguments on the first access to the formatted message.
+ * 
+ * @author mendlik
+ * 
+ */
+class StoredLoggingEvent implements ILoggingEvent {
+
+	private final BasicDBObject document;
+	private final boolean compact;
+	private final LoggingEventConverter converter;
+
+	private final long timeStamp;
+	private final Level level;
+	private final String threadName;
+	private final String loggerName;
+	private final String message;
+	private String formattedMessage;
+
+	private StackTraceElement[] callerData;
+	private Object[] argumentArray;
+	private Map<String, String> mdcPropertyMap;
+	private IThrowableProxy throwableProxy;
+	private boolean throwableDecoded;
+
+	StoredLoggingEvent(BasicDBObject document, boolean compact,
+			LoggingEventConverter converter) {
+		this.document = document;
+		this.compact = compact;
+		this.converter = converter;
+		this.timeStamp = document.getDate(
+				field(LoggingEventConverter.TIME_STAMP_FIELD)).getTime();
+		this.level = Level.toLevel(document
+				.getString(field(LoggingEventConverter.LEVEL_FIELD)));
+		this.threadName = converter.decodeName(document
+				.get(field(LoggingEventConverter.THREAD_FIELD)));
+		this.loggerName = converter.decodeName(document
+				.get(field(LoggingEventConverter.LOGGER_FIELD)));
+		String template = document
+				.getString(field(LoggingEventConverter.MESSAGE_TEMPLATE_FIELD));
+		if (template != null) {
+			this.message = template;
+		} else {
+			this.message = document
+					.getString(field(LoggingEventConverter.MESSAGE_FIELD));
+			this.formattedMessage = message;
+		}
+	}
+
+	@Override
+	public String getThreadName() {
+		return threadName;
+	}
+
+	@Override
+	public Level getLevel() {
+		return level;
+	}
+
+	@Override
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public Object[] getArgumentArray() {
+		if (argumentArray == null) {
+			BasicDBList arguments = (BasicDBList) document
+					.get(field(LoggingEventConverter.ARGUMENTS_FIELD));
+			if (arguments == null) {
+				return null;
+			}
+			argumentArray = arguments.toArray();
+		}
+		return argumentArray;
+	}
+
+	@Override
+	public String getFormattedMessage() {
+		if (formattedMessage == null && message != null) {
+			formattedMessage = MessageFormatter.arrayFormat(message,
+					getArgumentArray()).getMessage();
+		}
+		return formattedMessage;
+	}
+
+	@Override
+	public String getLoggerName() {
+		return loggerName;
+	}
+
+	@Override
+	public LoggerContextVO getLoggerContextVO() {
+		return null;
+	}
+
+	@Override
+	public IThrowableProxy getThrowableProxy() {
+		if (!throwableDecoded) {
+			BasicDBObject throwable = (BasicDBObject) document
+					.get(field(LoggingEventConverter.THROWABLE_FIELD));
+			throwableProxy = throwable == null ? null : converter
+					.convertThrowable(throwable);
+			throwableDecoded = true;
+		}
+		return throwableProxy;
+	}
+
+	@Override
+	public StackTraceElement[] getCallerData() {
+		if (callerData == null) {
+			BasicDBList frames = (BasicDBList) document
+					.get(field(LoggingEventConverter.CALLER_DATA_FIELD));
+			callerData = frames == null ? CallerData.EMPTY_CALLER_DATA_ARRAY
+					: converter.convertCallerData(frames);
+		}
+		return callerData;
+	}
+
+	@Override
+	public boolean hasCallerData() {
+		return document
+				.containsField(field(LoggingEventConverter.CALLER_DATA_FIELD));
+	}
+
+	@Override
+	public Marker getMarker() {
+		return null;
+	}
+
+	@Override
+	public Map<String, String> getMDCPropertyMap() {
+		if (mdcPropertyMap == null) {
+			BasicDBObject mdc = (BasicDBObject) document
+					.get(field(LoggingEventConverter.MDC_FIELD));
+			if (mdc == null) {
+				mdcPropertyMap = Collections.emptyMap();
+			} else {
+				Map<String, String> properties = new HashMap<String, String>();
+				for (String key : mdc.keySet()) {
+					properties.put(key, mdc.getString(key));
+				}
+				mdcPropertyMap = properties;
+			}
+		}
+		return mdcPropertyMap;
+	}
+
+	@Override
+	@Deprecated
+	public Map<String, String> getMdc() {
+		return getMDCPropertyMap();
+	}
+
+	@Override
+	public long getTimeStamp() {
+		return timeStamp;
+	}
+
+	@Override
+	public void prepareForDeferredProcessing() {
+		// restored events are not bound to any thread
+	}
+
+	private String field(String name) {
+		return compact ? LoggingEventConverter.compactFieldName(name) : name;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + level + "] " + getFormattedMessage();
+	}
+
+}
@@ -6,39 +6,48 @@ import ch.qos.logback.classic.spi.ThrowableProxy;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
 
 /**
- * Converts {@link ThrowableProxy} to and from {@link BasicDBObject}.
+ * Converts {@link IThrowableProxy} to and from {@link BasicDBObject}.
  * <p>
- * This converter operates on {@link ThrowableProxy} instead of
- * {@link IThrowableProxy} because objects of first type are acceptable by
- * {@link ThrowableProxy}.
+ * Throwables are restored as {@link StoredThrowableProxy}, so reading an event
+ * never fills in a stack trace of a new {@link Throwable}.
  * 
  * @author mendlik
  * 
  */
 class ThrowableConverter {
 
-	static class SimpleThrowableProxy extends ThrowableProxy {
-
-		public SimpleThrowableProxy() {
-			// TODO: So far there is no better solution.
-			super(new Throwable());
-		}
+	/**
+	 * Throwable restored from a document. Unlike {@link ThrowableProxy} it
+	 * does not need a real {@link Throwable}, stack frames are decoded on the
+	 * first access.
+	 */
+	static class StoredThrowableProxy implements IThrowableProxy {
 
+		private final String className;
 		private String message;
-		private String className;
-		private StackTraceElementProxy[] stackTraceElementProxyArray;
-		private int commonFrames;
+		private BasicDBList frameDocuments;
+		private StackTraceElementProxy[] frames;
 		private IThrowableProxy cause;
-		private IThrowableProxy[] suppressed;
+		private IThrowableProxy[] suppressed = BoundedThrowableProxy.NO_SUPPRESSED;
+		private final ThrowableConverter converter;
+
+		StoredThrowableProxy(String className, String message,
+				BasicDBList frameDocuments, ThrowableConverter converter) {
+			this.className = className;
+			this.message = message;
+			this.frameDocuments = frameDocuments;
+			this.converter = converter;
+		}
 
 		@Override
 		public String getMessage() {
 			return message;
 		}
 
-		public void setMessage(String message) {
+		void setMessage(String message) {
 			this.message = message;
 		}
 
@@ -47,27 +56,19 @@ class ThrowableConverter {
 			return className;
 		}
 
-		public void setClassName(String className) {
-			this.className = className;
-		}
-
 		@Override
 		public StackTraceElementProxy[] getStackTraceElementProxyArray() {
-			return stackTraceElementProxyArray;
-		}
-
-		public void setStackTraceElementProxyArray(
-				StackTraceElementProxy[] stackTraceElementProxyArray) {
-			this.stackTraceElementProxyArray = stackTraceElementProxyArray;
+			if (frames == null) {
+				frames = frameDocuments == null ? new StackTraceElementProxy[0]
+						: converter.toSteArray(frameDocuments);
+				frameDocuments = null;
+			}
+			return frames;
 		}
 
 		@Override
 		public int getCommonFrames() {
-			return commonFrames;
-		}
-
-		public void setCommonFrames(int commonFrames) {
-			this.commonFrames = commonFrames;
+			return 0;
 		}
 
 		@Override
@@ -75,7 +76,7 @@ class ThrowableConverter {
 			return cause;
 		}
 
-		public void setCause(IThrowableProxy cause) {
+		void setCause(IThrowableProxy cause) {
 			this.cause = cause;
 		}
 
@@ -84,7 +85,7 @@ class ThrowableConverter {
 			return suppressed;
 		}
 
-		public void setSuppressed(IThrowableProxy[] suppressed) {
+		void setSuppressed(IThrowableProxy[] suppressed) {
 			this.suppressed = suppressed;
 		}
 
@@ -94,25 +95,174 @@ class ThrowableConverter {
 	public static final String MESSAGE_FILED = "message";
 	public static final String STACK_TRACE_FIELD = "stackTrace";
 	public static final String CAUSE_TRACE_FIELD = "cause";
+	public static final String SUPPRESSED_FIELD = "suppressed";
+
+	public static final String COMPACT_CLASS_FIELD = "c";
+	public static final String COMPACT_MESSAGE_FIELD = "m";
+	public static final String COMPACT_STACK_TRACE_FIELD = "s";
+	public static final String COMPACT_CAUSE_FIELD = "ca";
+	public static final String COMPACT_SUPPRESSED_FIELD = "su";
+	public static final String FINGERPRINT_FIELD = "fingerprint";
+	public static final String COMPACT_FINGERPRINT_FIELD = "f";
 
 	private final StackTraceElementConverter steConverter = new StackTraceElementConverter();
 
-	public ThrowableProxy convertToThrowableProxy(BasicDBObject object) {
-		final SimpleThrowableProxy throwable = new SimpleThrowableProxy();
-		throwable.setClassName(object.getString(CLASS_FILED));
-		throwable.setMessage(object.getString(MESSAGE_FILED));
-		if (object.containsField(STACK_TRACE_FIELD)) {
-			throwable
-					.setStackTraceElementProxyArray(toSteArray((BasicDBList) object
-							.get(STACK_TRACE_FIELD)));
+	private StackTraceStore stackTraceStore;
+
+	public void setStackTraceStore(StackTraceStore stackTraceStore) {
+		this.stackTraceStore = stackTraceStore;
+	}
+
+	/**
+	 * Registers the throwable chain in the {@link StackTraceStore} and
+	 * converts it to a stub that refers to the stored trace by fingerprint
+	 * and keeps only class names and messages. Full document is returned when
+	 * there is no store or the trace could not be stored.
+	 */
+	public BasicDBObject convertToDocument(IThrowableProxy throwable,
+			boolean compact) {
+		String fingerprint = stackTraceStore == null ? null
+				: stackTraceStore.register(throwable);
+		if (fingerprint == null) {
+			return compact ? convertToCompactDocument(throwable)
+					: convertToDocument(throwable);
+		}
+		BasicDBObject stub = toStub(throwable, compact);
+		stub.append(compact ? COMPACT_FINGERPRINT_FIELD : FINGERPRINT_FIELD,
+				fingerprint);
+		return stub;
+	}
+
+	private BasicDBObject toStub(IThrowableProxy throwable, boolean compact) {
+		final BasicDBObject stub = new BasicDBObject();
+		stub.append(compact ? COMPACT_CLASS_FIELD : CLASS_FILED,
+				throwable.getClassName());
+		if (!compact || throwable.getMessage() != null) {
+			stub.append(compact ? COMPACT_MESSAGE_FIELD : MESSAGE_FILED,
+					throwable.getMessage());
+		}
+		if (throwable.getCause() != null) {
+			stub.append(compact ? COMPACT_CAUSE_FIELD : CAUSE_TRACE_FIELD,
+					toStub(throwable.getCause(), compact));
+		}
+		return stub;
+	}
+
+	/**
+	 * Restores frames of a stub from the {@link StackTraceStore}, frames are
+	 * left empty when the trace is not available.
+	 */
+	private IThrowableProxy convertStubToThrowableProxy(BasicDBObject stub,
+			String fingerprint) {
+		DBObject trace = stackTraceStore == null ? null : stackTraceStore
+				.load(fingerprint);
+		final StoredThrowableProxy throwable = trace == null ? fromStub(stub)
+				: (StoredThrowableProxy) convertToThrowableProxy((BasicDBObject) trace);
+		// messages are not part of the stored trace
+		BasicDBObject stubLevel = stub;
+		StoredThrowableProxy level = throwable;
+		while (stubLevel != null && level != null) {
+			level.setMessage(stubLevel.containsField(MESSAGE_FILED) ? stubLevel
+					.getString(MESSAGE_FILED) : stubLevel
+					.getString(COMPACT_MESSAGE_FIELD));
+			stubLevel = causeOf(stubLevel);
+			level = (StoredThrowableProxy) level.getCause();
+		}
+		return throwable;
+	}
+
+	private StoredThrowableProxy fromStub(BasicDBObject stub) {
+		final StoredThrowableProxy throwable = new StoredThrowableProxy(
+				stub.containsField(CLASS_FILED) ? stub.getString(CLASS_FILED)
+						: stub.getString(COMPACT_CLASS_FIELD), null, null, this);
+		BasicDBObject cause = causeOf(stub);
+		if (cause != null) {
+			throwable.setCause(fromStub(cause));
 		}
+		return throwable;
+	}
+
+	private BasicDBObject causeOf(BasicDBObject stub) {
+		return (BasicDBObject) (stub.containsField(CAUSE_TRACE_FIELD) ? stub
+				.get(CAUSE_TRACE_FIELD) : stub.get(COMPACT_CAUSE_FIELD));
+	}
+
+	public IThrowableProxy convertToThrowableProxy(BasicDBObject object) {
+		if (object.containsField(FINGERPRINT_FIELD)) {
+			return convertStubToThrowableProxy(object,
+					object.getString(FINGERPRINT_FIELD));
+		}
+		if (object.containsField(COMPACT_FINGERPRINT_FIELD)) {
+			return convertStubToThrowableProxy(object,
+					object.getString(COMPACT_FINGERPRINT_FIELD));
+		}
+		if (object.containsField(COMPACT_CLASS_FIELD)) {
+			return convertCompactToThrowableProxy(object);
+		}
+		final StoredThrowableProxy throwable = new StoredThrowableProxy(
+				object.getString(CLASS_FILED), object.getString(MESSAGE_FILED),
+				(BasicDBList) object.get(STACK_TRACE_FIELD), this);
 		if (object.containsField(CAUSE_TRACE_FIELD)) {
 			throwable.setCause(convertToThrowableProxy((BasicDBObject) object
 					.get(CAUSE_TRACE_FIELD)));
 		}
+		if (object.containsField(SUPPRESSED_FIELD)) {
+			throwable.setSuppressed(toSuppressedArray((BasicDBList) object
+					.get(SUPPRESSED_FIELD)));
+		}
 		return throwable;
 	}
 
+	private IThrowableProxy convertCompactToThrowableProxy(BasicDBObject object) {
+		final StoredThrowableProxy throwable = new StoredThrowableProxy(
+				object.getString(COMPACT_CLASS_FIELD),
+				object.getString(COMPACT_MESSAGE_FIELD),
+				(BasicDBList) object.get(COMPACT_STACK_TRACE_FIELD), this);
+		if (object.containsField(COMPACT_CAUSE_FIELD)) {
+			throwable.setCause(convertToThrowableProxy((BasicDBObject) object
+					.get(COMPACT_CAUSE_FIELD)));
+		}
+		if (object.containsField(COMPACT_SUPPRESSED_FIELD)) {
+			throwable.setSuppressed(toSuppressedArray((BasicDBList) object
+					.get(COMPACT_SUPPRESSED_FIELD)));
+		}
+		return throwable;
+	}
+
+	public BasicDBObject convertToCompactDocument(IThrowableProxy throwable) {
+		final BasicDBObject throwableDoc = new BasicDBObject();
+		throwableDoc.append(COMPACT_CLASS_FIELD, throwable.getClassName());
+		if (throwable.getMessage() != null) {
+			throwableDoc.append(COMPACT_MESSAGE_FIELD, throwable.getMessage());
+		}
+		final StackTraceElementProxy[] elementProxies = throwable
+				.getStackTraceElementProxyArray();
+		final int totalFrames = elementProxies.length
+				- throwable.getCommonFrames();
+		if (totalFrames > 0) {
+			final BasicDBList stackTraceElements = new BasicDBList();
+			for (int i = 0; i < totalFrames; ++i) {
+				stackTraceElements.add(steConverter
+						.convertToCompactDocument(elementProxies[i]
+								.getStackTraceElement()));
+			}
+			throwableDoc.append(COMPACT_STACK_TRACE_FIELD, stackTraceElements);
+		}
+		if (throwable.getCause() != null) {
+			throwableDoc.append(COMPACT_CAUSE_FIELD,
+					convertToCompactDocument(throwable.getCause()));
+		}
+		IThrowableProxy[] suppressed = ThrowableLimits.suppressedOf(throwable);
+		if (suppressed.length > 0) {
+			BasicDBList suppressedDocs = new BasicDBList();
+			for (IThrowableProxy each : suppressed) {
+				suppressedDocs.add(convertToCompactDocument(each));
+			}
+			throwableDoc.append(COMPACT_SUPPRESSED_FIELD, suppressedDocs);
+		}
+		return throwableDoc;
+	}
+
 	public BasicDBObject convertToDocument(IThrowableProxy throwable) {
 		final BasicDBObject throwableDoc = new BasicDBObject();
 		throwableDoc.append(CLASS_FILED, throwable.getClassName());
@@ -124,6 +274,14 @@ class ThrowableConverter {
 		if (throwable.getCause() != null)
 			throwableDoc.append(CAUSE_TRACE_FIELD,
 					convertToDocument(throwable.getCause()));
+		IThrowableProxy[] suppressed = ThrowableLimits.suppressedOf(throwable);
+		if (suppressed.length > 0) {
+			BasicDBList suppressedDocs = new BasicDBList();
+			for (IThrowableProxy each : suppressed) {
+				suppressedDocs.add(convertToDocument(each));
+			}
+			throwableDoc.append(SUPPRESSED_FIELD, suppressedDocs);
+		}
 		return throwableDoc;
 	}
 
@@ -139,13 +297,25 @@ class ThrowableConverter {
 		return stackTraceElements;
 	}
 
+	private IThrowableProxy[] toSuppressedArray(BasicDBList documents) {
+		IThrowableProxy[] suppressed = new IThrowableProxy[documents.size()];
+		for (int i = 0; i < suppressed.length; ++i) {
+			suppressed[i] = convertToThrowableProxy((BasicDBObject) documents
+					.get(i));
+		}
+		return suppressed;
+	}
+
 	private StackTraceElementProxy[] toSteArray(BasicDBList object) {
 		final StackTraceElementProxy[] stackTraceElements = new StackTraceElementProxy[object
 				.size()];
 		for (int i = 0; i < object.size(); ++i) {
-			BasicDBObject steObject = (BasicDBObject) object.get(i);
+			Object steObject = object.get(i);
 			stackTraceElements[i] = new StackTraceElementProxy(
-					steConverter.convertToStackTrace(steObject));
+					steObject instanceof BasicDBList ? steConverter
+							.convertCompactToStackTrace((BasicDBList) steObject)
+							: steConverter
+									.convertToStackTrace((BasicDBObject) steObject));
 		}
 		return stackTraceElements;
 	}
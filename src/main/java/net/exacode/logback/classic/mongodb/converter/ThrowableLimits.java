@@ -0,0 +1,182 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * Limits of stored throwables.
+ * <p>
+ * Causes and suppressed exceptions are stored up to {@code maxDepth} levels
+ * below the logged throwable. Of each throwable at most {@code maxFrames}
+ * frames are stored: the top frames and {@code tailFrames} bottom frames
+ * separated by a marker frame {@code ...N frames omitted}. All throwables of
+ * the chain share a budget of {@code maxTotalFrames}, frames are assigned to
+ * the logged throwable first, then to its causes and last to suppressed
+ * exceptions. Throwables within all limits are stored as they are.
+ * 
+ * @author mendlik
+ * 
+ */
+public class ThrowableLimits {
+
+	static final String OMITTED_FRAMES_CLASS = "..";
+
+	static final String OMITTED_FRAMES_METHOD = " frames omitted";
+
+	private int maxDepth = 16;
+
+	private int maxFrames = 256;
+
+	private int tailFrames = 16;
+
+	private int maxTotalFrames = 1024;
+
+	private int maxMessageLength;
+
+	/**
+	 * @return the throwable or its bounded view if it exceeds a limit
+	 */
+	public IThrowableProxy apply(IThrowableProxy throwable) {
+		if (throwable == null || isWithinLimits(throwable, 0, new int[1])) {
+			return throwable;
+		}
+		return bound(throwable, 0, new int[] { maxTotalFrames });
+	}
+
+	private boolean isWithinLimits(IThrowableProxy throwable, int depth,
+			int[] totalFrames) {
+		if (depth > maxDepth) {
+			return false;
+		}
+		int frames = frameCount(throwable);
+		totalFrames[0] += frames;
+		if (frames > maxFrames || totalFrames[0] > maxTotalFrames) {
+			return false;
+		}
+		if (maxMessageLength > 0 && throwable.getMessage() != null
+				&& throwable.getMessage().length() > maxMessageLength) {
+			return false;
+		}
+		if (throwable.getCause() != null
+				&& !isWithinLimits(throwable.getCause(), depth + 1,
+						totalFrames)) {
+			return false;
+		}
+		for (IThrowableProxy suppressed : suppressedOf(throwable)) {
+			if (!isWithinLimits(suppressed, depth + 1, totalFrames)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private BoundedThrowableProxy bound(IThrowableProxy throwable, int depth,
+			int[] budget) {
+		int frames = Math.min(Math.min(frameCount(throwable), maxFrames),
+				budget[0]);
+		budget[0] -= frames;
+		BoundedThrowableProxy bounded = new BoundedThrowableProxy(
+				throwable.getClassName(), truncate(throwable.getMessage()),
+				retainFrames(throwable, frames));
+		if (depth < maxDepth) {
+			if (throwable.getCause() != null) {
+				bounded.setCause(bound(throwable.getCause(), depth + 1, budget));
+			}
+			IThrowableProxy[] suppressed = suppressedOf(throwable);
+			IThrowableProxy[] boundedSuppressed = new IThrowableProxy[suppressed.length];
+			for (int i = 0; i < suppressed.length; ++i) {
+				boundedSuppressed[i] = bound(suppressed[i], depth + 1, budget);
+			}
+			bounded.setSuppressed(boundedSuppressed);
+		}
+		return bounded;
+	}
+
+	/**
+	 * @return top and bottom frames with a marker of omitted frames between
+	 */
+	private StackTraceElementProxy[] retainFrames(IThrowableProxy throwable,
+			int retained) {
+		StackTraceElementProxy[] frames = throwable
+				.getStackTraceElementProxyArray();
+		int count = frameCount(throwable);
+		if (retained == count) {
+			StackTraceElementProxy[] copy = new StackTraceElementProxy[count];
+			System.arraycopy(frames, 0, copy, 0, count);
+			return copy;
+		}
+		int tail = Math.min(tailFrames, retained / 2);
+		int head = retained - tail;
+		StackTraceElementProxy[] result = new StackTraceElementProxy[retained + 1];
+		System.arraycopy(frames, 0, result, 0, head);
+		result[head] = new StackTraceElementProxy(new StackTraceElement(
+				OMITTED_FRAMES_CLASS, (count - retained)
+						+ OMITTED_FRAMES_METHOD, null, -1));
+		System.arraycopy(frames, count - tail, result, head + 1, tail);
+		return result;
+	}
+
+	private String truncate(String message) {
+		if (maxMessageLength <= 0 || message == null
+				|| message.length() <= maxMessageLength) {
+			return message;
+		}
+		return message.substring(0, maxMessageLength)
+				+ ArgumentEncoders.TRUNCATED_SUFFIX;
+	}
+
+	private static int frameCount(IThrowableProxy throwable) {
+		return throwable.getStackTraceElementProxyArray().length
+				- throwable.getCommonFrames();
+	}
+
+	static IThrowableProxy[] suppressedOf(IThrowableProxy throwable) {
+		IThrowableProxy[] suppressed = throwable.getSuppressed();
+		return suppressed != null ? suppressed
+				: BoundedThrowableProxy.NO_SUPPRESSED;
+	}
+
+	/**
+	 * @param maxDepth
+	 *            - maximal number of levels of causes and suppressed
+	 *            exceptions below the logged throwable
+	 */
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * @param maxFrames
+	 *            - maximal number of frames stored of a throwable
+	 */
+	public void setMaxFrames(int maxFrames) {
+		this.maxFrames = maxFrames;
+	}
+
+	/**
+	 * @param tailFrames
+	 *            - number of bottom frames retained when frames are omitted
+	 */
+	public void setTailFrames(int tailFrames) {
+		this.tailFrames = tailFrames;
+	}
+
+	/**
+	 * @param maxTotalFrames
+	 *            - maximal number of frames stored of all throwables of the
+	 *            chain
+	 */
+	public void setMaxTotalFrames(int maxTotalFrames) {
+		this.maxTotalFrames = maxTotalFrames;
+	}
+
+	/**
+	 * @param maxMessageLength
+	 *            - maximal number of characters stored of a message, 0 for no
+	 *            limit
+	 */
+	public void setMaxMessageLength(int maxMessageLength) {
+		this.maxMessageLength = maxMessageLength;
+	}
+
+}
@@ -3,6 +3,7 @@ package net.exacode.logback.classic.recording;
 import java.util.Date;
 import java.util.Iterator;
 
+import net.exacode.logback.classic.CallerDataPolicy;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.LoggingEventVO;
@@ -30,6 +31,7 @@ public class RecordingAppender extends
 	private Level dumpThreshold = Level.ERROR;
 	private long expiryTimeMs = 30000;
 	private boolean callerData = true;
+	private CallerDataPolicy callerDataPolicy = new CallerDataPolicy();
 
 	private final ThreadLocal<CyclicBuffer<ILoggingEvent>> recordedEvents = new ThreadLocal<CyclicBuffer<ILoggingEvent>>() {
 		@Override
@@ -40,8 +42,8 @@ public class RecordingAppender extends
 
 	@Override
 	protected void append(ILoggingEvent eventObject) {
-		if (callerData) {
-			eventObject.getCallerData();
+		if (callerData && callerDataPolicy.isCaptured(eventObject)) {
+			eventObject = callerDataPolicy.capture(eventObject);
 		} else {
 			eventObject = LoggingEventVO.build(eventObject);
 		}
@@ -96,6 +98,16 @@ public class RecordingAppender extends
 		this.callerData = callerData;
 	}
 
+	/**
+	 * @param callerDataPolicy
+	 *            - selects events whose caller data is captured when
+	 *            {@code callerData} is enabled, other events are recorded
+	 *            without caller data
+	 */
+	public void setCallerDataPolicy(CallerDataPolicy callerDataPolicy) {
+		this.callerDataPolicy = callerDataPolicy;
+	}
+
 	private transient AppenderAttachableImpl<ILoggingEvent> aai = new AppenderAttachableImpl<ILoggingEvent>();
 
 	@Override
@@ -0,0 +1,162 @@
+package net.exacode.logback.classic;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * @author mendlik
+ */
+public class CallerDataPolicyTest {
+
+	private final LoggerContext lc = new LoggerContext();
+
+	@After
+	public void tearDown() {
+		lc.stop();
+	}
+
+	@Test
+	public void shouldCaptureEveryEventByDefault() throws Exception {
+		// given
+		final CallerDataPolicy policy = new CallerDataPolicy();
+		final LoggingEvent event = event("net.exacode.Service", Level.TRACE);
+
+		// when
+		final ILoggingEvent captured = policy.apply(event);
+
+		// then
+		assertThat(captured).isSameAs(event);
+		assertThat(event.hasCallerData()).isTrue();
+		assertThat(captured.getCallerData().length).isGreaterThan(0);
+	}
+
+	@Test
+	public void shouldCaptureOnlyAtOrAboveThreshold() throws Exception {
+		// given
+		final CallerDataPolicy policy = new CallerDataPolicy();
+		policy.setThreshold(Level.WARN);
+
+		// then
+		assertThat(policy.isCaptured(event("net.exacode.Service", Level.INFO)))
+				.isFalse();
+		assertThat(policy.isCaptured(event("net.exacode.Service", Level.WARN)))
+				.isTrue();
+		assertThat(policy.isCaptured(event("net.exacode.Service", Level.ERROR)))
+				.isTrue();
+	}
+
+	@Test
+	public void shouldCaptureOnlyLoggersWithPrefix() throws Exception {
+		// given
+		final CallerDataPolicy policy = new CallerDataPolicy();
+		policy.addLoggerPrefix("net.exacode.billing");
+		policy.addLoggerPrefix("org.example");
+
+		// then
+		assertThat(
+				policy.isCaptured(event("net.exacode.billing.Invoice",
+						Level.INFO))).isTrue();
+		assertThat(policy.isCaptured(event("org.example.Main", Level.INFO)))
+				.isTrue();
+		assertThat(policy.isCaptured(event("net.exacode.web.Controller",
+				Level.INFO))).isFalse();
+	}
+
+	@Test
+	public void shouldSampleFractionOfEvents() throws Exception {
+		// given
+		final CallerDataPolicy never = new CallerDataPolicy();
+		never.setSampleRate(0.0);
+		final CallerDataPolicy half = new CallerDataPolicy();
+		half.setSampleRate(0.5);
+		final LoggingEvent event = event("net.exacode.Service", Level.INFO);
+
+		// when
+		int captured = 0;
+		for (int i = 0; i < 10000; ++i) {
+			assertThat(never.isCaptured(event)).isFalse();
+			if (half.isCaptured(event)) {
+				++captured;
+			}
+		}
+
+		// then
+		assertThat(captured).isGreaterThan(4000).isLessThan(6000);
+	}
+
+	@Test
+	public void shouldKeepOnlyTopFrames() throws Exception {
+		// given
+		final CallerDataPolicy policy = new CallerDataPolicy();
+		policy.setMaxDepth(2);
+		final LoggingEvent event = event("net.exacode.Service", Level.INFO);
+		event.setCallerData(new StackTraceElement[] {
+				new StackTraceElement("net.exacode.Service", "save",
+						"Service.java", 10),
+				new StackTraceElement("net.exacode.Controller", "post",
+						"Controller.java", 20),
+				new StackTraceElement("net.exacode.Servlet", "service",
+						"Servlet.java", 30) });
+
+		// when
+		final ILoggingEvent captured = policy.apply(event);
+
+		// then
+		assertThat(captured.getCallerData()).hasSize(2);
+		assertThat(captured.getCallerData()[0].getMethodName()).isEqualTo(
+				"save");
+		assertThat(captured.getCallerData()[1].getMethodName()).isEqualTo(
+				"post");
+		assertThat(captured.getFormattedMessage()).isEqualTo("Test");
+		assertThat(event.getCallerData()).hasSize(3);
+	}
+
+	@Test
+	public void shouldNotComputeCallerDataOfSkippedEvents() throws Exception {
+		// given
+		final CallerDataPolicy policy = new CallerDataPolicy();
+		policy.setThreshold(Level.ERROR);
+		final LoggingEvent event = event("net.exacode.Service", Level.INFO);
+
+		// when
+		final ILoggingEvent skipped = policy.apply(event);
+
+		// then
+		assertThat(skipped.hasCallerData()).isFalse();
+		assertThat(skipped.getCallerData()).isNull();
+		assertThat(event.hasCallerData()).isFalse();
+	}
+
+	@Test
+	public void shouldHideCallerDataOfSkippedEventsTakenBefore()
+			throws Exception {
+		// given
+		final CallerDataPolicy policy = new CallerDataPolicy();
+		policy.setThreshold(Level.ERROR);
+		final LoggingEvent event = event("net.exacode.Service", Level.INFO);
+		event.getCallerData();
+
+		// when
+		final ILoggingEvent skipped = policy.apply(event);
+
+		// then
+		assertThat(skipped.hasCallerData()).isFalse();
+		assertThat(skipped.getCallerData()).isNull();
+		assertThat(skipped.getLevel()).isEqualTo(Level.INFO);
+	}
+
+	private LoggingEvent event(String loggerName, Level level) {
+		final Logger logger = lc.getLogger(loggerName);
+		return new LoggingEvent(CallerDataPolicyTest.class.getName(), logger,
+				level, "Test", null, null);
+	}
+
+}
@@ -0,0 +1,211 @@
+package net.exacode.logback.classic.mongodb;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * @author mendlik
+ */
+public class AsyncBatchWriterTest {
+
+	private final List<Integer> batchSizes = Collections
+			.synchronizedList(new ArrayList<Integer>());
+	private final List<String> messages = Collections
+			.synchronizedList(new ArrayList<String>());
+
+	private final AsyncBatchWriter.BatchHandler handler = new AsyncBatchWriter.BatchHandler() {
+		@Override
+		public void handle(List<ILoggingEvent> batch) {
+			batchSizes.add(batch.size());
+			for (ILoggingEvent event : batch) {
+				messages.add(event.getMessage());
+			}
+		}
+	};
+
+	@Test
+	public void shouldWriteEventsInBatchesLimitedBySize() throws Exception {
+		// given
+		AsyncBatchWriter writer = new AsyncBatchWriter(handler, 100, 10, 5000);
+
+		// when
+		for (int i = 0; i < 30; ++i) {
+			writer.enqueue(event("Test " + i));
+		}
+		writer.start(1, "test");
+		writer.stop(5000);
+
+		// then
+		assertThat(batchSizes).containsExactly(10, 10, 10);
+		assertThat(messages).hasSize(30);
+		assertThat(messages.get(0)).isEqualTo("Test 0");
+		assertThat(messages.get(29)).isEqualTo("Test 29");
+	}
+
+	@Test
+	public void shouldFlushIncompleteBatchAfterMaxDelay() throws Exception {
+		// given
+		AsyncBatchWriter writer = new AsyncBatchWriter(handler, 100, 10, 50);
+		writer.start(1, "test");
+
+		// when
+		writer.enqueue(event("Test 1"));
+		writer.enqueue(event("Test 2"));
+		Thread.sleep(500);
+
+		// then
+		assertThat(messages).containsExactly("Test 1", "Test 2");
+		writer.stop(1000);
+	}
+
+	@Test
+	public void shouldDrainQueueOnStop() throws Exception {
+		// given
+		AsyncBatchWriter writer = new AsyncBatchWriter(handler, 100, 7, 5000);
+		writer.start(2, "test");
+
+		// when
+		for (int i = 0; i < 50; ++i) {
+			writer.enqueue(event("Test " + i));
+		}
+		boolean drained = writer.stop(5000);
+
+		// then
+		assertThat(drained).isTrue();
+		assertThat(messages).hasSize(50);
+		assertThat(writer.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void shouldDropNewestEventsWhenQueueIsFull() throws Exception {
+		// given
+		AsyncBatchWriter writer = new AsyncBatchWriter(handler, 2, 10, 50);
+		writer.setContext(new LoggerContext());
+		writer.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+
+		// when
+		writer.enqueue(event("Test 1"));
+		writer.enqueue(event("Test 2"));
+		writer.enqueue(event("Test 3", Level.ERROR));
+		writer.start(1, "test");
+		writer.stop(1000);
+
+		// then
+		assertThat(messages).containsExactly("Test 1", "Test 2");
+		assertThat(writer.getDropCounters().get(Level.ERROR)).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldDropOldestEventsWhenQueueIsFull() throws Exception {
+		// given
+		AsyncBatchWriter writer = new AsyncBatchWriter(handler, 2, 10, 50);
+		writer.setContext(new LoggerContext());
+		writer.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+
+		// when
+		writer.enqueue(event("Test 1"));
+		writer.enqueue(event("Test 2"));
+		writer.enqueue(event("Test 3"));
+		writer.start(1, "test");
+		writer.stop(1000);
+
+		// then
+		assertThat(messages).containsExactly("Test 2", "Test 3");
+		assertThat(writer.getDropCounters().get(Level.INFO)).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldDropOnlyEventsBelowThreshold() throws Exception {
+		// given
+		AsyncBatchWriter writer = new AsyncBatchWriter(handler, 10, 20, 50);
+		writer.setContext(new LoggerContext());
+		writer.setOverflowPolicy(OverflowPolicy.DROP_BELOW_THRESHOLD);
+		writer.setDropThreshold(Level.WARN);
+
+		// when
+		for (int i = 0; i < 9; ++i) {
+			writer.enqueue(event("Test " + i));
+		}
+		writer.enqueue(event("Debug", Level.DEBUG));
+		writer.enqueue(event("Error", Level.ERROR));
+		writer.start(1, "test");
+		writer.stop(1000);
+
+		// then
+		assertThat(messages).hasSize(10);
+		assertThat(messages.get(8)).isEqualTo("Test 8");
+		assertThat(messages.get(9)).isEqualTo("Error");
+		assertThat(writer.getDropCounters().get(Level.DEBUG)).isEqualTo(1);
+		assertThat(writer.getDropCounters().get(Level.ERROR)).isEqualTo(0);
+	}
+
+	@Test
+	public void shouldDropEventsAboveThresholdAfterBlockTimeout()
+			throws Exception {
+		// given
+		AsyncBatchWriter writer = new AsyncBatchWriter(handler, 2, 20, 50);
+		writer.setContext(new LoggerContext());
+		writer.setOverflowPolicy(OverflowPolicy.DROP_BELOW_THRESHOLD);
+		writer.setDropThreshold(Level.WARN);
+		writer.setBlockTimeoutMs(50);
+		writer.enqueue(event("Error 1", Level.ERROR));
+		writer.enqueue(event("Error 2", Level.ERROR));
+
+		// when
+		final long startMs = System.currentTimeMillis();
+		writer.enqueue(event("Error 3", Level.ERROR));
+
+		// then
+		assertThat(System.currentTimeMillis() - startMs).isLessThan(5000);
+		assertThat(writer.getDropCounters().get(Level.ERROR)).isEqualTo(1);
+		writer.start(1, "test");
+		writer.stop(1000);
+		assertThat(messages).containsExactly("Error 1", "Error 2");
+	}
+
+	@Test
+	public void shouldWriteSummaryOfDroppedEventsWhenStormIsOver()
+			throws Exception {
+		// given
+		AsyncBatchWriter writer = new AsyncBatchWriter(handler, 1, 10, 50);
+		writer.setContext(new LoggerContext());
+		writer.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+		writer.enqueue(event("Test 1"));
+		writer.enqueue(event("Test 2", Level.DEBUG));
+		writer.enqueue(event("Test 3", Level.DEBUG));
+
+		// when
+		writer.start(1, "test");
+		Thread.sleep(AsyncBatchWriter.STORM_QUIET_PERIOD_MS + 500);
+		writer.stop(1000);
+
+		// then
+		assertThat(messages).containsExactly("Test 1",
+				"2 events dropped (DEBUG=2)");
+		assertThat(writer.getDropCounters().total()).isEqualTo(0);
+	}
+
+	private ILoggingEvent event(String message) {
+		return event(message, Level.INFO);
+	}
+
+	private ILoggingEvent event(String message, Level level) {
+		LoggingEvent event = new LoggingEvent();
+		event.setLevel(level);
+		event.setMessage(message);
+		event.setLoggerName("test");
+		event.setTimeStamp(System.currentTimeMillis());
+		return event;
+	}
+
+}
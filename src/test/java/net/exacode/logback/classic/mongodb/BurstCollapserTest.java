@@ -0,0 +1,126 @@
+package net.exacode.logback.classic.mongodb;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.exacode.logback.classic.mongodb.converter.CollapsedLoggingEvent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * @author mendlik
+ */
+public class BurstCollapserTest {
+
+	private final LoggerContext lc = new LoggerContext();
+	private final Logger log = lc.getLogger(this.getClass().getName());
+	private final List<ILoggingEvent> emitted = new ArrayList<ILoggingEvent>();
+	private final BurstCollapser.Sink sink = new BurstCollapser.Sink() {
+		@Override
+		public void emit(ILoggingEvent event) {
+			emitted.add(event);
+		}
+	};
+
+	@After
+	public void tearDown() {
+		lc.stop();
+	}
+
+	@Test
+	public void shouldCollapseRepeatedEvents() throws Exception {
+		// given
+		final BurstCollapser collapser = new BurstCollapser(sink, 1000, 10);
+		final RuntimeException exception = new RuntimeException("Timeout");
+
+		// when
+		for (int i = 0; i < 3; ++i) {
+			assertThat(collapser.collapse(event(Level.WARN, "Retry {}", i,
+					1000 + i * 10, exception))).isTrue();
+		}
+		assertThat(collapser.collapse(event(Level.INFO, "Done", 0, 2000, null)))
+				.isTrue();
+		collapser.flushAll();
+
+		// then
+		assertThat(emitted).hasSize(2);
+		final CollapsedLoggingEvent burst = (CollapsedLoggingEvent) findByLevel(Level.WARN);
+		assertThat(burst.getCount()).isEqualTo(3);
+		assertThat(burst.getFirstTimeStamp()).isEqualTo(1000);
+		assertThat(burst.getLastTimeStamp()).isEqualTo(1020);
+		assertThat(burst.getFormattedMessage()).isEqualTo("Retry 0");
+		assertThat(findByLevel(Level.INFO)).isInstanceOf(LoggingEvent.class);
+		assertThat(collapser.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void shouldNotCollapseDifferentExceptions() throws Exception {
+		// given
+		final BurstCollapser collapser = new BurstCollapser(sink, 1000, 10);
+
+		// when
+		collapser.collapse(event(Level.ERROR, "Failed", 0, 1000,
+				new IllegalStateException()));
+		collapser.collapse(event(Level.ERROR, "Failed", 0, 1000,
+				new IllegalArgumentException()));
+		collapser.flushAll();
+
+		// then
+		assertThat(emitted).hasSize(2);
+	}
+
+	@Test
+	public void shouldPassEventsThroughWhenFull() throws Exception {
+		// given
+		final BurstCollapser collapser = new BurstCollapser(sink, 1000, 1);
+		collapser.collapse(event(Level.INFO, "First", 0, 1000, null));
+
+		// when
+		final boolean held = collapser.collapse(event(Level.INFO, "Second", 0,
+				1000, null));
+
+		// then
+		assertThat(held).isFalse();
+		assertThat(collapser.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldKeepBurstsOpenUntilWindowElapses() throws Exception {
+		// given
+		final BurstCollapser collapser = new BurstCollapser(sink, 60000, 10);
+		collapser.collapse(event(Level.INFO, "First", 0, 1000, null));
+
+		// when
+		collapser.flush();
+
+		// then
+		assertThat(emitted).isEmpty();
+	}
+
+	private LoggingEvent event(Level level, String message, int argument,
+			long timeStamp, Throwable throwable) {
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, level, message, throwable, new Object[] { argument });
+		event.setTimeStamp(timeStamp);
+		return event;
+	}
+
+	private ILoggingEvent findByLevel(Level level) {
+		for (ILoggingEvent event : emitted) {
+			if (event.getLevel() == level) {
+				return event;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,122 @@
+package net.exacode.logback.classic.mongodb;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import net.exacode.logback.classic.mongodb.CircuitBreaker.State;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.qos.logback.classic.LoggerContext;
+
+import com.mongodb.MongoException;
+
+/**
+ * @author mendlik
+ */
+public class CircuitBreakerTest {
+
+	private final LoggerContext context = new LoggerContext();
+	private final MongoException failure = new MongoException("Test");
+	private CircuitBreaker breaker;
+
+	@Before
+	public void setup() {
+		breaker = new CircuitBreaker(3, 100, 50);
+		breaker.setContext(context);
+	}
+
+	@Test
+	public void shouldOpenAfterConsecutiveFailures() throws Exception {
+		// when
+		breaker.onFailure(failure);
+		breaker.onFailure(failure);
+		boolean allowedBeforeThreshold = breaker.allowRequest();
+		breaker.onFailure(failure);
+
+		// then
+		assertThat(allowedBeforeThreshold).isTrue();
+		assertThat(breaker.getState()).isEqualTo(State.OPEN);
+		assertThat(breaker.allowRequest()).isFalse();
+		assertThat(context.getStatusManager().getCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldResetFailuresAfterSuccess() throws Exception {
+		// when
+		breaker.onFailure(failure);
+		breaker.onFailure(failure);
+		breaker.onSuccess(1);
+		breaker.onFailure(failure);
+
+		// then
+		assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+	}
+
+	@Test
+	public void shouldCountSlowWritesAsFailures() throws Exception {
+		// when
+		breaker.onSuccess(500);
+		breaker.onSuccess(500);
+		breaker.onSuccess(500);
+
+		// then
+		assertThat(breaker.getState()).isEqualTo(State.OPEN);
+	}
+
+	@Test
+	public void shouldAllowSingleProbeAfterInterval() throws Exception {
+		// given
+		openCircuit();
+
+		// when
+		boolean probeBeforeInterval = breaker.tryProbe();
+		Thread.sleep(60);
+		boolean firstProbe = breaker.tryProbe();
+		boolean secondProbe = breaker.tryProbe();
+
+		// then
+		assertThat(probeBeforeInterval).isFalse();
+		assertThat(firstProbe).isTrue();
+		assertThat(secondProbe).isFalse();
+		assertThat(breaker.getState()).isEqualTo(State.HALF_OPEN);
+		assertThat(breaker.allowRequest()).isFalse();
+	}
+
+	@Test
+	public void shouldCloseAfterSuccessfulProbe() throws Exception {
+		// given
+		openCircuit();
+		Thread.sleep(60);
+		breaker.tryProbe();
+
+		// when
+		breaker.onSuccess(1);
+
+		// then
+		assertThat(breaker.getState()).isEqualTo(State.CLOSED);
+		assertThat(breaker.allowRequest()).isTrue();
+	}
+
+	@Test
+	public void shouldReopenAfterFailedProbe() throws Exception {
+		// given
+		openCircuit();
+		Thread.sleep(60);
+		breaker.tryProbe();
+
+		// when
+		breaker.onFailure(failure);
+
+		// then
+		assertThat(breaker.getState()).isEqualTo(State.OPEN);
+		assertThat(breaker.tryProbe()).isFalse();
+	}
+
+	private void openCircuit() {
+		for (int i = 0; i < 3; ++i) {
+			breaker.onFailure(failure);
+		}
+	}
+
+}
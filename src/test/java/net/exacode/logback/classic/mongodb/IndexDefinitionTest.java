@@ -0,0 +1,85 @@
+package net.exacode.logback.classic.mongodb;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * @author mendlik
+ */
+public class IndexDefinitionTest {
+
+	@Test
+	public void shouldParseCompoundKeys() throws Exception {
+		// given
+		final IndexDefinition index = new IndexDefinition();
+		index.setKeys("{ \"level\" : 1, \"timeStamp\" : -1 }");
+
+		// when
+		final DBObject keys = index.toKeys();
+
+		// then
+		assertThat(keys.keySet()).containsOnly("level", "timeStamp");
+		assertThat(keys.get("timeStamp")).isEqualTo(-1);
+	}
+
+	@Test
+	public void shouldBuildPartialIndexInBackground() throws Exception {
+		// given
+		final IndexDefinition index = new IndexDefinition();
+		index.setKeys("{ \"logger\" : 1 }");
+		index.setName("errors_by_logger");
+		index.setPartialFilter("{ \"level\" : \"ERROR\" }");
+
+		// when
+		final DBObject options = index.toOptions();
+
+		// then
+		assertThat(options.get("background")).isEqualTo(true);
+		assertThat(options.get("name")).isEqualTo("errors_by_logger");
+		assertThat(options.get("partialFilterExpression")).isEqualTo(
+				new BasicDBObject("level", "ERROR"));
+		assertThat(options.containsField("sparse")).isFalse();
+	}
+
+	@Test
+	public void shouldMapFieldsToCompactKeys() throws Exception {
+		// given
+		final IndexDefinition index = new IndexDefinition();
+		index.setKeys("{ \"level\" : 1, \"mdc.user\" : 1, \"custom\" : 1 }");
+		index.setPartialFilter("{ \"$or\" : [ { \"level\" : \"ERROR\" }, "
+				+ "{ \"logger\" : { \"$in\" : [ \"a\", \"b\" ] } } ] }");
+
+		// when
+		final DBObject keys = index.toKeys(true);
+		final DBObject filter = (DBObject) index.toOptions(true).get(
+				"partialFilterExpression");
+
+		// then
+		assertThat(keys.keySet()).containsOnly("l", "md.user", "custom");
+		final List<?> or = (List<?>) filter.get("$or");
+		assertThat(or.get(0)).isEqualTo(new BasicDBObject("l", "ERROR"));
+		assertThat(((DBObject) or.get(1)).keySet()).containsOnly("lg");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectMissingKeys() throws Exception {
+		new IndexDefinition().toKeys();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectKeysThatAreNotDocument() throws Exception {
+		// given
+		final IndexDefinition index = new IndexDefinition();
+		index.setKeys("[ \"level\" ]");
+
+		// when
+		index.toKeys();
+	}
+
+}
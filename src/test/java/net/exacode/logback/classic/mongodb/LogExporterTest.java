@@ -0,0 +1,36 @@
+package net.exacode.logback.classic.mongodb;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author mendlik
+ */
+public class LogExporterTest {
+
+	@Test
+	public void shouldSplitRangeIntoAdjacentSubRanges() throws Exception {
+		// when
+		final List<long[]> ranges = LogExporter.split(1000, 2001, 4);
+
+		// then
+		assertThat(ranges).hasSize(4);
+		assertThat(ranges.get(0)).isEqualTo(new long[] { 1000, 1251 });
+		assertThat(ranges.get(1)[0]).isEqualTo(1251);
+		assertThat(ranges.get(3)).isEqualTo(new long[] { 1753, 2001 });
+	}
+
+	@Test
+	public void shouldNotSplitRangeShorterThanCount() throws Exception {
+		// when
+		final List<long[]> ranges = LogExporter.split(1000, 1002, 4);
+
+		// then
+		assertThat(ranges).hasSize(2);
+		assertThat(ranges.get(1)).isEqualTo(new long[] { 1001, 1002 });
+	}
+
+}
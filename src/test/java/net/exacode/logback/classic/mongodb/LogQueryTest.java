@@ -0,0 +1,104 @@
+package net.exacode.logback.classic.mongodb;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.Date;
+import java.util.regex.Pattern;
+
+import net.exacode.logback.classic.mongodb.converter.LoggingEventConverter;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * @author mendlik
+ */
+public class LogQueryTest {
+
+	private final LoggingEventConverter converter = new LoggingEventConverter();
+
+	private final LoggingEventConverter compactConverter = new LoggingEventConverter(
+			true, true);
+
+	@Test
+	public void shouldBuildQueryFromAllCriteria() throws Exception {
+		// given
+		final LogQuery query = new LogQuery().from(1000).to(2000)
+				.minLevel(Level.WARN).loggerPrefix("net.exacode")
+				.thread("main").mdc("user", "john").messageContains("a+b");
+
+		// when
+		final DBObject document = query.toQuery(converter);
+
+		// then
+		assertThat(document.keySet()).containsOnly("timeStamp", "level",
+				"logger", "thread", "mdc.user", "message");
+		final DBObject range = (DBObject) document.get("timeStamp");
+		assertThat(range.get("$gte")).isEqualTo(new Date(1000));
+		assertThat(range.get("$lt")).isEqualTo(new Date(2000));
+		assertThat(((DBObject) document.get("level")).get("$in").toString())
+				.isEqualTo("[ \"WARN\" , \"ERROR\"]");
+		assertThat(((Pattern) document.get("logger")).pattern()).isEqualTo(
+				"^net\\.exacode");
+		assertThat(((Pattern) document.get("message")).pattern()).isEqualTo(
+				"a\\+b");
+	}
+
+	@Test
+	public void shouldUseCompactFieldNames() throws Exception {
+		// given
+		final LogQuery query = new LogQuery().from(1000)
+				.levels(Level.ERROR).mdc("user", "john")
+				.exclude(LoggingEventConverter.CALLER_DATA_FIELD);
+
+		// when
+		final DBObject document = query.toQuery(compactConverter);
+		final DBObject projection = query.toProjection(compactConverter);
+
+		// then
+		assertThat(document.keySet()).containsOnly("t", "l", "md.user");
+		assertThat(projection).isEqualTo(new BasicDBObject("c", 0));
+		assertThat(query.toSort(compactConverter)).isEqualTo(
+				new BasicDBObject("t", 1));
+	}
+
+	@Test
+	public void shouldSortNaturallyWithoutTimeRange() throws Exception {
+		// given
+		final LogQuery query = new LogQuery().ascending(false);
+
+		// when
+		final DBObject sort = query.toSort(converter);
+
+		// then
+		assertThat(sort).isEqualTo(new BasicDBObject("$natural", -1));
+		assertThat(query.toProjection(converter)).isNull();
+	}
+
+	@Test
+	public void shouldMatchMessageTemplates() throws Exception {
+		// given
+		final LoggingEventConverter templateConverter = new LoggingEventConverter(
+				true, true);
+		templateConverter.setMessageTemplate(true);
+		final LogQuery query = new LogQuery()
+				.messageTemplate("Imported {} records");
+
+		// when
+		final DBObject document = query.toQuery(templateConverter);
+
+		// then
+		assertThat(document.keySet()).containsOnly("mt");
+		assertThat(document.get("mt")).isEqualTo("Imported {} records");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectExcludingRequiredField() throws Exception {
+		new LogQuery().exclude(LoggingEventConverter.MESSAGE_FIELD);
+	}
+
+}
@@ -3,14 +3,25 @@ package net.exacode.logback.classic.mongodb;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.fest.assertions.MapAssert.entry;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import net.exacode.logback.classic.category.MongoDbTests;
 import net.exacode.logback.classic.mongodb.MongoDbAppender;
+import net.exacode.logback.classic.mongodb.converter.LoggingEventConverter;
 
 import org.junit.After;
 import org.junit.Rule;
@@ -23,12 +34,19 @@ import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.classic.spi.CallerData;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
 import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.core.joran.spi.JoranException;
+import ch.qos.logback.core.read.ListAppender;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.MongoException;
+import com.mongodb.util.JSON;
 
 /**
  * Requires MongoDB running on the same computer with default port (27017) and
@@ -139,6 +157,45 @@ public class MongoDbAppenderTest {
 		assertThat(ste.isNativeMethod()).isEqualTo(false);
 	}
 
+	@Test
+	public void shouldSaveCallerDataSelectedByPolicy() throws Exception {
+		// given
+		configure("callerdata-policy.xml");
+
+		// when
+		log.info("Test: " + testName.getMethodName());
+		log.warn("Test: " + testName.getMethodName());
+
+		// then
+		final List<ILoggingEvent> events = loadEventsFromMongo(2);
+		final ILoggingEvent info = events.get(0).getLevel() == Level.INFO ? events
+				.get(0) : events.get(1);
+		final ILoggingEvent warn = events.get(0).getLevel() == Level.WARN ? events
+				.get(0) : events.get(1);
+		assertThat(info.getCallerData()).isEmpty();
+		assertThat(warn.getCallerData()).hasSize(2);
+		assertThat(warn.getCallerData()[0].getMethodName()).isEqualTo(
+				testName.getMethodName());
+	}
+
+	@Test
+	public void shouldNotStoreCallerDataOfSampledOutEvents() throws Exception {
+		// given
+		configure("callerdata-sampled-out.xml");
+		final MongoDbAppender appender = mongoAppender();
+
+		// when
+		log.warn("Test: " + testName.getMethodName());
+
+		// then
+		final DBObject dbObject = appender.mongo.getDB("logdb")
+				.getCollection("logs").findOne();
+		assertThat(dbObject.get("message")).isEqualTo(
+				"Test: " + testName.getMethodName());
+		assertThat(dbObject.containsField("callerData")).isFalse();
+		assertThat(loadEventsFromMongo(1).get(0).getCallerData()).isEmpty();
+	}
+
 	@Test
 	public void shouldSaveProperDate() throws Exception {
 		// given
@@ -249,6 +306,109 @@ public class MongoDbAppenderTest {
 		assertStackLineMethod(steProxyArray[0], testName.getMethodName());
 	}
 
+	@Test
+	public void shouldRestoreDeduplicatedStackTraces() throws Exception {
+		// given
+		configure("stacktrace-dedup.xml");
+
+		// when
+		for (int i = 0; i < 2; ++i) {
+			try {
+				throw new IllegalStateException("Failure " + i,
+						new IllegalArgumentException("Cause " + i));
+			} catch (IllegalStateException e) {
+				log.error(":-(", e);
+			}
+		}
+
+		// then
+		final List<ILoggingEvent> events = loadEventsFromMongo(2);
+		for (int i = 0; i < 2; ++i) {
+			IThrowableProxy throwable = events.get(i).getThrowableProxy();
+			assertThrowable(throwable, "java.lang.IllegalStateException",
+					"Failure " + i);
+			assertThrowable(throwable.getCause(),
+					"java.lang.IllegalArgumentException", "Cause " + i);
+			assertStackLineMethod(
+					throwable.getStackTraceElementProxyArray()[0],
+					testName.getMethodName());
+		}
+	}
+
+	@Test
+	public void shouldFlushRollupCounters() throws Exception {
+		// given
+		configure("rollup.xml");
+		final MongoDbAppender appender = mongoAppender();
+		final DBCollection rollup = appender.mongo.getDB("logdb")
+				.getCollection("logs_rollup");
+
+		// when
+		try {
+			log.info("Test 1");
+			log.info("Test 2");
+			log.error("Test 3", new IllegalStateException("Test exception"));
+			appender.rollupCounters.flush();
+
+			// then
+			final DBObject infos = rollup.findOne(new BasicDBObject("level",
+					"INFO").append("logger", log.getName()));
+			assertThat(infos.get("count")).isEqualTo(2L);
+			final DBObject exceptions = rollup.findOne(new BasicDBObject(
+					"exception", IllegalStateException.class.getName()));
+			assertThat(exceptions.get("count")).isEqualTo(1L);
+		} finally {
+			rollup.drop();
+		}
+	}
+
+	@Test
+	public void shouldSaveCollapsedBurst() throws Exception {
+		// given
+		configure("burst.xml");
+		final MongoDbAppender appender = mongoAppender();
+
+		// when
+		for (int i = 0; i < 3; ++i) {
+			log.warn("Retry {}", i);
+		}
+		appender.burstCollapser.flushAll();
+
+		// then
+		final DBObject dbObject = appender.mongo.getDB("logdb")
+				.getCollection("logs").findOne();
+		assertThat(dbObject.get("message")).isEqualTo("Retry 0");
+		assertThat(dbObject.get("count")).isEqualTo(3L);
+		assertThat(dbObject.get("firstTimestamp")).isNotNull();
+		assertThat(dbObject.get("lastTimestamp")).isNotNull();
+	}
+
+	@Test
+	public void shouldStoreNamesInDictionary() throws Exception {
+		// given
+		configure("name-dictionary.xml");
+		final MongoDbAppender appender = mongoAppender();
+		final DBCollection names = appender.mongo.getDB("logdb")
+				.getCollection("logs_names");
+
+		// when
+		try {
+			log.info("Test");
+
+			// then
+			final DBObject dbObject = appender.mongo.getDB("logdb")
+					.getCollection("logs").findOne();
+			assertThat(dbObject.get("logger")).isInstanceOf(Integer.class);
+			final ILoggingEvent event = loadSingleEventFromMongo();
+			assertThat(event.getLoggerName()).isEqualTo(log.getName());
+			assertThat(
+					appender.logDao.find(new LogQuery().loggerPrefix(
+							"net.exacode"))).hasSize(1);
+		} finally {
+			names.drop();
+		}
+	}
+
 	@Test
 	public void shouldSaveThrowableWithCauseStackTrace() throws Exception {
 		// given
@@ -368,6 +528,464 @@ public class MongoDbAppenderTest {
 		assertThat(log.getLevel()).isEqualTo(expectedLevel);
 	}
 
+	@Test
+	public void shouldStreamEventsInBatches() throws Exception {
+		// given
+		configure("default.xml");
+		for (int i = 0; i < 10; ++i) {
+			log.info("Test " + i);
+		}
+
+		// when
+		final LogEventCursor cursor = mongoAppender().logDao.stream(false, 3);
+
+		// then
+		try {
+			assertLog(cursor.next(), "Test 9", Level.INFO);
+			assertLog(cursor.next(), "Test 8", Level.INFO);
+		} finally {
+			cursor.close();
+		}
+		assertThat(cursor.hasNext()).isFalse();
+	}
+
+	@Test
+	public void shouldStopPassingEventsWhenHandlerDeclines() throws Exception {
+		// given
+		configure("default.xml");
+		for (int i = 0; i < 10; ++i) {
+			log.info("Test " + i);
+		}
+		final List<ILoggingEvent> handled = new ArrayList<ILoggingEvent>();
+
+		// when
+		mongoAppender().logDao.forEach(true, 2, new LogEventHandler() {
+			@Override
+			public boolean handle(ILoggingEvent event) {
+				handled.add(event);
+				return handled.size() < 5;
+			}
+		});
+
+		// then
+		assertThat(handled).hasSize(5);
+		assertLog(handled.get(4), "Test 4", Level.INFO);
+	}
+
+	@Test
+	public void shouldFindEventsMatchingQuery() throws Exception {
+		// given
+		configure("default.xml");
+		MDC.put("user", "john");
+		log.warn("Test 1");
+		MDC.remove("user");
+		log.warn("Test 2");
+		log.info("Test 3", new RuntimeException("Test exception"));
+
+		// when
+		final List<ILoggingEvent> events = mongoAppender().logDao
+				.find(new LogQuery().minLevel(Level.WARN)
+						.loggerPrefix(MongoDbAppenderTest.class.getPackage()
+								.getName()).mdc("user", "john")
+						.exclude(LoggingEventConverter.CALLER_DATA_FIELD));
+
+		// then
+		assertThat(events).hasSize(1);
+		assertLog(events.get(0), "Test 1", Level.WARN);
+		assertThat(events.get(0).hasCallerData()).isFalse();
+	}
+
+	@Test
+	public void shouldPushNewEventsToTailListeners() throws Exception {
+		// given
+		configure("default.xml");
+		log.info("Test 0");
+		final List<ILoggingEvent> pushed = new CopyOnWriteArrayList<ILoggingEvent>();
+		final CountDownLatch latch = new CountDownLatch(2);
+		final LogTail tail = mongoAppender().logDao.tail(new LogQuery()
+				.minLevel(Level.WARN));
+		tail.addListener(new LogTailListener() {
+			@Override
+			public void onEvent(ILoggingEvent event) {
+				pushed.add(event);
+				latch.countDown();
+			}
+		});
+		tail.start();
+
+		// when
+		try {
+			log.warn("Test 1");
+			log.info("Test 2");
+			log.error("Test 3");
+			latch.await(10, TimeUnit.SECONDS);
+		} finally {
+			tail.stop();
+		}
+
+		// then
+		assertThat(pushed).hasSize(2);
+		assertLog(pushed.get(0), "Test 1", Level.WARN);
+		assertLog(pushed.get(1), "Test 3", Level.ERROR);
+		assertThat(tail.getPosition()).isNotNull();
+	}
+
+	@Test
+	public void shouldExportEventsInTimeOrder() throws Exception {
+		// given
+		configure("default.xml");
+		final long from = System.currentTimeMillis();
+		for (int i = 0; i < 20; ++i) {
+			log.info("Test " + i);
+		}
+		final LogExporter exporter = new LogExporter(mongoAppender().logDao);
+		exporter.setThreads(3);
+		exporter.setQueueSize(2);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		// when
+		final LogExporter.Stats stats = exporter.export(from,
+				System.currentTimeMillis() + 1, out);
+
+		// then
+		assertThat(stats.getEvents()).isEqualTo(20);
+		final BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())),
+				"UTF-8"));
+		long previous = 0;
+		for (int i = 0; i < 20; ++i) {
+			final DBObject document = (DBObject) JSON.parse(reader.readLine());
+			final long timeStamp = ((Date) document
+					.get(LoggingEventConverter.TIME_STAMP_FIELD)).getTime();
+			assertThat(timeStamp).isGreaterThanOrEqualTo(previous);
+			previous = timeStamp;
+		}
+		assertThat(reader.readLine()).isNull();
+	}
+
+	@Test
+	public void shouldCountEventsOfCollapsedBurst() throws Exception {
+		// given
+		configure("burst.xml");
+		final MongoDbAppender appender = mongoAppender();
+		for (int i = 0; i < 3; ++i) {
+			log.warn("Retry {}", i);
+		}
+		log.error("Failed");
+		appender.burstCollapser.flushAll();
+
+		// when
+		final List<LogCount> levels = appender.logDao.countByLevel(null);
+
+		// then
+		assertThat(levels).hasSize(2);
+		assertThat(levels.get(0).getKey()).isEqualTo("WARN");
+		assertThat(levels.get(0).getCount()).isEqualTo(3);
+		assertThat(levels.get(1).getCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void shouldCountEventsOnServer() throws Exception {
+		// given
+		configure("default.xml");
+		log.info("Test 1");
+		log.info("Test 2");
+		log.error("Test 3", new IllegalStateException("Test exception"));
+		final MongoDbLogDao logDao = mongoAppender().logDao;
+
+		// when
+		final List<LogCount> levels = logDao.countByLevel(null);
+		final List<LogCount> exceptions = logDao.countByExceptionClass(null);
+		final List<LogCount> loggers = logDao.topLoggers(
+				new LogQuery().minLevel(Level.ERROR), 1);
+		final List<TimeBucketCount> minutes = logDao.countByTimeBucket(null,
+				60000);
+
+		// then
+		assertThat(levels).hasSize(2);
+		assertThat(levels.get(0).getKey()).isEqualTo("INFO");
+		assertThat(levels.get(0).getCount()).isEqualTo(2);
+		assertThat(exceptions).hasSize(1);
+		assertThat(exceptions.get(0).getKey()).isEqualTo(
+				IllegalStateException.class.getName());
+		assertThat(loggers).hasSize(1);
+		assertThat(loggers.get(0).getKey()).isEqualTo(log.getName());
+		long total = 0;
+		for (TimeBucketCount minute : minutes) {
+			assertThat(minute.getStart() % 60000).isEqualTo(0);
+			total += minute.getCount();
+		}
+		assertThat(total).isEqualTo(3);
+	}
+
+	@Test
+	public void shouldPageEventsWithContinuationTokens() throws Exception {
+		// given
+		configure("default.xml");
+		for (int i = 0; i < 10; ++i) {
+			log.info("Test " + i);
+		}
+		final MongoDbLogDao logDao = mongoAppender().logDao;
+
+		// when
+		final LogPage first = logDao.findFirstPage(4, true);
+		final LogPage second = logDao.findPage(first.getNextToken(), 4);
+		final LogPage last = logDao.findPage(second.getNextToken(), 4);
+		final LogPage previous = logDao.findPage(second.getPreviousToken(), 4);
+
+		// then
+		assertThat(first.getPreviousToken()).isNull();
+		assertLog(second.getEvents().get(0), "Test 4", Level.INFO);
+		assertThat(last.getEvents()).hasSize(2);
+		assertLog(last.getEvents().get(1), "Test 9", Level.INFO);
+		assertThat(last.getNextToken()).isNull();
+		assertLog(previous.getEvents().get(0), "Test 0", Level.INFO);
+		assertLog(previous.getEvents().get(3), "Test 3", Level.INFO);
+		assertThat(previous.getPreviousToken()).isNotNull();
+	}
+
+	@Test
+	public void shouldSaveEventsAsynchronouslyInBatches() throws Exception {
+		// given
+		configure("async.xml");
+
+		// when
+		for (int i = 0; i < 25; ++i) {
+			log.info("Test " + i);
+		}
+
+		// then
+		final List<ILoggingEvent> events = awaitEventsInMongo(25);
+		assertLog(events.get(0), "Test 0", Level.INFO);
+		assertLog(events.get(24), "Test 24", Level.INFO);
+	}
+
+	private List<ILoggingEvent> awaitEventsInMongo(int expectedCount)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (mongoAppender().logDao.find().size() < expectedCount
+				&& System.currentTimeMillis() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+		return loadEventsFromMongo(expectedCount);
+	}
+
+	@Test
+	public void shouldStartImmediatelyWhenConnectingLazily() throws Exception {
+		// given
+
+		// when
+		configure("lazy-connect-failure.xml");
+		log.info("Test: " + testName.getMethodName());
+
+		// then
+		assertThat(mongoAppender().isStarted()).isTrue();
+		assertThat(mongoAppender().isReady()).isFalse();
+	}
+
+	@Test
+	public void shouldNotBlockWhenQueueIsFullBeforeLazyConnect()
+			throws Exception {
+		// given
+		configure("lazy-connect-overflow.xml");
+
+		// when
+		final boolean returned = logInBackground(500, 10000);
+
+		// then
+		assertThat(returned).isTrue();
+		assertThat(mongoAppender().isReady()).isFalse();
+		assertThat(mongoAppender().getDroppedEvents(Level.INFO))
+				.isEqualTo(400);
+	}
+
+	@Test
+	public void shouldSpillEventsToJournalBeforeLazyConnect() throws Exception {
+		// given
+		configure("lazy-connect-journal.xml");
+
+		// when
+		final boolean returned = logInBackground(500, 10000);
+
+		// then
+		assertThat(returned).isTrue();
+		assertThat(mongoAppender().getDroppedEvents(Level.INFO)).isEqualTo(0);
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (mongoAppender().asyncWriter.size() > 0
+				&& System.currentTimeMillis() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+		assertThat(mongoAppender().asyncWriter.size()).isEqualTo(0);
+		assertThat(mongoAppender().journal.isEmpty()).isFalse();
+	}
+
+	/**
+	 * @return false if logging did not finish within the timeout
+	 */
+	private boolean logInBackground(final int count, long timeoutMs)
+			throws InterruptedException {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < count; ++i) {
+					log.info("Test " + i);
+				}
+			}
+		});
+		thread.start();
+		thread.join(timeoutMs);
+		return !thread.isAlive();
+	}
+
+	@Test
+	public void shouldSaveBufferedEventsWhenLazilyConnected() throws Exception {
+		// given
+		configure("lazy-connect.xml");
+
+		// when
+		log.info("Test: " + testName.getMethodName());
+
+		// then
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (!mongoAppender().isReady()
+				&& System.currentTimeMillis() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+		final List<ILoggingEvent> events = awaitEventsInMongo(1);
+		assertLog(events.get(0), "Test: " + testName.getMethodName(),
+				Level.INFO);
+	}
+
+	@Test
+	public void shouldSaveEventsWithWriteConcernsPerLevel() throws Exception {
+		// given
+		configure("write-concern.xml");
+
+		// when
+		log.debug("A");
+		log.info("B");
+		log.error("C");
+
+		// then
+		final List<ILoggingEvent> events = awaitEventsInMongo(3);
+		assertLog(events.get(0), "A", Level.DEBUG);
+		assertLog(events.get(1), "B", Level.INFO);
+		assertLog(events.get(2), "C", Level.ERROR);
+	}
+
+	@Test
+	public void shouldFindEventsAcrossDailyPartitions() throws Exception {
+		// given
+		configure("partitioned.xml");
+		final long now = System.currentTimeMillis();
+		final long yesterday = now - TimeUnit.DAYS.toMillis(1);
+
+		// when
+		mongoAppender().doAppend(event("A", yesterday));
+		mongoAppender().doAppend(event("B", now));
+
+		// then
+		final MongoDbLogDao logDao = mongoAppender().logDao;
+		assertThat(logDao.find().size()).isEqualTo(2);
+		final List<ILoggingEvent> events = logDao.findByTimeRange(yesterday,
+				now + 1, false);
+		assertLog(events.get(0), "B", Level.INFO);
+		assertLog(events.get(1), "A", Level.INFO);
+		assertLog(logDao.find(1, 1, true).get(0), "B", Level.INFO);
+		assertThat(logDao.dropPartitionsOlderThan(PartitionPeriod.DAILY
+				.start(now))).hasSize(1);
+		assertThat(logDao.find().size()).isEqualTo(1);
+	}
+
+	private ILoggingEvent event(String message, long timestamp) {
+		LoggingEvent event = new LoggingEvent();
+		event.setTimeStamp(timestamp);
+		event.setLevel(Level.INFO);
+		event.setLoggerName(log.getName());
+		event.setThreadName("main");
+		event.setMessage(message);
+		event.setCallerData(CallerData.EMPTY_CALLER_DATA_ARRAY);
+		return event;
+	}
+
+	@Test
+	public void shouldBuildDeclaredIndexesInBackground() throws Exception {
+		// given
+		configure("indexes.xml");
+
+		// when
+		log.info("Test: " + testName.getMethodName());
+
+		// then
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (!hasIndex("level_timeStamp")
+				&& System.currentTimeMillis() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+		assertThat(hasIndex("level_timeStamp")).isTrue();
+		assertThat(hasIndex("mdc.requestId_1")).isTrue();
+	}
+
+	private boolean hasIndex(String name) {
+		for (DBObject index : mongoAppender().logDao.getIndexInfo()) {
+			if (name.equals(index.get("name"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void shouldSendEventsToFallbackAppenderWhenCircuitIsOpen()
+			throws Exception {
+		// given
+		configure("circuit-breaker.xml");
+		final MongoDbAppender appender = mongoAppender();
+		@SuppressWarnings("unchecked")
+		final ListAppender<ILoggingEvent> fallback = (ListAppender<ILoggingEvent>) appender
+				.getAppender("FALLBACK");
+		appender.circuitBreaker.onFailure(new MongoException.Network(
+				"Simulated outage", new IOException()));
+
+		// when
+		log.info("Test: " + testName.getMethodName());
+
+		// then
+		assertThat(fallback.list).hasSize(1);
+		assertThat(fallback.list.get(0).getMessage()).isEqualTo(
+				"Test: " + testName.getMethodName());
+		assertThat(appender.logDao.find()).isEmpty();
+		lc.stop();
+		assertThat(fallback.isStarted()).isFalse();
+	}
+
+	@Test
+	public void shouldCountEventsDroppedByOpenCircuit() throws Exception {
+		// given
+		configure("circuit-breaker-no-fallback.xml");
+		mongoAppender().circuitBreaker.onFailure(new MongoException.Network(
+				"Simulated outage", new IOException()));
+
+		// when
+		log.info("Test: " + testName.getMethodName());
+		log.warn("Test: " + testName.getMethodName());
+
+		// then
+		assertThat(mongoAppender().getDroppedEvents(Level.INFO)).isEqualTo(1);
+		assertThat(mongoAppender().getDroppedEvents(Level.WARN)).isEqualTo(1);
+		assertThat(mongoAppender().logDao.find()).isEmpty();
+	}
+
+	@Test
+	public void shouldTreatOnlyNetworkFailuresAsOutage() throws Exception {
+		assertThat(
+				MongoDbAppender.isOutage(new MongoException.Network(
+						"Connection refused", new IOException()))).isTrue();
+		assertThat(
+				MongoDbAppender.isOutage(new MongoException(11000,
+						"E11000 duplicate key error"))).isFalse();
+	}
+
 	@Test
 	public void allAppenderParametersSetSmokeTest() throws Exception {
 		// given
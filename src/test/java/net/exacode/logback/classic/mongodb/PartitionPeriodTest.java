@@ -0,0 +1,72 @@
+package net.exacode.logback.classic.mongodb;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * @author mendlik
+ */
+public class PartitionPeriodTest {
+
+	private static long utc(String date) throws Exception {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.parse(date).getTime();
+	}
+
+	@Test
+	public void shouldNameCollectionsByPeriodStart() throws Exception {
+		// given
+		final long timestamp = utc("2026-10-17 13:45:10.123");
+
+		// when
+
+		// then
+		assertThat(PartitionPeriod.HOURLY.collectionName("logs", timestamp))
+				.isEqualTo("logs_2026_10_17_13");
+		assertThat(PartitionPeriod.DAILY.collectionName("logs", timestamp))
+				.isEqualTo("logs_2026_10_17");
+		assertThat(PartitionPeriod.MONTHLY.collectionName("logs", timestamp))
+				.isEqualTo("logs_2026_10");
+	}
+
+	@Test
+	public void shouldComputePeriodBoundaries() throws Exception {
+		// given
+		final long timestamp = utc("2026-12-31 23:59:59.999");
+
+		// when
+		final long start = PartitionPeriod.MONTHLY.start(timestamp);
+
+		// then
+		assertThat(start).isEqualTo(utc("2026-12-01 00:00:00.000"));
+		assertThat(PartitionPeriod.MONTHLY.next(start)).isEqualTo(
+				utc("2027-01-01 00:00:00.000"));
+		assertThat(PartitionPeriod.HOURLY.start(timestamp)).isEqualTo(
+				utc("2026-12-31 23:00:00.000"));
+		assertThat(PartitionPeriod.DAILY.next(PartitionPeriod.DAILY
+				.start(timestamp))).isEqualTo(utc("2027-01-01 00:00:00.000"));
+	}
+
+	@Test
+	public void shouldParsePeriodStartFromCollectionName() throws Exception {
+		// given
+
+		// when
+
+		// then
+		assertThat(PartitionPeriod.DAILY.parseStart("logs", "logs_2026_10_17"))
+				.isEqualTo(utc("2026-10-17 00:00:00.000"));
+		assertThat(PartitionPeriod.DAILY.parseStart("logs", "logs_2026_10"))
+				.isEqualTo(-1);
+		assertThat(PartitionPeriod.DAILY.parseStart("logs", "audit_2026_10_17"))
+				.isEqualTo(-1);
+		assertThat(PartitionPeriod.DAILY.parseStart("logs", "logs_2026_13_01"))
+				.isEqualTo(-1);
+	}
+
+}
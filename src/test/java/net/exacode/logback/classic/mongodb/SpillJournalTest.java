@@ -0,0 +1,177 @@
+package net.exacode.logback.classic.mongodb;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.qos.logback.classic.LoggerContext;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * @author mendlik
+ */
+public class SpillJournalTest {
+
+	private static final int SEGMENT_SIZE = 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void shouldReplayDocumentsInOrder() throws Exception {
+		// given
+		SpillJournal journal = openJournal();
+
+		// when
+		journal.append(documents(0, 3));
+		journal.append(documents(3, 5));
+
+		// then
+		assertThat(journal.isEmpty()).isFalse();
+		assertThat(readAll(journal)).containsExactly(0, 1, 2, 3, 4);
+		assertThat(journal.isEmpty()).isTrue();
+	}
+
+	@Test
+	public void shouldRollSegmentsAndDeleteReplayedOnes() throws Exception {
+		// given
+		SpillJournal journal = openJournal();
+
+		// when
+		journal.append(documents(0, 100));
+
+		// then
+		assertThat(segmentFiles().length).isGreaterThan(1);
+		assertThat(readAll(journal)).hasSize(100);
+		assertThat(segmentFiles()).hasSize(1);
+	}
+
+	@Test
+	public void shouldRecoverUnreplayedDocumentsAfterReopening()
+			throws Exception {
+		// given
+		SpillJournal journal = openJournal();
+		journal.append(documents(0, 50));
+		journal.commit(journal.read(10));
+		journal.close();
+
+		// when
+		SpillJournal reopened = openJournal();
+
+		// then
+		List<Integer> replayed = readAll(reopened);
+		assertThat(replayed).hasSize(40);
+		assertThat(replayed.get(0)).isEqualTo(10);
+		assertThat(replayed.get(39)).isEqualTo(49);
+	}
+
+	@Test
+	public void shouldLoseOnlyLastPartialRecordAfterCrash() throws Exception {
+		// given
+		SpillJournal journal = openJournal();
+		journal.append(documents(0, 3));
+		journal.close();
+
+		// when
+		int lastRecordEnd = lastRecordEnd();
+		File segment = segmentFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			// corrupt the payload of the last record
+			raf.seek(lastRecordEnd - 2);
+			raf.write(0x7F);
+		} finally {
+			raf.close();
+		}
+		SpillJournal reopened = openJournal();
+
+		// then
+		assertThat(readAll(reopened)).containsExactly(0, 1);
+	}
+
+	@Test
+	public void shouldReleaseSegmentsOnClose() throws Exception {
+		// given
+		final LoggerContext lc = new LoggerContext();
+		SpillJournal journal = new SpillJournal(journalDirectory(),
+				SEGMENT_SIZE);
+		journal.setContext(lc);
+		journal.open();
+		journal.append(documents(0, 100));
+
+		// when
+		journal.close();
+
+		// then
+		assertThat(lc.getStatusManager().getCopyOfStatusList()).isEmpty();
+		assertThat(journal.read(10)).isNull();
+		try {
+			journal.append(documents(0, 1));
+			fail("Closed journal accepted documents");
+		} catch (IOException e) {
+			// expected
+		}
+		assertThat(readAll(openJournal())).hasSize(100);
+	}
+
+	private int lastRecordEnd() throws Exception {
+		SpillJournal journal = openJournal();
+		int size = 0;
+		SpillJournal.Batch batch = journal.read(Integer.MAX_VALUE);
+		for (DBObject document : batch.getDocuments()) {
+			size += new DefaultDBEncoder().encode(document).length + 8;
+		}
+		journal.close();
+		return 8 + size;
+	}
+
+	private SpillJournal openJournal() throws Exception {
+		SpillJournal journal = new SpillJournal(journalDirectory(),
+				SEGMENT_SIZE);
+		journal.setContext(new LoggerContext());
+		journal.open();
+		return journal;
+	}
+
+	private File journalDirectory() {
+		return new File(folder.getRoot(), "journal");
+	}
+
+	private File[] segmentFiles() {
+		return journalDirectory().listFiles();
+	}
+
+	private List<DBObject> documents(int from, int to) {
+		List<DBObject> documents = new ArrayList<DBObject>();
+		for (int i = from; i < to; ++i) {
+			documents.add(new BasicDBObject("seq", i).append("message",
+					"Test " + i));
+		}
+		return documents;
+	}
+
+	private List<Integer> readAll(SpillJournal journal) {
+		List<Integer> sequences = new ArrayList<Integer>();
+		SpillJournal.Batch batch;
+		while ((batch = journal.read(7)) != null) {
+			for (DBObject document : batch.getDocuments()) {
+				sequences.add((Integer) document.get("seq"));
+			}
+			journal.commit(batch);
+		}
+		return sequences;
+	}
+
+}
@@ -0,0 +1,104 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * @author mendlik
+ */
+public class ArgumentEncodersTest {
+
+	private final ArgumentEncoders encoders = new ArgumentEncoders();
+
+	@Test
+	public void shouldKeepBsonTypes() throws Exception {
+		// given
+		final Date date = new Date();
+
+		// when
+		final Object[] encoded = encoders.encode(new Object[] { "text", 1, 2L,
+				1.5, true, date, (short) 3, 2.5f, null });
+
+		// then
+		assertThat(encoded).isEqualTo(
+				new Object[] { "text", 1, 2L, 1.5, true, date, 3, 2.5, null });
+	}
+
+	@Test
+	public void shouldEncodeOtherTypesAsStrings() throws Exception {
+		// given
+		final UUID uuid = UUID.randomUUID();
+
+		// when
+		final Object[] encoded = encoders.encode(new Object[] { uuid,
+				TimeUnit.SECONDS, new BigDecimal("1.10"), 'x',
+				new StringBuilder("built"), new int[] { 1, 2 },
+				new Object[] { "a", 1 } });
+
+		// then
+		assertThat(encoded).isEqualTo(
+				new Object[] { uuid.toString(), "SECONDS", "1.10", "x",
+						"built", "[1, 2]", "[a, 1]" });
+		new DefaultDBEncoder().encode(new BasicDBObject("a", encoded));
+	}
+
+	@Test
+	public void shouldTruncateLongValues() throws Exception {
+		// given
+		encoders.setMaxLength(4);
+
+		// when
+		final Object text = encoders.encode("abcdefgh");
+		final Object object = encoders.encode(new Object() {
+			@Override
+			public String toString() {
+				return "domain object";
+			}
+		});
+
+		// then
+		assertThat(text).isEqualTo("abcd...");
+		assertThat(object).isEqualTo("doma...");
+	}
+
+	@Test
+	public void shouldPreferLatestRegisteredEncoder() throws Exception {
+		// given
+		assertThat(encoders.encode(TimeUnit.SECONDS)).isEqualTo("SECONDS");
+
+		// when
+		encoders.register(TimeUnit.class, new ArgumentEncoder<TimeUnit>() {
+			@Override
+			public Object encode(TimeUnit argument) {
+				return argument.toMillis(1);
+			}
+		});
+
+		// then
+		assertThat(encoders.encode(TimeUnit.SECONDS)).isEqualTo(1000L);
+	}
+
+	@Test
+	public void shouldSurviveFailingToString() throws Exception {
+		// when
+		final Object encoded = encoders.encode(new Object() {
+			@Override
+			public String toString() {
+				throw new IllegalStateException();
+			}
+		});
+
+		// then
+		assertThat(encoded).isEqualTo(ArgumentEncoders.FAILED_TO_STRING);
+	}
+
+}
@@ -0,0 +1,47 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link NameDictionary} without MongoDB.
+ * 
+ * @author mendlik
+ */
+class InMemoryNameDictionary extends NameDictionary {
+
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+
+	InMemoryNameDictionary() {
+		super(null, 0);
+	}
+
+	@Override
+	public Object encode(String name) {
+		if (name == null) {
+			return null;
+		}
+		Integer id = ids.get(name);
+		if (id == null) {
+			id = names.size();
+			names.add(name);
+			ids.put(name, id);
+		}
+		return id;
+	}
+
+	@Override
+	public String decode(Object value) {
+		return value instanceof Number ? names.get(((Number) value)
+				.intValue()) : (String) value;
+	}
+
+	@Override
+	public Integer find(String name) {
+		return ids.get(name);
+	}
+
+}
@@ -0,0 +1,346 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * @author mendlik
+ */
+public class LoggingEventConverterTest {
+
+	private final LoggerContext lc = new LoggerContext();
+	private final Logger log = lc.getLogger(this.getClass().getName());
+
+	@After
+	public void tearDown() {
+		MDC.clear();
+		lc.stop();
+	}
+
+	@Test
+	public void shouldReadEventsStoredInEitherLayout() throws Exception {
+		// given
+		final LoggingEvent event = errorEvent();
+		final LoggingEventConverter standard = new LoggingEventConverter();
+		final LoggingEventConverter compact = new LoggingEventConverter(true,
+				true);
+
+		// when
+		final ILoggingEvent fromStandard = compact
+				.convertToLoggingEvent(storeAndLoad(standard, event));
+		final ILoggingEvent fromCompact = standard
+				.convertToLoggingEvent(storeAndLoad(compact, event));
+
+		// then
+		assertSameEvent(fromStandard, event);
+		assertSameEvent(fromCompact, event);
+	}
+
+	@Test
+	public void shouldOmitDefaultValuesInCompactLayout() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.INFO, "Hello", null, null);
+		event.setCallerData(new StackTraceElement[0]);
+
+		// when
+		final BasicDBObject document = new LoggingEventConverter(true, true)
+				.convertToDocument(event);
+
+		// then
+		assertThat(document.keySet()).containsOnly(
+				LoggingEventConverter.COMPACT_TIME_STAMP_FIELD,
+				LoggingEventConverter.COMPACT_LEVEL_FIELD,
+				LoggingEventConverter.COMPACT_THREAD_FIELD,
+				LoggingEventConverter.COMPACT_LOGGER_FIELD,
+				LoggingEventConverter.COMPACT_MESSAGE_FIELD);
+	}
+
+	/**
+	 * INFO event with MDC, arguments and caller data of 30 frames: 4139 bytes
+	 * in standard and 3195 bytes in compact layout. ERROR event with exception
+	 * and cause of 70 frames in total: 13246 and 10161 bytes.
+	 */
+	@Test
+	public void shouldStoreEventsInFewerBytesInCompactLayout()
+			throws Exception {
+		// given
+		final LoggingEvent infoEvent = infoEvent();
+		final LoggingEvent errorEvent = errorEvent();
+		final LoggingEventConverter standard = new LoggingEventConverter();
+		final LoggingEventConverter compact = new LoggingEventConverter(true,
+				true);
+
+		// when
+		final int infoStandard = size(standard, infoEvent);
+		final int infoCompact = size(compact, infoEvent);
+		final int errorStandard = size(standard, errorEvent);
+		final int errorCompact = size(compact, errorEvent);
+
+		// then
+		assertThat(infoCompact).isLessThan(infoStandard * 8 / 10);
+		assertThat(errorCompact).isLessThan(errorStandard * 8 / 10);
+	}
+
+	@Test
+	public void shouldRestoreMdcAndArgumentsOnAccess() throws Exception {
+		// given
+		final LoggingEvent event = infoEvent();
+		final LoggingEventConverter converter = new LoggingEventConverter();
+
+		// when
+		final ILoggingEvent restored = converter
+				.convertToLoggingEvent(storeAndLoad(converter, event));
+
+		// then
+		assertThat(restored.getMDCPropertyMap()).isEqualTo(
+				event.getMDCPropertyMap());
+		assertThat(restored.getArgumentArray()).isEqualTo(
+				event.getArgumentArray());
+		assertThat(restored.getFormattedMessage()).isEqualTo(
+				"Imported 120 records from orders.csv");
+		assertThat(restored.getThrowableProxy()).isNull();
+	}
+
+	@Test
+	public void shouldRestoreEventWithoutOptionalFields() throws Exception {
+		// given
+		final BasicDBObject document = storeAndLoad(
+				new LoggingEventConverter(), errorEvent());
+		document.removeField(LoggingEventConverter.CALLER_DATA_FIELD);
+		document.removeField(LoggingEventConverter.MDC_FIELD);
+
+		// when
+		final ILoggingEvent restored = new LoggingEventConverter()
+				.convertToLoggingEvent(document);
+
+		// then
+		assertThat(restored.hasCallerData()).isFalse();
+		assertThat(restored.getCallerData()).isEmpty();
+		assertThat(restored.getMDCPropertyMap()).isEmpty();
+		assertThat(restored.getThrowableProxy().getSuppressed()).isEmpty();
+		assertThat(restored.getThrowableProxy().getCause().getClassName())
+				.isEqualTo(RuntimeException.class.getName());
+	}
+
+	@Test
+	public void shouldFormatStoredTemplateOnAccess() throws Exception {
+		// given
+		final LoggingEventConverter converter = new LoggingEventConverter(
+				false, true);
+		converter.setMessageTemplate(true);
+
+		// when
+		final BasicDBObject document = storeAndLoad(converter, infoEvent());
+		final ILoggingEvent restored = converter
+				.convertToLoggingEvent(document);
+
+		// then
+		assertThat(document.get(LoggingEventConverter.COMPACT_MESSAGE_FIELD))
+				.isNull();
+		assertThat(
+				document.get(LoggingEventConverter.COMPACT_MESSAGE_TEMPLATE_FIELD))
+				.isEqualTo("Imported {} records from {}");
+		assertThat(restored.getMessage())
+				.isEqualTo("Imported {} records from {}");
+		assertThat(restored.getFormattedMessage()).isEqualTo(
+				"Imported 120 records from orders.csv");
+	}
+
+	@Test
+	public void shouldRestoreSuppressedExceptions() throws Exception {
+		// given
+		final Throwable suppressed = new IllegalArgumentException(
+				"Close failed");
+		suppressed.setStackTrace(frames(3));
+		final IllegalStateException exception = new IllegalStateException(
+				"Import failed");
+		exception.setStackTrace(frames(5));
+		exception.addSuppressed(suppressed);
+		final LoggingEvent failed = new LoggingEvent(Logger.class.getName(),
+				log, Level.ERROR, "Import failed", exception, null);
+
+		for (LoggingEventConverter converter : new LoggingEventConverter[] {
+				new LoggingEventConverter(),
+				new LoggingEventConverter(true, true) }) {
+			// when
+			final IThrowableProxy restored = converter.convertToLoggingEvent(
+					storeAndLoad(converter, failed)).getThrowableProxy();
+
+			// then
+			assertThat(restored.getSuppressed()).hasSize(1);
+			assertThat(restored.getSuppressed()[0].getMessage()).isEqualTo(
+					"Close failed");
+			assertThat(
+					restored.getSuppressed()[0]
+							.getStackTraceElementProxyArray()).hasSize(3);
+		}
+	}
+
+	@Test
+	public void shouldTruncateOversizedEvents() throws Exception {
+		// given
+		final StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 10000; ++i) {
+			message.append("Very long message ");
+		}
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.ERROR, message.toString(), new IllegalStateException(
+						"Import failed"), new Object[] { "import" });
+		event.setCallerData(frames(30));
+		final LoggingEventConverter converter = new LoggingEventConverter();
+		converter.setMaxDocumentSize(64 * 1024);
+
+		// when
+		final BasicDBObject document = storeAndLoad(converter, event);
+
+		// then
+		assertThat(size(converter, event)).isLessThan(64 * 1024);
+		assertThat(document.get(LoggingEventConverter.TRUNCATED_FIELD))
+				.isEqualTo(true);
+		assertThat(document.get(LoggingEventConverter.ARGUMENTS_FIELD))
+				.isNull();
+		assertThat(document.getString(LoggingEventConverter.MESSAGE_FIELD))
+				.hasSize(4 * 1024 + 3);
+		assertThat(document.get(LoggingEventConverter.THROWABLE_FIELD))
+				.isNotNull();
+	}
+
+	@Test
+	public void shouldBoundEventsWithoutTakingCallerData() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.INFO, "Imported {} records", null,
+				new Object[] { 120 });
+		final LoggingEventConverter converter = new LoggingEventConverter();
+
+		// when
+		final ILoggingEvent bounded = converter.bound(event);
+
+		// then
+		assertThat(bounded).isSameAs(event);
+		assertThat(event.hasCallerData()).isFalse();
+	}
+
+	@Test
+	public void shouldTakeCallerDataWhenIncluded() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.INFO, "Hello", null, null);
+		final LoggingEventConverter converter = new LoggingEventConverter(true);
+
+		// when
+		final ILoggingEvent restored = converter
+				.convertToLoggingEvent(storeAndLoad(converter, event));
+
+		// then
+		assertThat(event.hasCallerData()).isTrue();
+		assertThat(restored.getCallerData()).isEqualTo(event.getCallerData());
+	}
+
+	@Test
+	public void shouldRestoreNamesStoredInDictionary() throws Exception {
+		// given
+		final LoggingEventConverter converter = new LoggingEventConverter(
+				true, true);
+		converter.setNameDictionary(new InMemoryNameDictionary());
+		final LoggingEvent event = infoEvent();
+
+		// when
+		final BasicDBObject document = storeAndLoad(converter, event);
+		final ILoggingEvent restored = converter
+				.convertToLoggingEvent(document);
+
+		// then
+		assertThat(document.get(LoggingEventConverter.COMPACT_LOGGER_FIELD))
+				.isInstanceOf(Integer.class);
+		assertThat(document.get(LoggingEventConverter.COMPACT_THREAD_FIELD))
+				.isInstanceOf(Integer.class);
+		assertThat(restored.getLoggerName()).isEqualTo(event.getLoggerName());
+		assertThat(restored.getThreadName()).isEqualTo(event.getThreadName());
+		assertThat(restored.getCallerData()).isEqualTo(event.getCallerData());
+		assertThat(size(converter, event)).isLessThan(
+				size(new LoggingEventConverter(true, true), event));
+	}
+
+	private LoggingEvent infoEvent() {
+		MDC.put("requestId", "5f1c2a");
+		MDC.put("user", "mendlik");
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.INFO, "Imported {} records from {}", null,
+				new Object[] { 120, "orders.csv" });
+		event.getMDCPropertyMap();
+		event.setCallerData(frames(30));
+		return event;
+	}
+
+	private LoggingEvent errorEvent() {
+		final IllegalStateException exception = new IllegalStateException(
+				"Import failed", new RuntimeException("Connection reset"));
+		exception.setStackTrace(frames(30));
+		exception.getCause().setStackTrace(frames(40));
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.ERROR, "Import failed", exception, null);
+		event.setCallerData(frames(30));
+		return event;
+	}
+
+	private StackTraceElement[] frames(int count) {
+		final StackTraceElement[] frames = new StackTraceElement[count];
+		for (int i = 0; i < count; ++i) {
+			frames[i] = new StackTraceElement("net.exacode.sample.service.Importer"
+					+ i, "process", "Importer" + i + ".java", 100 + i);
+		}
+		return frames;
+	}
+
+	private int size(LoggingEventConverter converter, ILoggingEvent event) {
+		return new DefaultDBEncoder().encode(converter.convertToDocument(event)).length;
+	}
+
+	private BasicDBObject storeAndLoad(LoggingEventConverter converter,
+			ILoggingEvent event) {
+		final byte[] bson = new DefaultDBEncoder().encode(converter
+				.convertToDocument(event));
+		return (BasicDBObject) new DefaultDBDecoder().decode(bson,
+				(DBCollection) null);
+	}
+
+	private void assertSameEvent(ILoggingEvent actual, ILoggingEvent expected) {
+		assertThat(actual.getTimeStamp()).isEqualTo(expected.getTimeStamp());
+		assertThat(actual.getLevel()).isEqualTo(expected.getLevel());
+		assertThat(actual.getThreadName()).isEqualTo(expected.getThreadName());
+		assertThat(actual.getLoggerName()).isEqualTo(expected.getLoggerName());
+		assertThat(actual.getMessage()).isEqualTo(
+				expected.getFormattedMessage());
+		assertThat(actual.getCallerData()).isEqualTo(expected.getCallerData());
+		final IThrowableProxy throwable = actual.getThrowableProxy();
+		final IThrowableProxy expectedThrowable = expected.getThrowableProxy();
+		assertThat(throwable.getClassName()).isEqualTo(
+				expectedThrowable.getClassName());
+		assertThat(throwable.getMessage()).isEqualTo(
+				expectedThrowable.getMessage());
+		assertThat(throwable.getStackTraceElementProxyArray()[0]
+				.getStackTraceElement()).isEqualTo(
+				expectedThrowable.getStackTraceElementProxyArray()[0]
+						.getStackTraceElement());
+		assertThat(throwable.getCause().getMessage()).isEqualTo(
+				expectedThrowable.getCause().getMessage());
+	}
+
+}
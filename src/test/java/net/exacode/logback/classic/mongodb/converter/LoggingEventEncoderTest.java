@@ -0,0 +1,296 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * @author mendlik
+ */
+public class LoggingEventEncoderTest {
+
+	private final LoggerContext lc = new LoggerContext();
+	private final Logger log = lc.getLogger(this.getClass().getName());
+
+	@After
+	public void tearDown() {
+		MDC.clear();
+		lc.stop();
+	}
+
+	@Test
+	public void shouldEncodeSameBytesAsDefaultEncoder() throws Exception {
+		// given
+		MDC.put("requestId", "42");
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.ERROR, "Failed {} of {}", new IllegalStateException(
+						"Oh, no!", new RuntimeException("Cause")),
+				new Object[] { "import", 3 });
+		event.getMDCPropertyMap();
+		event.setCallerData(new Throwable().getStackTrace());
+
+		// when
+		final LoggingEventConverter converter = new LoggingEventConverter();
+
+		// then
+		assertSameBytes(converter, event);
+	}
+
+	@Test
+	public void shouldEncodeSameBytesWithoutOptionalFields() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.INFO, "Hello", null, null);
+
+		// when
+		final LoggingEventConverter converter = new LoggingEventConverter(
+				false);
+
+		// then
+		assertSameBytes(converter, event);
+	}
+
+	@Test
+	public void shouldEncodeSameBytesInCompactLayout() throws Exception {
+		// given
+		MDC.put("requestId", "42");
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.ERROR, "Failed {} of {}", new IllegalStateException(
+						"Oh, no!", new RuntimeException()), new Object[] {
+						"import", 3 });
+		event.getMDCPropertyMap();
+		event.setCallerData(new Throwable().getStackTrace());
+
+		// when
+		final LoggingEventConverter converter = new LoggingEventConverter(
+				true, true);
+
+		// then
+		assertSameBytes(converter, event);
+	}
+
+	@Test
+	public void shouldEncodeSameBytesForCollapsedEvents() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.WARN, "Retrying", null, null);
+		final CollapsedLoggingEvent burst = new CollapsedLoggingEvent(event,
+				42, event.getTimeStamp() + 500);
+
+		// then
+		assertSameBytes(new LoggingEventConverter(false), burst);
+		assertSameBytes(new LoggingEventConverter(false, true), burst);
+	}
+
+	@Test
+	public void shouldEncodeSameBytesForMessageTemplates() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.INFO, "Imported {} records", null,
+				new Object[] { 120 });
+
+		// when
+		final LoggingEventConverter standard = new LoggingEventConverter(false);
+		standard.setMessageTemplate(true);
+		final LoggingEventConverter compact = new LoggingEventConverter(false,
+				true);
+		compact.setMessageTemplate(true);
+
+		// then
+		assertSameBytes(standard, event);
+		assertSameBytes(compact, event);
+	}
+
+	@Test
+	public void shouldEncodeSameBytesForEnumArguments() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.INFO, "Imported {} records in {}", null,
+				new Object[] { 120, TimeUnit.SECONDS });
+
+		// when
+		final LoggingEventConverter standard = new LoggingEventConverter(false);
+		final LoggingEventConverter compact = new LoggingEventConverter(false,
+				true);
+
+		// then
+		assertThat(
+				((Object[]) standard.convertToDocument(event).get("arguments"))[1])
+				.isEqualTo("SECONDS");
+		assertSameBytes(standard, event);
+		assertSameBytes(compact, event);
+	}
+
+	@Test
+	public void shouldEncodeSameBytesForBoundedThrowables() throws Exception {
+		// given
+		final IllegalStateException exception = new IllegalStateException(
+				"Oh, no!", new RuntimeException());
+		exception.addSuppressed(new IllegalArgumentException("Close failed"));
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.ERROR, "Failed", exception, null);
+
+		// when
+		final LoggingEventConverter standard = new LoggingEventConverter(false);
+		standard.getThrowableLimits().setMaxFrames(4);
+		final LoggingEventConverter compact = new LoggingEventConverter(false,
+				true);
+		compact.getThrowableLimits().setMaxFrames(4);
+
+		// then
+		assertSameBytes(standard, event);
+		assertSameBytes(compact, event);
+	}
+
+	@Test
+	public void shouldEncodeSameBytesForTruncatedEvents() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.ERROR, "Failed {}", new IllegalStateException(
+						"Oh, no!"), new Object[] { 42 });
+		event.setCallerData(new Throwable().getStackTrace());
+
+		// when
+		final LoggingEventConverter standard = new LoggingEventConverter(true);
+		standard.setMaxDocumentSize(1024);
+		final LoggingEventConverter compact = new LoggingEventConverter(true,
+				true);
+		compact.setMaxDocumentSize(1024);
+
+		// then
+		assertSameBytes(standard, event);
+		assertSameBytes(compact, event);
+	}
+
+	@Test
+	public void shouldEncodeSameBytesWithNameDictionary() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.ERROR, "Failed", new IllegalStateException(
+						"Oh, no!"), null);
+		event.setCallerData(new Throwable().getStackTrace());
+
+		// when
+		final LoggingEventConverter standard = new LoggingEventConverter(true);
+		standard.setNameDictionary(new InMemoryNameDictionary());
+		final LoggingEventConverter compact = new LoggingEventConverter(true,
+				true);
+		compact.setNameDictionary(new InMemoryNameDictionary());
+
+		// then
+		assertSameBytes(standard, event);
+		assertSameBytes(compact, event);
+	}
+
+	@Test
+	public void shouldExposeSameKeysAsConvertedDocument() throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.WARN, "Hello {}", new RuntimeException(),
+				new Object[] { "world" });
+		event.setCallerData(new Throwable().getStackTrace());
+		final LoggingEventConverter converter = new LoggingEventConverter();
+
+		// when
+		final DBObject document = converter.wrap(event);
+
+		// then
+		assertThat(document.keySet()).isEqualTo(
+				converter.convertToDocument(event).keySet());
+		assertThat(converter.getTimeStamp(document)).isEqualTo(
+				event.getTimeStamp());
+	}
+
+	@Test
+	public void shouldExposeSameKeysAsConvertedCompactDocument()
+			throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.WARN, "Hello", null, null);
+		event.setCallerData(new StackTraceElement[0]);
+		final LoggingEventConverter converter = new LoggingEventConverter(
+				true, true);
+
+		// when
+		final DBObject document = converter.wrap(event);
+
+		// then
+		assertThat(document.keySet()).isEqualTo(
+				converter.convertToDocument(event).keySet());
+	}
+
+	@Test
+	public void shouldEncodeModifiedDocumentAsRegularDocument()
+			throws Exception {
+		// given
+		final LoggingEvent event = new LoggingEvent(Logger.class.getName(),
+				log, Level.INFO, "Hello {}", null, new Object[] { "world" });
+		event.setCallerData(new Throwable().getStackTrace());
+		final LoggingEventConverter converter = new LoggingEventConverter();
+		final ObjectId id = new ObjectId();
+		final DBObject expected = converter.convertToDocument(event);
+		expected.put("_id", id);
+		expected.put("host", "localhost");
+		expected.putAll((DBObject) new BasicDBObject("app", "test"));
+		expected.removeField("arguments");
+
+		// when
+		final DBObject actual = converter.wrap(event);
+		actual.put("_id", id);
+		actual.put("host", "localhost");
+		actual.putAll((DBObject) new BasicDBObject("app", "test"));
+		actual.removeField("arguments");
+		actual.markAsPartialObject();
+
+		// then
+		assertThat(actual.keySet()).isEqualTo(expected.keySet());
+		assertThat(actual.get("host")).isEqualTo("localhost");
+		assertThat(actual.isPartialObject()).isTrue();
+		final LoggingEventEncoder encoder = (LoggingEventEncoder) LoggingEventEncoder.FACTORY
+				.create();
+		assertThat(encoder.encode(actual)).isEqualTo(
+				new DefaultDBEncoder().encode(expected));
+	}
+
+	@Test
+	public void shouldEncodeOtherDocumentsAsDefaultEncoder() throws Exception {
+		// given
+		final DBObject document = new BasicDBObject("_id", new ObjectId())
+				.append("message", "Hello").append("count", 3);
+
+		// when
+		final byte[] bson = new LoggingEventEncoder().encode(document);
+
+		// then
+		assertThat(bson).isEqualTo(new DefaultDBEncoder().encode(document));
+	}
+
+	private void assertSameBytes(LoggingEventConverter converter,
+			ILoggingEvent event) {
+		final ObjectId id = new ObjectId();
+		final DBObject expected = converter.convertToDocument(event);
+		expected.put("_id", id);
+		final DBObject actual = converter.wrap(event);
+		actual.put("_id", id);
+		final LoggingEventEncoder encoder = (LoggingEventEncoder) LoggingEventEncoder.FACTORY
+				.create();
+		assertThat(encoder.encode(actual)).isEqualTo(
+				new DefaultDBEncoder().encode(expected));
+	}
+
+}
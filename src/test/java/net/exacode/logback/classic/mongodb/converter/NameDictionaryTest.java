@@ -0,0 +1,28 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author mendlik
+ */
+public class NameDictionaryTest {
+
+	@Test
+	public void shouldCacheNewNamesWhenCacheIsFull() throws Exception {
+		// given
+		final NameDictionary dictionary = new NameDictionary(null, 2);
+		dictionary.cache(1, "net.exacode.Importer");
+		dictionary.cache(2, "net.exacode.Scheduler");
+
+		// when
+		dictionary.cache(3, "main");
+
+		// then
+		assertThat(dictionary.size()).isLessThanOrEqualTo(2);
+		assertThat(dictionary.find("main")).isEqualTo(3);
+		assertThat(dictionary.decode(3)).isEqualTo("main");
+	}
+
+}
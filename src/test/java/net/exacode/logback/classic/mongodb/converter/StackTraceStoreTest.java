@@ -0,0 +1,78 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.spi.ThrowableProxy;
+
+/**
+ * @author mendlik
+ */
+public class StackTraceStoreTest {
+
+	private static final StackTraceElement[] FRAMES = {
+			new StackTraceElement("Importer", "process", "Importer.java", 42),
+			new StackTraceElement("Scheduler", "run", "Scheduler.java", 7) };
+
+	@Test
+	public void shouldIgnoreMessagesInFingerprint() throws Exception {
+		// given
+		final ThrowableProxy first = proxy(new IllegalStateException("A",
+				new RuntimeException("B")), FRAMES);
+		final ThrowableProxy second = proxy(new IllegalStateException("C",
+				new RuntimeException("D")), FRAMES);
+
+		// when
+		final String fingerprint = StackTraceStore.fingerprint(first);
+
+		// then
+		assertThat(fingerprint).hasSize(32);
+		assertThat(StackTraceStore.fingerprint(second)).isEqualTo(fingerprint);
+	}
+
+	@Test
+	public void shouldDistinguishClassesAndFrames() throws Exception {
+		// given
+		final ThrowableProxy proxy = proxy(new IllegalStateException("A"),
+				FRAMES);
+		final ThrowableProxy otherClass = proxy(new IllegalArgumentException(
+				"A"), FRAMES);
+		final ThrowableProxy otherFrames = proxy(
+				new IllegalStateException("A"), new StackTraceElement[] { FRAMES[0] });
+
+		// when
+		final String fingerprint = StackTraceStore.fingerprint(proxy);
+
+		// then
+		assertThat(StackTraceStore.fingerprint(otherClass)).isNotEqualTo(
+				fingerprint);
+		assertThat(StackTraceStore.fingerprint(otherFrames)).isNotEqualTo(
+				fingerprint);
+	}
+
+	@Test
+	public void shouldDistinguishSuppressedExceptions() throws Exception {
+		// given
+		final IllegalStateException suppressed = new IllegalStateException(
+				"A");
+		suppressed.addSuppressed(new IllegalArgumentException("B"));
+		final ThrowableProxy proxy = proxy(new IllegalStateException("A"),
+				FRAMES);
+
+		// when
+		final String fingerprint = StackTraceStore.fingerprint(proxy);
+
+		// then
+		assertThat(StackTraceStore.fingerprint(proxy(suppressed, FRAMES)))
+				.isNotEqualTo(fingerprint);
+	}
+
+	private ThrowableProxy proxy(Throwable throwable, StackTraceElement[] frames) {
+		for (Throwable t = throwable; t != null; t = t.getCause()) {
+			t.setStackTrace(frames);
+		}
+		return new ThrowableProxy(throwable);
+	}
+
+}
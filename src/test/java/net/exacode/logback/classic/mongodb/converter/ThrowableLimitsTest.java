@@ -0,0 +1,108 @@
+package net.exacode.logback.classic.mongodb.converter;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+
+/**
+ * @author mendlik
+ */
+public class ThrowableLimitsTest {
+
+	private final ThrowableLimits limits = new ThrowableLimits();
+
+	@Test
+	public void shouldKeepThrowableWithinLimits() throws Exception {
+		// given
+		final ThrowableProxy throwable = proxy(new IllegalStateException(
+				"Failed", new RuntimeException()), 30);
+
+		// when
+		final IThrowableProxy bounded = limits.apply(throwable);
+
+		// then
+		assertThat(bounded).isSameAs(throwable);
+	}
+
+	@Test
+	public void shouldRetainHeadAndTailFrames() throws Exception {
+		// given
+		limits.setMaxFrames(10);
+		limits.setTailFrames(3);
+		final ThrowableProxy throwable = proxy(new StackOverflowError(), 1024);
+
+		// when
+		final StackTraceElementProxy[] frames = limits.apply(throwable)
+				.getStackTraceElementProxyArray();
+
+		// then
+		assertThat(frames).hasSize(11);
+		assertThat(frames[6].getStackTraceElement().getMethodName()).isEqualTo(
+				"method6");
+		assertThat(frames[7].getStackTraceElement().toString()).isEqualTo(
+				"...1014 frames omitted(Unknown Source)");
+		assertThat(frames[8].getStackTraceElement().getMethodName()).isEqualTo(
+				"method1021");
+		assertThat(frames[10].getStackTraceElement().getMethodName())
+				.isEqualTo("method1023");
+	}
+
+	@Test
+	public void shouldLimitCauseDepth() throws Exception {
+		// given
+		limits.setMaxDepth(2);
+		Throwable chain = new RuntimeException("0");
+		for (int i = 1; i < 10; ++i) {
+			chain = new RuntimeException(String.valueOf(i), chain);
+		}
+
+		// when
+		final IThrowableProxy bounded = limits.apply(proxy(chain, 1));
+
+		// then
+		assertThat(bounded.getMessage()).isEqualTo("9");
+		assertThat(bounded.getCause().getCause().getMessage()).isEqualTo("7");
+		assertThat(bounded.getCause().getCause().getCause()).isNull();
+	}
+
+	@Test
+	public void shouldShareFrameBudgetWithSuppressed() throws Exception {
+		// given
+		limits.setMaxTotalFrames(50);
+		final Throwable throwable = new IllegalStateException("Failed",
+				withFrames(new RuntimeException("Cause"), 40));
+		throwable.addSuppressed(withFrames(new IllegalArgumentException(
+				"Close failed"), 40));
+
+		// when
+		final IThrowableProxy bounded = limits.apply(proxy(throwable, 5));
+
+		// then
+		assertThat(bounded.getStackTraceElementProxyArray()).hasSize(5);
+		assertThat(bounded.getCause().getStackTraceElementProxyArray())
+				.hasSize(40);
+		final IThrowableProxy suppressed = bounded.getSuppressed()[0];
+		assertThat(suppressed.getClassName()).isEqualTo(
+				IllegalArgumentException.class.getName());
+		assertThat(suppressed.getStackTraceElementProxyArray()).hasSize(6);
+	}
+
+	private ThrowableProxy proxy(Throwable throwable, int frames) {
+		return new ThrowableProxy(withFrames(throwable, frames));
+	}
+
+	private Throwable withFrames(Throwable throwable, int count) {
+		final StackTraceElement[] frames = new StackTraceElement[count];
+		for (int i = 0; i < count; ++i) {
+			frames[i] = new StackTraceElement("net.exacode.sample.Recursion",
+					"method" + i, "Recursion.java", i + 1);
+		}
+		throwable.setStackTrace(frames);
+		return throwable;
+	}
+
+}
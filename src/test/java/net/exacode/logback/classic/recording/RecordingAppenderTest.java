@@ -370,6 +370,30 @@ public class RecordingAppenderTest {
 		assertThat(events.get(2).getCallerData()).isNull();
 	}
 
+	@Test
+	public void shouldDumpCallerDataSelectedByPolicy() throws Exception {
+		configureFrom("callerdata-policy.xml");
+
+		// when
+		someMethod("Testing");
+		new RecordingAppenderHelper(log).otherMethod("Verifying");
+		log.error("Oh, no!");
+
+		// then
+		final List<ILoggingEvent> events = logEvents();
+		assertThat(events).hasSize(3);
+		assertThat(events.get(0).getCallerData()).isNull();
+		assertCallerData(events.get(1),
+				RecordingAppenderHelper.class.getCanonicalName(),
+				RecordingAppenderHelper.class.getSimpleName() + ".java",
+				"otherMethod");
+		assertThat(events.get(1).getCallerData()).hasSize(1);
+		assertCallerData(events.get(2), this.getClass().getCanonicalName(),
+				this.getClass().getSimpleName() + ".java",
+				testName.getMethodName());
+		assertThat(events.get(2).getCallerData()).hasSize(1);
+	}
+
 	private void assertCallerData(final ILoggingEvent event,
 			final String expectedClassName, final String expectedFileName,
 			final String expectedMethodName) {